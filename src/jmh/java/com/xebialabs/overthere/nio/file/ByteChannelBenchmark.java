@@ -0,0 +1,119 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.google.common.collect.Maps;
+
+import com.xebialabs.overthere.nio.file.provider.LocalFileSystemProvider;
+
+/**
+ * Measures reading and writing through the byte channel of a {@code local:} file system with heap and direct
+ * buffers, comparing the native {@link java.nio.channels.FileChannel} of the scheme with the generic
+ * {@link OverthereByteChannel} that the remote schemes use. Run with {@code -prof gc} and compare
+ * {@code gc.alloc.rate.norm} to see the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteChannelBenchmark {
+
+    private static final long FILE_SIZE = 16 * 1024 * 1024;
+
+    @Param({"heap", "direct"})
+    public String bufferType;
+
+    @Param({"65536"})
+    public int bufferSize;
+
+    @Param({"native", "generic"})
+    public String channelType;
+
+    private File tempDir;
+    private FileSystem fileSystem;
+    private SeekableByteChannel readChannel;
+    private SeekableByteChannel writeChannel;
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = com.google.common.io.Files.createTempDir();
+        fileSystem = new LocalFileSystemProvider().newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+
+        Path source = fileSystem.getPath(new File(tempDir, "source").getAbsolutePath());
+        byte[] chunk = new byte[(int) (FILE_SIZE / 16)];
+        SeekableByteChannel channel = Files.newByteChannel(source, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            for (int i = 0; i < 16; i++) {
+                channel.write(ByteBuffer.wrap(chunk));
+            }
+        } finally {
+            channel.close();
+        }
+
+        readChannel = openChannel(source, EnumSet.of(StandardOpenOption.READ));
+        writeChannel = openChannel(fileSystem.getPath(new File(tempDir, "target").getAbsolutePath()),
+                EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+        buffer = "direct".equals(bufferType) ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    private SeekableByteChannel openChannel(Path path, Set<StandardOpenOption> options) throws IOException {
+        if ("generic".equals(channelType)) {
+            return new OverthereByteChannel((OverthereFileSystemProvider) fileSystem.provider(), (OvertherePath) path, options);
+        }
+        return Files.newByteChannel(path, options);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        readChannel.close();
+        writeChannel.close();
+        fileSystem.close();
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @Benchmark
+    public int read() throws IOException {
+        buffer.clear();
+        int bytesRead = readChannel.read(buffer);
+        if (bytesRead < 0) {
+            readChannel.position(0);
+        }
+        return bytesRead;
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        buffer.clear();
+        int bytesWritten = writeChannel.write(buffer);
+        if (writeChannel.position() >= FILE_SIZE) {
+            writeChannel.position(0);
+        }
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,90 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.google.common.collect.Maps;
+
+import com.xebialabs.overthere.nio.file.provider.LocalFileSystemProvider;
+
+/**
+ * Iterates a directory through {@link OverthereDirectoryStream}, listed with {@code File.listFiles()} by the
+ * {@code local:} provider and with {@code find} by the counting provider, which runs host commands like the SSH
+ * providers do. One in a hundred entries is a jar, to measure a glob that is passed on to {@code find}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryStreamBenchmark {
+
+    @Param({"listFiles", "find"})
+    public String listing;
+
+    @Param({"10000"})
+    public int entries;
+
+    private File tempDir;
+    private FileSystem fileSystem;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = com.google.common.io.Files.createTempDir();
+        for (int i = 0; i < entries; i++) {
+            com.google.common.io.Files.touch(new File(tempDir, i % 100 == 0 ? "artifact" + i + ".jar" : "file" + i + ".txt"));
+        }
+        FileSystemProvider provider = "find".equals(listing) ? new CountingLocalFileSystemProvider() : new LocalFileSystemProvider();
+        fileSystem = provider.newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        dir = fileSystem.getPath(tempDir.getAbsolutePath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fileSystem.close();
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @Benchmark
+    public int iterate() throws IOException {
+        return count(Files.newDirectoryStream(dir));
+    }
+
+    @Benchmark
+    public int iterateGlob() throws IOException {
+        return count(Files.newDirectoryStream(dir, "*.jar"));
+    }
+
+    private static int count(DirectoryStream<Path> stream) throws IOException {
+        try {
+            int count = 0;
+            for (Path ignored : stream) {
+                count++;
+            }
+            return count;
+        } finally {
+            stream.close();
+        }
+    }
+}
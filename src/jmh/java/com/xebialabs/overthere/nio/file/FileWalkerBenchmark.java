@@ -0,0 +1,110 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.google.common.collect.Maps;
+
+/**
+ * Walks a tree of 156 directories on a local file system that delays every round trip, with
+ * {@link Files#walkFileTree} and with {@link OverthereFileWalker} in both orders.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class FileWalkerBenchmark {
+
+    @Param({"2", "20"})
+    public long latencyMillis;
+
+    @Param({"8"})
+    public int parallelism;
+
+    private File tempDir;
+    private FileSystem fileSystem;
+    private Path root;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = com.google.common.io.Files.createTempDir();
+        createTree(tempDir, 3);
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereConnectionPool.POOL_MAX_SIZE, parallelism);
+        fileSystem = new CountingLocalFileSystemProvider(latencyMillis).newFileSystem(URI.create("local:/"), env);
+        root = fileSystem.getPath(tempDir.getAbsolutePath());
+    }
+
+    private static void createTree(File dir, int depth) throws IOException {
+        for (int i = 0; i < 5; i++) {
+            com.google.common.io.Files.write("Some text", new File(dir, "file" + i + ".txt"), Charset.defaultCharset());
+            if (depth > 0) {
+                File subDir = new File(dir, "dir" + i);
+                subDir.mkdir();
+                createTree(subDir, depth - 1);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fileSystem.close();
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @Benchmark
+    public int walkFileTree() throws IOException {
+        CountingVisitor visitor = new CountingVisitor();
+        Files.walkFileTree(root, visitor);
+        return visitor.files.get();
+    }
+
+    @Benchmark
+    public int walkUnordered() throws IOException {
+        CountingVisitor visitor = new CountingVisitor();
+        OverthereFileWalker.walk(root, visitor, parallelism, OverthereFileWalker.Order.UNORDERED);
+        return visitor.files.get();
+    }
+
+    @Benchmark
+    public int walkDepthFirst() throws IOException {
+        CountingVisitor visitor = new CountingVisitor();
+        OverthereFileWalker.walk(root, visitor, parallelism, OverthereFileWalker.Order.DEPTH_FIRST);
+        return visitor.files.get();
+    }
+
+    static class CountingVisitor extends SimpleFileVisitor<Path> {
+        final AtomicInteger files = new AtomicInteger();
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            files.incrementAndGet();
+            return FileVisitResult.CONTINUE;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.google.common.collect.Maps;
+
+import com.xebialabs.overthere.nio.file.provider.LocalFileSystemProvider;
+
+/**
+ * Measures the {@link OvertherePath} operations that tree walks and listings repeat for every entry. Run with
+ * {@code -prof gc} to see the bytes allocated per operation as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBenchmark {
+
+    private static final String DEEP_PATH = "/opt/deployit/server/work/artifacts/app/1.0/lib/commons-io-2.4.jar";
+
+    private FileSystem fileSystem;
+    private Path dir;
+    private Path file;
+    private Path sameFile;
+    private Path otherFile;
+    private Path denormalized;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fileSystem = new LocalFileSystemProvider().newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        file = fileSystem.getPath(DEEP_PATH);
+        sameFile = fileSystem.getPath(DEEP_PATH);
+        dir = file.getParent();
+        otherFile = fileSystem.getPath("/opt/deployit/server/work/artifacts/app/2.0/lib/guava-12.0.jar");
+        denormalized = fileSystem.getPath("/opt/deployit/./server/work/../work/artifacts/app/1.0/lib/commons-io-2.4.jar");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fileSystem.close();
+    }
+
+    @Benchmark
+    public Path parse() {
+        return fileSystem.getPath(DEEP_PATH);
+    }
+
+    @Benchmark
+    public String parseAndPrint() {
+        return fileSystem.getPath(DEEP_PATH).toString();
+    }
+
+    @Benchmark
+    public Path resolve() {
+        return dir.resolve("guava-12.0.jar");
+    }
+
+    @Benchmark
+    public Path getParent() {
+        return file.getParent();
+    }
+
+    @Benchmark
+    public Path getFileName() {
+        return file.getFileName();
+    }
+
+    @Benchmark
+    public Path relativize() {
+        return file.relativize(otherFile);
+    }
+
+    @Benchmark
+    public Path normalize() {
+        return denormalized.normalize();
+    }
+
+    @Benchmark
+    public Path normalizeNormal() {
+        return file.normalize();
+    }
+
+    @Benchmark
+    public boolean equalsFresh() {
+        return fileSystem.getPath(DEEP_PATH).equals(file);
+    }
+
+    @Benchmark
+    public boolean equalsCached() {
+        return sameFile.equals(file);
+    }
+
+    @Benchmark
+    public int hashCodeFresh() {
+        return fileSystem.getPath(DEEP_PATH).hashCode();
+    }
+}
@@ -0,0 +1,277 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * The entries of a directory as they are read from the host.
+ *
+ * Listings backed by a remote {@code find} are consumed while the host produces them, so memory use does not grow
+ * with the size of the directory, and closing the listing stops the remote command. Other listings are read with
+ * {@link OverthereFile#listFiles()} up front, as Overthere offers no incremental alternative.
+ *
+ * A connection is only borrowed to start the listing: the remote command keeps running in its own channel, so that
+ * listings which stay open while a walker descends into their entries do not exhaust the connection pool. As the host
+ * limits the number of channels per connection, only {@link OverthereConnectionPool#POOL_MAX_RUNNING_PROCESSES} can
+ * run at once on one connection; a listing beyond that is read completely while the connection is borrowed.
+ */
+abstract class DirectoryListing extends AbstractIterator<Path> implements Closeable {
+
+    protected final OvertherePath dir;
+    private volatile boolean closed;
+
+    protected DirectoryListing(OvertherePath dir) {
+        this.dir = dir;
+    }
+
+    static DirectoryListing open(OverthereFileSystemProvider provider, OvertherePath dir) throws IOException {
+        return open(provider, dir, null);
+    }
+
+    /**
+     * Opens a listing that may leave out the entries whose names match none of {@code namePatterns}, if the host can
+     * filter them. Callers still have to filter the entries themselves.
+     */
+    static DirectoryListing open(OverthereFileSystemProvider provider, OvertherePath dir, List<String> namePatterns) throws IOException {
+        OverthereFileSystem fileSystem = dir.getOverthereFileSystem();
+        OverthereConnection connection = fileSystem.borrowConnection();
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            DirectoryListing listing = null;
+            if (provider.canUseFind(fileSystem, connection)) {
+                CmdLine command = namePatterns == null ? FindCommand.list(dir.toString()) : FindCommand.list(dir.toString(), namePatterns);
+                listing = FindListing.start(dir, connection, command);
+            }
+            if (listing == null) {
+                listing = new ListFilesListing(dir, connection);
+            }
+            succeeded = true;
+            return listing;
+        } finally {
+            fileSystem.getMetrics().record(OverthereMetrics.Operation.LIST, start, succeeded);
+            fileSystem.releaseConnection(connection);
+        }
+    }
+
+    @Override
+    protected Path computeNext() {
+        if (closed) {
+            return endOfData();
+        }
+        try {
+            Path next = readNext();
+            if (next == null) {
+                close();
+                return endOfData();
+            }
+            return next;
+        } catch (IOException e) {
+            if (closed) {
+                return endOfData();
+            }
+            close();
+            throw new DirectoryIteratorException(e);
+        }
+    }
+
+    /**
+     * Returns the next entry of the listing, or {@code null} when there are no more.
+     */
+    protected abstract Path readNext() throws IOException;
+
+    /**
+     * Stops reading from the host. Called once.
+     */
+    protected void stop() {
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        stop();
+    }
+
+    /**
+     * Reads the output of a {@code find -printf} command record by record, see {@link FindCommand}.
+     */
+    static class FindListing extends DirectoryListing {
+        private final HostProcess process;
+        private final Iterator<String> readRecords;
+        private String pendingRecord;
+        private FindCommand.Entry current;
+
+        /**
+         * The directories returned on the way down to the current entry, by their path relative to the listed
+         * directory. {@code find} lists a directory before its content and finishes it before it moves on to a
+         * sibling, so the directory of an entry is on this stack.
+         */
+        private final Deque<Map.Entry<String, OvertherePath>> directories = new ArrayDeque<Map.Entry<String, OvertherePath>>();
+
+        private FindListing(OvertherePath dir, HostProcess process, String firstRecord) {
+            super(dir);
+            this.process = process;
+            this.readRecords = null;
+            this.pendingRecord = firstRecord;
+        }
+
+        private FindListing(OvertherePath dir, List<String> readRecords) {
+            super(dir);
+            this.process = null;
+            this.readRecords = readRecords.iterator();
+        }
+
+        /**
+         * Starts the listing and waits for its first entry, to find out whether the host can run the command at all.
+         *
+         * @return the listing, or {@code null} if the host's {@code find} does not support {@code -printf}.
+         */
+        static FindListing start(OvertherePath dir, OverthereConnection connection, CmdLine command) throws IOException {
+            OverthereFileSystem fileSystem = dir.getOverthereFileSystem();
+            boolean detached = fileSystem.getConnectionPool().canStartProcess(connection);
+            HostProcess process = detached ? HostProcess.startDetached(fileSystem, connection, command) : HostProcess.start(connection, command);
+            try {
+                String firstRecord = process.readRecord();
+                if (firstRecord == null && process.waitFor() != 0) {
+                    String errors = process.getErrorOutput();
+                    if (FindCommand.isUnsupported(errors)) {
+                        dir.getOverthereFileSystem().setFindSupported(false);
+                        process.close();
+                        return null;
+                    }
+                    if (FindCommand.isNoSuchFile(errors)) {
+                        throw new NoSuchFileException(dir.toString());
+                    }
+                    throw new IOException("Could not list " + dir + ": " + errors);
+                }
+                if (!detached) {
+                    return readCompletely(dir, process, firstRecord);
+                }
+                return new FindListing(dir, process, firstRecord);
+            } catch (IOException e) {
+                process.close();
+                throw e;
+            } catch (RuntimeException e) {
+                process.close();
+                throw e;
+            }
+        }
+
+        private static FindListing readCompletely(OvertherePath dir, HostProcess process, String firstRecord) throws IOException {
+            List<String> records = Lists.newArrayList();
+            for (String record = firstRecord; record != null; record = process.readRecord()) {
+                records.add(record);
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("Could not list " + dir + ": " + process.getErrorOutput());
+            }
+            process.close();
+            return new FindListing(dir, records);
+        }
+
+        @Override
+        protected Path readNext() throws IOException {
+            if (readRecords != null) {
+                return readRecords.hasNext() ? toPath(readRecords.next()) : null;
+            }
+            String record = pendingRecord != null ? pendingRecord : process.readRecord();
+            pendingRecord = null;
+            if (record == null) {
+                if (process.waitFor() != 0) {
+                    throw new IOException("Could not list " + dir + ": " + process.getErrorOutput());
+                }
+                return null;
+            }
+            return toPath(record);
+        }
+
+        private Path toPath(String record) throws IOException {
+            FindCommand.Entry entry = FindCommand.parse(record);
+            current = entry;
+            OvertherePath path = resolve(entry.getRelativePath());
+            OverthereFileAttributes attributes = entry.toAttributes(false);
+            if (attributes.isDirectory()) {
+                directories.push(Maps.immutableEntry(entry.getRelativePath(), path));
+            }
+            path.setPrefetchedAttributes(attributes);
+            dir.getOverthereFileSystem().getMetadataCache().put(path, false, attributes);
+            return path;
+        }
+
+        /**
+         * Resolves an entry against the path that was returned for its directory, so that the entries of a directory
+         * share that path.
+         */
+        private OvertherePath resolve(String relativePath) {
+            String separatorString = dir.getOverthereFileSystem().getSeparator();
+            int separator = relativePath.lastIndexOf(separatorString);
+            if (separator < 0) {
+                return dir.child(relativePath);
+            }
+            String parent = relativePath.substring(0, separator);
+            while (!directories.isEmpty() && !directories.peek().getKey().equals(parent)) {
+                directories.pop();
+            }
+            if (directories.isEmpty()) {
+                return (OvertherePath) dir.resolve(relativePath);
+            }
+            return directories.peek().getValue().child(relativePath.substring(separator + separatorString.length()));
+        }
+
+        /**
+         * Returns the parsed entry behind the path that was last returned.
+         */
+        FindCommand.Entry current() {
+            return current;
+        }
+
+        @Override
+        protected void stop() {
+            if (process != null) {
+                process.close();
+            }
+        }
+    }
+
+    /**
+     * Lists the directory with {@link OverthereFile#listFiles()}.
+     */
+    static class ListFilesListing extends DirectoryListing {
+        private final Iterator<OverthereFile> files;
+
+        private ListFilesListing(OvertherePath dir, OverthereConnection connection) throws IOException {
+            super(dir);
+            try {
+                this.files = dir.getOverthereFile(connection).listFiles().iterator();
+            } catch (RuntimeIOException rio) {
+                throw new IOException(rio);
+            }
+        }
+
+        @Override
+        protected Path readNext() {
+            return files.hasNext() ? new OvertherePath(dir.getOverthereFileSystem(), files.next().getPath()) : null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * The names, sizes and modification times of the entries of a directory at one point in time, kept in sorted arrays
+ * so that a snapshot of a large directory stays small and two snapshots can be compared in a single pass.
+ */
+final class DirectorySnapshot {
+
+    private final String[] names;
+    private final long[] sizes;
+    private final long[] lastModified;
+
+    private DirectorySnapshot(String[] names, long[] sizes, long[] lastModified) {
+        this.names = names;
+        this.sizes = sizes;
+        this.lastModified = lastModified;
+    }
+
+    static DirectorySnapshot read(OverthereFileSystemProvider provider, OvertherePath dir) throws IOException {
+        DirectoryListing listing = DirectoryListing.open(provider, dir);
+        try {
+            Entry[] entries = new Entry[16];
+            int count = 0;
+            while (listing.hasNext()) {
+                Path path = listing.next();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    // Deleted while it was being listed
+                    continue;
+                }
+                if (count == entries.length) {
+                    entries = Arrays.copyOf(entries, count * 2);
+                }
+                entries[count++] = new Entry(path.getFileName().toString(), attributes.size(), attributes.lastModifiedTime().toMillis());
+            }
+            Arrays.sort(entries, 0, count);
+
+            String[] names = new String[count];
+            long[] sizes = new long[count];
+            long[] lastModified = new long[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = entries[i].name;
+                sizes[i] = entries[i].size;
+                lastModified[i] = entries[i].lastModified;
+            }
+            return new DirectorySnapshot(names, sizes, lastModified);
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        } finally {
+            listing.close();
+        }
+    }
+
+    /**
+     * Reports the entries that were created, deleted or modified between this snapshot and a newer one.
+     */
+    void diff(DirectorySnapshot newer, OverthereWatchKey key) {
+        int i = 0;
+        int j = 0;
+        while (i < names.length || j < newer.names.length) {
+            int comparison = i == names.length ? 1 : j == newer.names.length ? -1 : names[i].compareTo(newer.names[j]);
+            if (comparison < 0) {
+                key.signalEvent(ENTRY_DELETE, names[i++]);
+            } else if (comparison > 0) {
+                key.signalEvent(ENTRY_CREATE, newer.names[j++]);
+            } else {
+                if (sizes[i] != newer.sizes[j] || lastModified[i] != newer.lastModified[j]) {
+                    key.signalEvent(ENTRY_MODIFY, names[i]);
+                }
+                i++;
+                j++;
+            }
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        final String name;
+        final long size;
+        final long lastModified;
+
+        Entry(String name, long size, long lastModified) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return name.compareTo(other.name);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.xebialabs.overthere.CmdLine;
+
+/**
+ * Builds GNU {@code find -printf} invocations that return the type, size, modification time and mode of files in one
+ * remote call, and parses their output.
+ *
+ * Every entry is printed as {@code <type> <target type> <size> <mtime> <mode> <relative path>}, with the path last so
+ * that it may contain spaces, and ends with a NUL character rather than a newline, as only NUL cannot occur in a file
+ * name. See {@link HostProcess#readRecord()}.
+ */
+final class FindCommand {
+
+    static final String ENTRY_FORMAT = "%y %Y %s %T@ %m %P\\0";
+
+    private FindCommand() {
+    }
+
+    /**
+     * A command that prints a single entry for the file at {@code path} itself.
+     */
+    static CmdLine stat(String path) {
+        return CmdLine.build("find", path, "-maxdepth", "0", "-printf", ENTRY_FORMAT);
+    }
+
+    /**
+     * A command that prints an entry for every file directly inside the directory at {@code path}.
+     */
+    static CmdLine list(String path) {
+        return CmdLine.build("find", path, "-mindepth", "1", "-maxdepth", "1", "-printf", ENTRY_FORMAT);
+    }
+
+    /**
+     * A command that prints an entry for every file directly inside the directory at {@code path} whose name matches
+     * one of {@code namePatterns}, so that the host does not send the other entries.
+     */
+    static CmdLine list(String path, List<String> namePatterns) {
+        CmdLine command = CmdLine.build("find", path, "-mindepth", "1", "-maxdepth", "1");
+        if (namePatterns.size() > 1) {
+            command.addArgument("(");
+        }
+        for (int i = 0; i < namePatterns.size(); i++) {
+            if (i > 0) {
+                command.addArgument("-o");
+            }
+            command.addArgument("-name");
+            command.addArgument(namePatterns.get(i));
+        }
+        if (namePatterns.size() > 1) {
+            command.addArgument(")");
+        }
+        return command.addArgument("-printf").addArgument(ENTRY_FORMAT);
+    }
+
+    /**
+     * A command that prints an entry for every file below the directory at {@code path}, at any depth, parents before
+     * their children.
+     */
+    static CmdLine tree(String path) {
+        return CmdLine.build("find", path, "-mindepth", "1", "-printf", ENTRY_FORMAT);
+    }
+
+    /**
+     * Whether the error output of a failed invocation shows that the file does not exist.
+     */
+    static boolean isNoSuchFile(String errorOutput) {
+        return errorOutput.contains("No such file or directory");
+    }
+
+    /**
+     * Whether the error output of a failed invocation shows that the host's {@code find} is not GNU find.
+     */
+    static boolean isUnsupported(String errorOutput) {
+        return errorOutput.contains("printf");
+    }
+
+    /**
+     * Parses a single entry of the output.
+     *
+     * @throws IOException if the entry is not in the {@link #ENTRY_FORMAT}.
+     */
+    static Entry parse(String record) throws IOException {
+        int typeEnd = record.indexOf(' ');
+        int targetTypeEnd = record.indexOf(' ', typeEnd + 1);
+        int sizeEnd = record.indexOf(' ', targetTypeEnd + 1);
+        int mtimeEnd = record.indexOf(' ', sizeEnd + 1);
+        int modeEnd = mtimeEnd < 0 ? -1 : record.indexOf(' ', mtimeEnd + 1);
+        if (typeEnd != 1 || targetTypeEnd != 3 || sizeEnd < 0 || mtimeEnd < 0 || modeEnd < 0) {
+            throw new IOException("Cannot parse find output [" + record + "]");
+        }
+        try {
+            return new Entry(record.charAt(0), record.charAt(2), Long.parseLong(record.substring(targetTypeEnd + 1, sizeEnd)),
+                    parseMillis(record.substring(sizeEnd + 1, mtimeEnd)), Integer.parseInt(record.substring(mtimeEnd + 1, modeEnd), 8),
+                    record.substring(modeEnd + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Cannot parse find output [" + record + "]", e);
+        }
+    }
+
+    private static long parseMillis(String secondsSinceEpoch) {
+        int dot = secondsSinceEpoch.indexOf('.');
+        if (dot < 0) {
+            return Long.parseLong(secondsSinceEpoch) * 1000;
+        }
+        long millis = Long.parseLong(secondsSinceEpoch.substring(0, dot)) * 1000;
+        String fraction = (secondsSinceEpoch.substring(dot + 1) + "000").substring(0, 3);
+        return millis + Integer.parseInt(fraction);
+    }
+
+    static class Entry {
+        private final char type;
+        private final char targetType;
+        private final long size;
+        private final long lastModified;
+        private final int mode;
+        private final String relativePath;
+
+        Entry(char type, char targetType, long size, long lastModified, int mode, String relativePath) {
+            this.type = type;
+            this.targetType = targetType;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.mode = mode;
+            this.relativePath = relativePath;
+        }
+
+        String getRelativePath() {
+            return relativePath;
+        }
+
+        /**
+         * Returns the permission bits of the file, or of the link itself for a symbolic link.
+         */
+        int getMode() {
+            return mode;
+        }
+
+        /**
+         * Returns the attributes of this entry, or {@code null} if they cannot be derived from it: the size and
+         * modification time printed for a symbolic link are those of the link, not of its target.
+         */
+        OverthereFileAttributes toAttributes(boolean followLinks) {
+            if (!followLinks) {
+                return new OverthereFileAttributes(lastModified, size, type == 'f', type == 'd', type == 'l', isOther(type));
+            }
+            if (type == 'l') {
+                return null;
+            }
+            return new OverthereFileAttributes(lastModified, size, targetType == 'f', targetType == 'd', false, isOther(targetType));
+        }
+
+        private static boolean isOther(char type) {
+            return type != 'f' && type != 'd' && type != 'l';
+        }
+    }
+}
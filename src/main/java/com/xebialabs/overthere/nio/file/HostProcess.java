@@ -0,0 +1,248 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+
+/**
+ * A process started on the host of an {@link OverthereConnection}, whose output can be consumed as it is produced.
+ * The error output is collected in the background so that a chatty process can never block on a full stderr. The
+ * threads that do so are shared by all processes, as most commands are short and a new thread for each of them would
+ * cost more than the command itself.
+ */
+class HostProcess implements Closeable {
+
+    private static final ExecutorService STDERR_PUMPS = Executors.newCachedThreadPool(OverthereConnectionPool.daemonThreads("overthere-stderr-pump"));
+
+    private final OverthereProcess process;
+    private final BufferedReader stdout;
+    private final StringBuffer stderr = new StringBuffer();
+    private boolean stderrClosed;
+    private OverthereConnectionPool pool;
+    private OverthereConnection connection;
+
+    private HostProcess(final OverthereProcess process) {
+        this.process = process;
+        this.stdout = new BufferedReader(new InputStreamReader(process.getStdout(), Charsets.UTF_8));
+        STDERR_PUMPS.execute(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(process.getStderr(), Charsets.UTF_8));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        synchronized (stderr) {
+                            stderr.append(line).append('\n');
+                            stderr.notifyAll();
+                        }
+                    }
+                } catch (IOException ignored) {
+                    // The process was destroyed
+                } finally {
+                    Closeables.closeQuietly(reader);
+                    synchronized (stderr) {
+                        stderrClosed = true;
+                        stderr.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    static HostProcess start(OverthereConnection connection, CmdLine commandLine) throws IOException {
+        try {
+            return new HostProcess(connection.startProcess(commandLine));
+        } catch (RuntimeIOException e) {
+            throw new IOException("Could not start [" + commandLine + "] on " + connection, e);
+        }
+    }
+
+    /**
+     * Starts a process that keeps running after its connection is released to the pool, such as a listing or a
+     * watch. The pool neither closes nor pings the connection until the process is {@link #close() closed}.
+     */
+    static HostProcess startDetached(OverthereFileSystem fileSystem, OverthereConnection connection, CmdLine commandLine) throws IOException {
+        OverthereConnectionPool pool = fileSystem.getConnectionPool();
+        pool.processStarted(connection);
+        try {
+            HostProcess process = start(connection, commandLine);
+            synchronized (process) {
+                process.pool = pool;
+                process.connection = connection;
+            }
+            return process;
+        } catch (IOException | RuntimeException e) {
+            pool.processStopped(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a command to completion, discarding its standard output.
+     *
+     * @throws IOException if the command exits with a non-zero code.
+     */
+    static void execute(OverthereConnection connection, CmdLine commandLine) throws IOException {
+        HostProcess process = start(connection, commandLine);
+        try {
+            while (process.readLine() != null) {
+                // discard
+            }
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException("[" + commandLine + "] exited with code " + exitCode + ": " + process.getErrorOutput());
+            }
+        } finally {
+            process.close();
+        }
+    }
+
+    /**
+     * Returns the next line of standard output, or {@code null} when the process has closed it.
+     */
+    String readLine() throws IOException {
+        return stdout.readLine();
+    }
+
+    /**
+     * Returns the next record of standard output that ends with a NUL character, such as the entries that
+     * {@code find -printf} prints with {@link FindCommand#ENTRY_FORMAT}, or {@code null} when the process has closed
+     * it. Unlike lines, records may contain newlines.
+     */
+    String readRecord() throws IOException {
+        StringBuilder record = new StringBuilder();
+        int c;
+        while ((c = stdout.read()) >= 0) {
+            if (c == 0) {
+                return record.toString();
+            }
+            record.append((char) c);
+        }
+        return record.length() > 0 ? record.toString() : null;
+    }
+
+    OutputStream getStdin() {
+        return process.getStdin();
+    }
+
+    InputStream getStdout() {
+        return process.getStdout();
+    }
+
+    /**
+     * Returns the standard output as a stream of bytes. Closing it stops the process.
+     */
+    InputStream asInputStream() {
+        return new FilterInputStream(process.getStdout()) {
+            @Override
+            public void close() {
+                HostProcess.this.close();
+            }
+        };
+    }
+
+    /**
+     * Returns the standard input as a stream of bytes. Closing it waits for the process to consume the input and
+     * fails if it did not terminate successfully.
+     */
+    OutputStream asOutputStream() {
+        return new FilterOutputStream(process.getStdin()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    out.close();
+                    int exitCode = waitFor();
+                    if (exitCode != 0) {
+                        throw new IOException("Process exited with code " + exitCode + ": " + getErrorOutput());
+                    }
+                } finally {
+                    HostProcess.this.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Waits for the process to terminate, after its standard output has been consumed.
+     */
+    int waitFor() throws IOException {
+        try {
+            int exitCode = process.waitFor();
+            synchronized (stderr) {
+                while (!stderrClosed) {
+                    stderr.wait();
+                }
+            }
+            return exitCode;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the process to terminate");
+        }
+    }
+
+    String getErrorOutput() {
+        return stderr.toString();
+    }
+
+    /**
+     * Waits until the process writes {@code marker} to its error output.
+     *
+     * @return whether the marker was written before the process closed its error output or the timeout expired.
+     */
+    boolean awaitErrorOutput(String marker, long timeoutMillis) throws InterruptedIOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (stderr) {
+            try {
+                while (stderr.indexOf(marker) < 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (stderrClosed || remaining <= 0) {
+                        return false;
+                    }
+                    stderr.wait(remaining);
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the process");
+            }
+        }
+    }
+
+    /**
+     * Stops the process if it is still running and releases its streams.
+     */
+    @Override
+    public void close() {
+        process.destroy();
+        Closeables.closeQuietly(process.getStdin());
+        Closeables.closeQuietly(stdout);
+        OverthereConnectionPool detachedFrom;
+        synchronized (this) {
+            detachedFrom = pool;
+            pool = null;
+        }
+        if (detachedFrom != null) {
+            detachedFrom.processStopped(connection);
+        }
+    }
+}
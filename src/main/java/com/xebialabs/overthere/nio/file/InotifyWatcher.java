@@ -0,0 +1,168 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Feeds the events of a {@link OverthereWatchKey} from {@code inotifywait -m} running on the host, so that changes are
+ * reported as they happen instead of at the next poll.
+ *
+ * When the process ends while the key is still valid, for instance because the connection dropped, it is restarted
+ * and an {@link java.nio.file.StandardWatchEventKinds#OVERFLOW} event tells that changes may have been missed. The
+ * connection it ran on is discarded first if it turns out to be broken, so that the restart gets a new one. If it
+ * cannot be restarted, the key falls back to polling.
+ */
+class InotifyWatcher implements Runnable, Closeable {
+
+    static final String WATCHES_ESTABLISHED = "Watches established";
+    static final long ESTABLISH_TIMEOUT_MILLIS = 10000;
+    static final long RESTART_DELAY_MILLIS = 1000;
+
+    private final OverthereWatchKey key;
+    private volatile HostProcess process;
+    private volatile OverthereConnection connection;
+    private volatile boolean closed;
+    private Thread thread;
+
+    InotifyWatcher(OverthereWatchKey key) {
+        this.key = key;
+    }
+
+    static CmdLine command(String dir) {
+        return CmdLine.build("inotifywait", "-m", "-e", "create,delete,modify,attrib,moved_from,moved_to,delete_self,move_self,unmount",
+                "--format", "%e %f", dir);
+    }
+
+    /**
+     * Starts watching.
+     *
+     * @return whether the watches were established. If not, the host cannot run {@code inotifywait} for the
+     * directory.
+     */
+    boolean start() throws IOException {
+        process = establish();
+        if (process == null) {
+            return false;
+        }
+        thread = new Thread(this, "overthere-inotify-" + key.watchable());
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private HostProcess establish() throws IOException {
+        OvertherePath dir = key.watchable();
+        OverthereFileSystem fileSystem = dir.getOverthereFileSystem();
+        HostProcess started;
+        OverthereConnection borrowed = fileSystem.borrowConnection();
+        try {
+            started = HostProcess.startDetached(fileSystem, borrowed, command(dir.toString()));
+        } finally {
+            fileSystem.releaseConnection(borrowed);
+        }
+        if (started.awaitErrorOutput(WATCHES_ESTABLISHED, ESTABLISH_TIMEOUT_MILLIS)) {
+            connection = borrowed;
+            return started;
+        }
+        started.close();
+        return null;
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                String line;
+                while ((line = process.readLine()) != null) {
+                    if (!handle(line)) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // The connection dropped, restart below
+            }
+            process.close();
+            if (closed) {
+                return;
+            }
+
+            key.signalOverflow();
+            key.watchable().getOverthereFileSystem().getConnectionPool().discardIfBroken(connection);
+            if (!restart()) {
+                return;
+            }
+        }
+    }
+
+    private boolean restart() {
+        while (!closed) {
+            try {
+                Thread.sleep(RESTART_DELAY_MILLIS);
+                HostProcess restarted = establish();
+                if (restarted == null) {
+                    key.fallBackToPolling();
+                    return false;
+                }
+                process = restarted;
+                if (closed) {
+                    restarted.close();
+                }
+                return true;
+            } catch (InterruptedException e) {
+                return false;
+            } catch (IOException e) {
+                // Try again after the delay
+            } catch (RuntimeException e) {
+                // The host cannot be reached the way the watches need, for instance because reconnecting failed
+                key.fallBackToPolling();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Signals the events of one line of output, formatted as {@code <comma separated events> <name>}.
+     *
+     * @return whether the directory can still be watched.
+     */
+    boolean handle(String line) {
+        int space = line.indexOf(' ');
+        String events = space < 0 ? line : line.substring(0, space);
+        String name = space < 0 ? "" : line.substring(space + 1);
+        for (String event : events.split(",")) {
+            if (event.equals("CREATE") || event.equals("MOVED_TO")) {
+                key.signalEvent(ENTRY_CREATE, name);
+            } else if (event.equals("DELETE") || event.equals("MOVED_FROM")) {
+                key.signalEvent(ENTRY_DELETE, name);
+            } else if (event.equals("MODIFY") || event.equals("ATTRIB")) {
+                if (!name.isEmpty()) {
+                    key.signalEvent(ENTRY_MODIFY, name);
+                }
+            } else if (event.equals("DELETE_SELF") || event.equals("MOVE_SELF") || event.equals("UNMOUNT")) {
+                key.invalidate();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        HostProcess running = process;
+        if (running != null) {
+            running.close();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+        }
+    }
+}
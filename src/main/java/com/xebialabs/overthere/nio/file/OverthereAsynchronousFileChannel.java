@@ -0,0 +1,324 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import com.google.common.util.concurrent.Futures;
+
+import com.xebialabs.overthere.OverthereConnection;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An {@link AsynchronousFileChannel} that runs every read and write as a task on an {@link ExecutorService}.
+ *
+ * Every task opens a stream of its own at its position, on a connection that goes back to the pool as soon as the
+ * stream is open, see {@link OverthereFileSystemProvider#openDetachedInputStream(OvertherePath, long)}. The number of
+ * transfers in flight is bounded by the executor, see {@link OverthereFileSystem#ASYNC_THREADS}, and a task never
+ * waits longer than the {@link OverthereConnectionPool#POOL_BORROW_TIMEOUT} for a connection. Reads fill the buffer
+ * as far as the file allows. Writes at a position other than 0 need a host that allows host commands, see
+ * {@link OverthereFileSystemProvider#openOutputStream(OverthereConnection, OvertherePath, long, boolean)}.
+ *
+ * Remote files cannot be locked, and {@link #force(boolean)} has nothing to do: a write is on the host once its
+ * task completes.
+ */
+class OverthereAsynchronousFileChannel extends AsynchronousFileChannel {
+
+    private final OverthereFileSystemProvider provider;
+    private final OvertherePath path;
+    private final ExecutorService executor;
+    private final boolean readable;
+    private final boolean writable;
+    private volatile boolean open = true;
+
+    OverthereAsynchronousFileChannel(OverthereFileSystemProvider provider, OvertherePath path, Set<? extends OpenOption> options, ExecutorService executor) throws IOException {
+        this.provider = provider;
+        this.path = path;
+        this.executor = executor;
+        checkArgument(!options.contains(StandardOpenOption.APPEND), "APPEND not allowed");
+        this.writable = options.contains(StandardOpenOption.WRITE);
+        this.readable = options.contains(StandardOpenOption.READ) || !writable;
+
+        if (writable) {
+            prepareFile(options);
+        } else if (!Files.exists(path)) {
+            throw new NoSuchFileException(path.toString());
+        }
+    }
+
+    private void prepareFile(Set<? extends OpenOption> options) throws IOException {
+        boolean exists = Files.exists(path);
+        if (options.contains(StandardOpenOption.CREATE_NEW) && exists) {
+            throw new FileAlreadyExistsException(path.toString());
+        }
+        if (!exists && !options.contains(StandardOpenOption.CREATE) && !options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new NoSuchFileException(path.toString());
+        }
+        if (!exists || options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            try {
+                openOutputStream(0, true).close();
+            } finally {
+                path.getOverthereFileSystem().invalidate(path);
+            }
+        }
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        return Files.readAttributes(path, BasicFileAttributes.class).size();
+    }
+
+    @Override
+    public AsynchronousFileChannel truncate(long size) throws IOException {
+        checkOpen();
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+        checkArgument(size >= 0, "Size should not be negative, was %s", size);
+        if (size < size()) {
+            OverthereFileSystem fileSystem = path.getOverthereFileSystem();
+            OverthereConnection connection = fileSystem.borrowConnection();
+            try {
+                provider.truncateFile(connection, path, size);
+            } finally {
+                fileSystem.releaseConnection(connection);
+                fileSystem.invalidate(path);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        checkOpen();
+    }
+
+    @Override
+    public <A> void lock(long position, long size, boolean shared, A attachment, CompletionHandler<FileLock, ? super A> handler) {
+        throw new UnsupportedOperationException("Cannot lock " + path);
+    }
+
+    @Override
+    public Future<FileLock> lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("Cannot lock " + path);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        throw new UnsupportedOperationException("Cannot lock " + path);
+    }
+
+    @Override
+    public <A> void read(ByteBuffer dst, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        complete(readTask(dst, position), attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> read(ByteBuffer dst, long position) {
+        return submit(readTask(dst, position));
+    }
+
+    @Override
+    public <A> void write(ByteBuffer src, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        complete(writeTask(src, position), attachment, handler);
+    }
+
+    @Override
+    public Future<Integer> write(ByteBuffer src, long position) {
+        return submit(writeTask(src, position));
+    }
+
+    private Callable<Integer> readTask(final ByteBuffer dst, final long position) {
+        if (!readable) {
+            throw new NonReadableChannelException();
+        }
+        checkArgument(position >= 0, "Position should not be negative, was %s", position);
+        checkArgument(!dst.isReadOnly(), "Read-only buffer");
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                checkStillOpen();
+                InputStream in = openInputStream(position);
+                try {
+                    return read(in, dst);
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+
+    private Callable<Integer> writeTask(final ByteBuffer src, final long position) {
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+        checkArgument(position >= 0, "Position should not be negative, was %s", position);
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                checkStillOpen();
+                try {
+                    OutputStream out = openOutputStream(position, false);
+                    try {
+                        return write(out, src);
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    path.getOverthereFileSystem().invalidate(path);
+                }
+            }
+        };
+    }
+
+    private InputStream openInputStream(long position) throws IOException {
+        long start = System.nanoTime();
+        InputStream in = null;
+        try {
+            in = provider.openDetachedInputStream(path, position);
+            return in;
+        } finally {
+            path.getOverthereFileSystem().getMetrics().record(OverthereMetrics.Operation.OPEN, start, in != null);
+        }
+    }
+
+    private OutputStream openOutputStream(long position, boolean truncate) throws IOException {
+        long start = System.nanoTime();
+        OutputStream out = null;
+        try {
+            out = provider.openDetachedOutputStream(path, position, truncate);
+            return out;
+        } finally {
+            path.getOverthereFileSystem().getMetrics().record(OverthereMetrics.Operation.OPEN, start, out != null);
+        }
+    }
+
+    private int read(InputStream in, ByteBuffer dst) throws IOException {
+        OverthereMetrics metrics = path.getOverthereFileSystem().getMetrics();
+        byte[] buf = dst.hasArray() ? null : new byte[Math.min(dst.remaining(), OverthereByteChannel.TRANSFER_BUFFER_SIZE)];
+        int total = 0;
+        while (dst.hasRemaining()) {
+            long start = System.nanoTime();
+            int n = -1;
+            boolean succeeded = false;
+            try {
+                if (buf == null) {
+                    n = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                } else {
+                    n = in.read(buf, 0, Math.min(dst.remaining(), buf.length));
+                }
+                succeeded = true;
+            } finally {
+                metrics.record(OverthereMetrics.Operation.READ, start, succeeded);
+            }
+            if (n < 0) {
+                break;
+            }
+            if (buf == null) {
+                dst.position(dst.position() + n);
+            } else {
+                dst.put(buf, 0, n);
+            }
+            total += n;
+        }
+        metrics.bytesRead(total);
+        return total == 0 && dst.hasRemaining() ? -1 : total;
+    }
+
+    private int write(OutputStream out, ByteBuffer src) throws IOException {
+        OverthereMetrics metrics = path.getOverthereFileSystem().getMetrics();
+        int remaining = src.remaining();
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            if (src.hasArray()) {
+                out.write(src.array(), src.arrayOffset() + src.position(), remaining);
+                src.position(src.limit());
+            } else {
+                byte[] buf = new byte[Math.min(remaining, OverthereByteChannel.TRANSFER_BUFFER_SIZE)];
+                while (src.hasRemaining()) {
+                    int length = Math.min(src.remaining(), buf.length);
+                    src.get(buf, 0, length);
+                    out.write(buf, 0, length);
+                }
+            }
+            succeeded = true;
+        } finally {
+            metrics.record(OverthereMetrics.Operation.WRITE, start, succeeded);
+        }
+        metrics.bytesWritten(remaining);
+        return remaining;
+    }
+
+    private <V> Future<V> submit(Callable<V> task) {
+        if (!open) {
+            return Futures.immediateFailedFuture(new ClosedChannelException());
+        }
+        return executor.submit(task);
+    }
+
+    private <V, A> void complete(final Callable<V> task, final A attachment, final CompletionHandler<V, ? super A> handler) {
+        if (!open) {
+            handler.failed(new ClosedChannelException(), attachment);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                V result;
+                try {
+                    result = task.call();
+                } catch (Throwable t) {
+                    handler.failed(t, attachment);
+                    return;
+                }
+                handler.completed(result, attachment);
+            }
+        });
+    }
+
+    /**
+     * Fails the tasks that only start after the channel was closed.
+     */
+    private void checkStillOpen() throws AsynchronousCloseException {
+        if (!open) {
+            throw new AsynchronousCloseException();
+        }
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+    }
+
+}
@@ -0,0 +1,343 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+import com.xebialabs.overthere.OverthereConnection;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A {@link SeekableByteChannel} on top of the streams of an {@link com.xebialabs.overthere.OverthereFile}.
+ *
+ * Changing the position reopens the underlying stream at the new offset through the provider, which only transfers
+ * the bytes from that offset on when the host supports it, see
+ * {@link OverthereFileSystemProvider#openInputStream(OverthereConnection, OvertherePath, long)}. Short forward seeks
+ * skip within the open stream instead.
+ *
+ * The channel does not hold a connection of the pool while it is open. Its streams run on a connection that goes back
+ * to the pool as soon as they are opened, see {@link OverthereFileSystemProvider#openDetachedInputStream(OvertherePath, long)},
+ * and size checks and truncations borrow one for just that call, so that other operations on the file system carry on
+ * while the channel is open.
+ *
+ * Reads and writes go straight to the backing array of heap buffers. Direct buffers are copied through a transfer
+ * buffer that is allocated once per channel, so neither path allocates per call.
+ */
+class OverthereByteChannel implements SeekableByteChannel {
+
+    /**
+     * Forward seeks up to this distance are served by reading past the bytes instead of reopening the stream.
+     */
+    static final long SKIP_THRESHOLD = 64 * 1024;
+
+    /**
+     * Size of the buffer through which direct buffers are copied.
+     */
+    static final int TRANSFER_BUFFER_SIZE = 8 * 1024;
+
+    private final OverthereFileSystemProvider provider;
+    private final OvertherePath path;
+    private final boolean readable;
+    private final boolean writable;
+    private final boolean append;
+
+    private InputStream in;
+    private long inPosition;
+    private OutputStream out;
+    private long outPosition;
+    private long position;
+    private boolean open = true;
+    private byte[] transferBuffer;
+
+    OverthereByteChannel(OverthereFileSystemProvider provider, OvertherePath path, Set<? extends OpenOption> options) throws IOException {
+        this.provider = provider;
+        this.path = path;
+        this.append = options.contains(StandardOpenOption.APPEND);
+        this.writable = append || options.contains(StandardOpenOption.WRITE);
+        this.readable = options.contains(StandardOpenOption.READ) || !writable;
+        checkArgument(!(append && readable), "READ + APPEND not allowed");
+
+        boolean opened = false;
+        try {
+            if (readable) {
+                openInputStream();
+            }
+            if (writable) {
+                openOutputStream(options);
+            }
+            opened = true;
+        } finally {
+            if (!opened) {
+                Closeables.closeQuietly(in);
+            }
+        }
+    }
+
+    private void openOutputStream(Set<? extends OpenOption> options) throws IOException {
+        boolean truncate = options.contains(StandardOpenOption.TRUNCATE_EXISTING) && !append;
+        if (options.contains(StandardOpenOption.CREATE_NEW)) {
+            if (remoteAttributes() != null) {
+                throw new FileAlreadyExistsException(path.toString());
+            }
+            truncate = true;
+        } else if (!options.contains(StandardOpenOption.CREATE) && remoteAttributes() == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+
+        path.getOverthereFileSystem().invalidate(path);
+        position = append ? remoteSize() : 0;
+        openOutputStream(truncate);
+    }
+
+    private void openInputStream() throws IOException {
+        Closeables.closeQuietly(in);
+        in = null;
+        long start = System.nanoTime();
+        try {
+            in = provider.openDetachedInputStream(path, position);
+            inPosition = position;
+        } finally {
+            path.getOverthereFileSystem().getMetrics().record(OverthereMetrics.Operation.OPEN, start, in != null);
+        }
+    }
+
+    private void openOutputStream(boolean truncate) throws IOException {
+        closeOutputStream();
+        long start = System.nanoTime();
+        try {
+            out = provider.openDetachedOutputStream(path, position, truncate);
+            outPosition = position;
+        } finally {
+            path.getOverthereFileSystem().getMetrics().record(OverthereMetrics.Operation.OPEN, start, out != null);
+        }
+    }
+
+    private void closeOutputStream() throws IOException {
+        if (out != null) {
+            OutputStream closing = out;
+            out = null;
+            closing.close();
+            path.getOverthereFileSystem().invalidate(path);
+        }
+    }
+
+    private long remoteSize() throws IOException {
+        BasicFileAttributes attributes = remoteAttributes();
+        return attributes != null ? attributes.size() : 0;
+    }
+
+    /**
+     * Reads the attributes of the file from the host, bypassing the metadata cache.
+     *
+     * @return the attributes, or {@code null} if the file does not exist.
+     */
+    private BasicFileAttributes remoteAttributes() throws IOException {
+        try {
+            return path.getOverthereFileSystem().callIdempotent(OverthereMetrics.Operation.READ_ATTRIBUTES, new OverthereFileSystem.IdempotentCall<BasicFileAttributes>() {
+                @Override
+                public BasicFileAttributes call(OverthereConnection connection) throws IOException {
+                    return provider.fetchAttributes(connection, path, true);
+                }
+            });
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        Closeables.closeQuietly(in);
+        in = null;
+        closeOutputStream();
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        if (!readable) {
+            throw new NonReadableChannelException();
+        }
+        // Wait for the writes to land, as the bytes are read back through another stream
+        closeOutputStream();
+        seekInputStream();
+
+        OverthereMetrics metrics = path.getOverthereFileSystem().getMetrics();
+        long start = System.nanoTime();
+        int bytesRead = -1;
+        boolean succeeded = false;
+        try {
+            bytesRead = readInputStream(dst);
+            succeeded = true;
+        } finally {
+            metrics.record(OverthereMetrics.Operation.READ, start, succeeded);
+        }
+        if (bytesRead > 0) {
+            position += bytesRead;
+            inPosition += bytesRead;
+            metrics.bytesRead(bytesRead);
+        }
+        return bytesRead;
+    }
+
+    private int readInputStream(ByteBuffer dst) throws IOException {
+        int bytesRead;
+        if (dst.hasArray()) {
+            bytesRead = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (bytesRead > 0) {
+                dst.position(dst.position() + bytesRead);
+            }
+        } else {
+            byte[] buf = transferBuffer();
+            bytesRead = in.read(buf, 0, Math.min(dst.remaining(), buf.length));
+            if (bytesRead > 0) {
+                dst.put(buf, 0, bytesRead);
+            }
+        }
+        return bytesRead;
+    }
+
+    private byte[] transferBuffer() {
+        if (transferBuffer == null) {
+            transferBuffer = new byte[TRANSFER_BUFFER_SIZE];
+        }
+        return transferBuffer;
+    }
+
+    private void seekInputStream() throws IOException {
+        if (in != null && inPosition == position) {
+            return;
+        }
+        long distance = position - inPosition;
+        if (in != null && distance > 0 && distance <= SKIP_THRESHOLD) {
+            ByteStreams.skipFully(in, distance);
+            inPosition = position;
+        } else {
+            openInputStream();
+        }
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+        if (append) {
+            position = outPosition;
+        }
+        if (out == null || outPosition != position) {
+            openOutputStream(false);
+        }
+
+        int remaining = src.remaining();
+        OverthereMetrics metrics = path.getOverthereFileSystem().getMetrics();
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            writeOutputStream(src);
+            succeeded = true;
+        } finally {
+            metrics.record(OverthereMetrics.Operation.WRITE, start, succeeded);
+        }
+        metrics.bytesWritten(remaining);
+        position += remaining;
+        outPosition += remaining;
+        if (in != null) {
+            // The open input stream may have buffered the bytes that were just overwritten
+            Closeables.closeQuietly(in);
+            in = null;
+        }
+        return remaining;
+    }
+
+    private void writeOutputStream(ByteBuffer src) throws IOException {
+        if (src.hasArray()) {
+            out.write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+        } else {
+            byte[] buf = transferBuffer();
+            while (src.hasRemaining()) {
+                int length = Math.min(src.remaining(), buf.length);
+                src.get(buf, 0, length);
+                out.write(buf, 0, length);
+            }
+        }
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        checkOpen();
+        checkArgument(newPosition >= 0, "Position should not be negative, was %s", newPosition);
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        checkOpen();
+        closeOutputStream();
+        return remoteSize();
+    }
+
+    @Override
+    public synchronized SeekableByteChannel truncate(long size) throws IOException {
+        checkOpen();
+        if (!writable) {
+            throw new NonWritableChannelException();
+        }
+        checkArgument(size >= 0, "Size should not be negative, was %s", size);
+        closeOutputStream();
+        if (size < remoteSize()) {
+            OverthereFileSystem fileSystem = path.getOverthereFileSystem();
+            OverthereConnection connection = fileSystem.borrowConnection();
+            try {
+                provider.truncateFile(connection, path, size);
+            } finally {
+                fileSystem.releaseConnection(connection);
+                fileSystem.invalidate(path);
+            }
+        }
+        if (position > size) {
+            position = size;
+        }
+        if (append) {
+            openOutputStream(false);
+        }
+        return this;
+    }
+}
@@ -0,0 +1,557 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.ClosedFileSystemException;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.io.Closeables;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.RuntimeIOException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Sets.newSetFromMap;
+
+/**
+ * A bounded pool of {@link OverthereConnection}s to the host of a single {@link OverthereFileSystem}, so that
+ * threads working on the same file system do not all queue up behind one session.
+ *
+ * The size of the pool is configured with the {@link #POOL_MIN_SIZE} and {@link #POOL_MAX_SIZE} options, which can
+ * be passed in the environment of {@link java.nio.file.FileSystems#newFileSystem(java.net.URI, java.util.Map)} or in
+ * the query of the file system URI. The default is a single connection, like a plain {@link OverthereConnection}.
+ *
+ * A connection is lent to one borrower at a time, for the duration of a single operation. A pool of 1 therefore
+ * serializes all operations on the file system: each one waits for the one before it to release the connection.
+ * Streams, listings and other processes keep running on a connection after it was released, next to whatever the
+ * following borrowers do with it, so an open stream never holds up other operations. A borrower that waits longer
+ * than {@link #POOL_BORROW_TIMEOUT} fails, rather than hanging forever on a pool that cannot serve it.
+ *
+ * Connections that have been idle for {@link #POOL_IDLE_TIMEOUT} are closed, and the pool opens new ones when it is
+ * used again, so that a process that touches many hosts only keeps sessions to the busy ones. Idle connections can
+ * also be kept alive with a cheap round trip every {@link #POOL_KEEP_ALIVE_INTERVAL}, which closes them as soon as
+ * they turn out to be broken instead of at their next use. A connection on which a process that was started through
+ * it is still running, such as a directory listing, a watch or a tar stream, counts as busy: it is neither closed
+ * nor pinged until the process stops.
+ */
+public class OverthereConnectionPool implements Closeable {
+
+    /**
+     * Number of connections that are opened when the file system is created. Defaults to 1.
+     */
+    public static final String POOL_MIN_SIZE = "poolMinSize";
+
+    /**
+     * Whether the file system is created without connecting, so that it connects on first use. Defaults to
+     * {@code false}. See {@link OverthereFileSystems#openAll(java.util.Collection, java.util.Map, int)} to connect
+     * many file systems at once.
+     */
+    public static final String LAZY_CONNECT = "lazyConnect";
+
+    /**
+     * Maximum number of connections that are open at the same time. Defaults to the minimum size.
+     */
+    public static final String POOL_MAX_SIZE = "poolMaxSize";
+
+    /**
+     * Milliseconds to wait for a connection when all of them are borrowed, after which borrowing fails with an
+     * {@link IOException}. Defaults to 60000.
+     */
+    public static final String POOL_BORROW_TIMEOUT = "poolBorrowTimeout";
+
+    /**
+     * Milliseconds after which an idle connection is closed. The primary connection is only closed once it has not
+     * been {@link #getPrimaryConnection() used} for as long either. Defaults to 0, which keeps connections open until
+     * the file system is closed.
+     */
+    public static final String POOL_IDLE_TIMEOUT = "poolIdleTimeout";
+
+    /**
+     * Milliseconds between round trips on an idle connection, see
+     * {@link OverthereFileSystemProvider#keepAlive(OverthereConnection)}. Defaults to 0, which sends none.
+     */
+    public static final String POOL_KEEP_ALIVE_INTERVAL = "poolKeepAliveInterval";
+
+    /**
+     * Milliseconds after which a keep-alive round trip that got no answer counts as failed, which closes the
+     * connection. Defaults to 10000.
+     */
+    public static final String POOL_KEEP_ALIVE_TIMEOUT = "poolKeepAliveTimeout";
+
+    /**
+     * Maximum number of processes, such as directory listings, that keep running on one connection after it was
+     * released. Every such process holds a session channel of its own, and sshd refuses more than its
+     * {@code MaxSessions}, 10 by default, per connection, which the connection itself also counts against. Listings
+     * beyond the maximum are read completely before their connection is released. Defaults to 8.
+     */
+    public static final String POOL_MAX_RUNNING_PROCESSES = "poolMaxRunningProcesses";
+
+    private static ScheduledExecutorService maintainer;
+    private static ExecutorService pinger;
+
+    private final OverthereFileSystemProvider provider;
+    private final ConnectionOptions options;
+    private final OverthereMetrics metrics;
+
+    private final BlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<IdleConnection>();
+    private final Set<OverthereConnection> connections = newSetFromMap(new ConcurrentHashMap<OverthereConnection, Boolean>());
+    private final ConcurrentMap<OverthereConnection, RunningProcesses> runningProcesses = new ConcurrentHashMap<OverthereConnection, RunningProcesses>();
+    private final Semaphore permits;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutNanos;
+    private final long keepAliveNanos;
+    private final long keepAliveTimeoutMillis;
+    private final int maxRunningProcesses;
+    private final ScheduledFuture<?> maintenance;
+
+    private volatile OverthereConnection primary;
+    private volatile long primaryUsedAt = System.nanoTime();
+    private volatile boolean closed;
+
+    OverthereConnectionPool(OverthereFileSystemProvider provider, ConnectionOptions options) {
+        this(provider, options, new OverthereMetrics());
+    }
+
+    OverthereConnectionPool(OverthereFileSystemProvider provider, ConnectionOptions options, OverthereMetrics metrics) {
+        this.provider = provider;
+        this.options = options;
+        this.metrics = metrics;
+        int minSize = options.getInteger(POOL_MIN_SIZE, 1);
+        this.maxSize = options.getInteger(POOL_MAX_SIZE, Math.max(minSize, 1));
+        checkArgument(minSize >= 1, "%s should be at least 1, was %s", POOL_MIN_SIZE, minSize);
+        checkArgument(maxSize >= minSize, "%s (%s) should not be smaller than %s (%s)", POOL_MAX_SIZE, maxSize, POOL_MIN_SIZE, minSize);
+        this.permits = new Semaphore(maxSize, true);
+        this.borrowTimeoutMillis = options.getInteger(POOL_BORROW_TIMEOUT, 60000);
+        long idleTimeout = options.getInteger(POOL_IDLE_TIMEOUT, 0);
+        long keepAliveInterval = options.getInteger(POOL_KEEP_ALIVE_INTERVAL, 0);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        this.keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(keepAliveInterval);
+        this.keepAliveTimeoutMillis = options.getInteger(POOL_KEEP_ALIVE_TIMEOUT, 10000);
+        this.maxRunningProcesses = options.getInteger(POOL_MAX_RUNNING_PROCESSES, 8);
+
+        if (!options.getBoolean(LAZY_CONNECT, false)) {
+            try {
+                for (int i = 0; i < minSize; i++) {
+                    idle.addLast(new IdleConnection(createConnection()));
+                }
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        long period = Math.min(idleTimeout > 0 ? Math.max(idleTimeout / 2, 1) : Long.MAX_VALUE, keepAliveInterval > 0 ? keepAliveInterval : Long.MAX_VALUE);
+        if (period == Long.MAX_VALUE) {
+            this.maintenance = null;
+        } else {
+            this.maintenance = getMaintainer().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    maintain();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the single thread that evicts and keeps alive the idle connections of all pools, so that the number of
+     * threads does not grow with the number of hosts.
+     */
+    private static synchronized ScheduledExecutorService getMaintainer() {
+        if (maintainer == null) {
+            maintainer = Executors.newSingleThreadScheduledExecutor(daemonThreads("overthere-pool-maintainer"));
+        }
+        return maintainer;
+    }
+
+    /**
+     * Returns the threads that make the keep-alive round trips, so that a host that does not answer only holds up
+     * its own connection and not the maintenance of every pool.
+     */
+    private static synchronized ExecutorService getPinger() {
+        if (pinger == null) {
+            pinger = Executors.newCachedThreadPool(daemonThreads("overthere-pool-keep-alive"));
+        }
+        return pinger;
+    }
+
+    static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private OverthereConnection createConnection() {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            OverthereConnection connection = provider.getConnection(options);
+            connections.add(connection);
+            if (maxSize == 1) {
+                // The only connection is shared with the users of the primary connection
+                primary = connection;
+            }
+            succeeded = true;
+            return connection;
+        } finally {
+            metrics.record(OverthereMetrics.Operation.CONNECT, start, succeeded);
+        }
+    }
+
+    /**
+     * Takes a connection out of the pool, opening a new one if none is idle and the maximum size has not been
+     * reached yet, or waiting for another thread to {@link #release(OverthereConnection) release} one otherwise.
+     *
+     * @throws IOException if no connection was released within the {@link #POOL_BORROW_TIMEOUT}.
+     */
+    public OverthereConnection borrow() throws IOException {
+        checkOpen();
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            metrics.record(OverthereMetrics.Operation.BORROW, start, false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+        metrics.record(OverthereMetrics.Operation.BORROW, start, acquired);
+        if (!acquired) {
+            throw new IOException("Timed out after " + borrowTimeoutMillis + " ms waiting for a connection, all " + maxSize + " of them are borrowed");
+        }
+
+        try {
+            checkOpen();
+            IdleConnection entry = idle.pollFirst();
+            return entry != null ? entry.connection : createConnection();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a connection obtained from {@link #borrow()} back to the pool. A connection that was closed in the
+     * meantime, because it turned out to be broken, is not handed out again.
+     */
+    public void release(OverthereConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        if (closed || !connections.contains(connection)) {
+            Closeables.closeQuietly(connection);
+        } else {
+            idle.offerFirst(new IdleConnection(connection));
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes a connection obtained from {@link #borrow()} that turned out to be broken, instead of handing it back.
+     * The next borrower gets a new connection.
+     */
+    public void discard(OverthereConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        closeConnection(connection);
+        permits.release();
+    }
+
+    /**
+     * Closes a connection that was released while a process kept running on it, once that process ended because the
+     * connection broke and the host does not answer a round trip on it either, so that the next borrower does not get
+     * the same broken session. A thread that still uses it gets failures from it, and it is not handed out again.
+     */
+    void discardIfBroken(OverthereConnection connection) {
+        if (!connections.contains(connection) || isAlive(connection)) {
+            return;
+        }
+        for (IdleConnection entry : idle) {
+            if (entry.connection == connection) {
+                idle.remove(entry);
+            }
+        }
+        synchronized (this) {
+            boolean heldPermit = connection == primary && maxSize > 1;
+            closeConnection(connection);
+            if (heldPermit) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Records that a process that was started on a connection keeps running after the connection is released, so
+     * that the connection is neither closed nor pinged while it runs. Every call is matched by a call to
+     * {@link #processStopped(OverthereConnection)}.
+     */
+    void processStarted(OverthereConnection connection) {
+        RunningProcesses running = runningProcesses.get(connection);
+        if (running == null) {
+            RunningProcesses created = new RunningProcesses();
+            running = runningProcesses.putIfAbsent(connection, created);
+            if (running == null) {
+                running = created;
+            }
+        }
+        running.count.incrementAndGet();
+    }
+
+    void processStopped(OverthereConnection connection) {
+        RunningProcesses running = runningProcesses.get(connection);
+        if (running != null) {
+            running.stoppedAt = System.nanoTime();
+            running.count.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of processes that were started on a connection and are still running.
+     */
+    int getRunningProcesses(OverthereConnection connection) {
+        RunningProcesses running = runningProcesses.get(connection);
+        return running != null ? running.count.get() : 0;
+    }
+
+    /**
+     * Returns whether another process can keep running on a connection, see {@link #POOL_MAX_RUNNING_PROCESSES}.
+     */
+    boolean canStartProcess(OverthereConnection connection) {
+        return getRunningProcesses(connection) < maxRunningProcesses;
+    }
+
+    private void closeConnection(OverthereConnection connection) {
+        connections.remove(connection);
+        runningProcesses.remove(connection);
+        if (primary == connection) {
+            primary = null;
+        }
+        Closeables.closeQuietly(connection);
+    }
+
+    /**
+     * Returns the family of the host operating system, which every connection knows without a round trip. It is taken
+     * from any open connection, so that it needs no permit and can be called by a thread that borrowed the last one.
+     */
+    OperatingSystemFamily getHostOperatingSystem() throws IOException {
+        for (OverthereConnection connection : connections) {
+            return connection.getHostOperatingSystem();
+        }
+        OverthereConnection connection = borrow();
+        try {
+            return connection.getHostOperatingSystem();
+        } finally {
+            release(connection);
+        }
+    }
+
+    /**
+     * A connection for callers that use it directly rather than borrowing, for instance to execute commands. It is
+     * shared by all these callers and counts against {@link #POOL_MAX_SIZE}. A pool of more than one connection takes
+     * it out of the pool, so that it is never lent to a borrower at the same time; a pool of 1 shares its only
+     * connection with the borrowers, like a plain {@link OverthereConnection}. It is handed back once it has not been
+     * used for {@link #POOL_IDLE_TIMEOUT}, and taken again when it is needed.
+     */
+    public OverthereConnection getPrimaryConnection() {
+        if (closed) {
+            return null;
+        }
+        primaryUsedAt = System.nanoTime();
+        OverthereConnection connection = primary;
+        return connection != null ? connection : takePrimary();
+    }
+
+    private synchronized OverthereConnection takePrimary() {
+        if (primary == null && !closed) {
+            try {
+                OverthereConnection connection = borrow();
+                if (maxSize == 1) {
+                    release(connection);
+                }
+                primary = connection;
+            } catch (IOException e) {
+                throw new RuntimeIOException(e);
+            }
+        }
+        return primary;
+    }
+
+    /**
+     * Closes the connections that have been idle for too long, and starts a round trip on the ones that are due for
+     * a keep-alive. Connections on which processes are running are left alone.
+     */
+    void maintain() {
+        long now = System.nanoTime();
+        if (maxSize > 1 && idleTimeoutNanos > 0 && now - primaryUsedAt >= idleTimeoutNanos) {
+            handBackPrimary(now);
+        }
+        for (final IdleConnection entry : idle) {
+            RunningProcesses running = runningProcesses.get(entry.connection);
+            if (running != null && running.count.get() > 0) {
+                continue;
+            }
+            long idleSince = running != null ? Math.max(entry.since, running.stoppedAt) : entry.since;
+            if (idleTimeoutNanos > 0 && now - idleSince >= idleTimeoutNanos
+                    && (entry.connection != primary || now - primaryUsedAt >= idleTimeoutNanos)) {
+                if (idle.remove(entry)) {
+                    closeConnection(entry.connection);
+                }
+            } else if (keepAliveNanos > 0 && now - entry.checkedAt >= keepAliveNanos && permits.tryAcquire()) {
+                if (idle.remove(entry)) {
+                    getPinger().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                keepAlive(entry);
+                            } finally {
+                                permits.release();
+                            }
+                        }
+                    });
+                } else {
+                    permits.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the primary connection of a pool of more than one connection, and gives up the permit it held.
+     */
+    private synchronized void handBackPrimary(long now) {
+        OverthereConnection connection = primary;
+        if (connection == null || closed || now - primaryUsedAt < idleTimeoutNanos || getRunningProcesses(connection) > 0) {
+            return;
+        }
+        closeConnection(connection);
+        permits.release();
+    }
+
+    private void keepAlive(IdleConnection entry) {
+        if (!isAlive(entry.connection)) {
+            // A new connection is opened when one is needed
+            closeConnection(entry.connection);
+            return;
+        }
+        entry.checkedAt = System.nanoTime();
+        if (closed) {
+            Closeables.closeQuietly(entry.connection);
+        } else {
+            idle.offerLast(entry);
+        }
+    }
+
+    /**
+     * Makes a {@link OverthereFileSystemProvider#keepAlive(OverthereConnection) round trip} on a connection.
+     *
+     * @return whether the host answered within the {@link #POOL_KEEP_ALIVE_TIMEOUT}.
+     */
+    boolean isAlive(final OverthereConnection connection) {
+        Future<?> roundTrip = getPinger().submit(new Runnable() {
+            @Override
+            public void run() {
+                provider.keepAlive(connection);
+            }
+        });
+        try {
+            roundTrip.get(keepAliveTimeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException broken) {
+            return false;
+        } catch (TimeoutException hung) {
+            roundTrip.cancel(true);
+            return false;
+        } catch (InterruptedException e) {
+            roundTrip.cancel(true);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of connections that are open, idle or borrowed.
+     */
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    /**
+     * Returns the number of connections that are currently borrowed.
+     */
+    public int getBorrowedConnections() {
+        return maxSize - permits.availablePermits();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    /**
+     * Closes all connections of this pool, including the ones that are currently borrowed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (maintenance != null) {
+            maintenance.cancel(false);
+        }
+        for (OverthereConnection connection : connections) {
+            Closeables.closeQuietly(connection);
+        }
+        connections.clear();
+        runningProcesses.clear();
+        idle.clear();
+        primary = null;
+    }
+
+    private static class RunningProcesses {
+        final AtomicInteger count = new AtomicInteger();
+        volatile long stoppedAt = System.nanoTime();
+    }
+
+    private static class IdleConnection {
+        final OverthereConnection connection;
+        final long since;
+        long checkedAt;
+
+        IdleConnection(OverthereConnection connection) {
+            this.connection = connection;
+            this.since = System.nanoTime();
+            this.checkedAt = since;
+        }
+    }
+}
@@ -6,30 +6,45 @@ import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.List;
 
-import com.google.common.base.Function;
 import com.google.common.base.Predicate;
-import com.google.common.collect.Iterables;
-
-import com.xebialabs.overthere.OverthereFile;
-
-import static com.google.common.collect.Lists.transform;
-
+import com.google.common.collect.Iterators;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A listing of a directory. Entries are read from the host while the stream is iterated, and the returned paths carry
+ * the attributes that the listing read along with them, when the provider could read them in the same remote call,
+ * so that visiting them does not cost another round trip. Closing the stream stops a listing that is still running.
+ *
+ * The glob of {@link java.nio.file.Files#newDirectoryStream(Path, String)} is passed on to the host's {@code find},
+ * so that only the matching names are sent back, see {@link OverthereGlob#of(Filter, OverthereFileSystem)}.
+ */
 public class OverthereDirectoryStream implements DirectoryStream<Path> {
 
-    private Iterable<Path> paths;
+    private final DirectoryListing listing;
+    private final Filter<? super Path> filter;
+    private boolean iteratorReturned;
+    private boolean closed;
 
-    public OverthereDirectoryStream(final OvertherePath dir, final Filter<? super Path> filter) {
-        initEntries(dir, filter);
+    public OverthereDirectoryStream(final OvertherePath dir, final Filter<? super Path> filter) throws IOException {
+        this(dir, filter, null);
     }
 
-    private void initEntries(final OvertherePath dir, final Filter<? super Path> filter) {
-        List<OverthereFile> overthereFiles = dir.getOverthereFile().listFiles();
-        paths = Iterables.filter(transform(overthereFiles, new Function<OverthereFile, Path>() {
-            @Override
-            public Path apply(final OverthereFile input) {
-                return new OvertherePath(dir.getOverthereFileSystem(), input.getPath());
-            }
-        }), new Predicate<Path>() {
+    /**
+     * Creates a stream whose listing may already leave out the entries whose names match none of
+     * {@code namePatterns}. The filter still decides which entries are returned.
+     */
+    OverthereDirectoryStream(final OvertherePath dir, final Filter<? super Path> filter, List<String> namePatterns) throws IOException {
+        this.listing = DirectoryListing.open((OverthereFileSystemProvider) dir.getFileSystem().provider(), dir, namePatterns);
+        this.filter = filter;
+    }
+
+    @Override
+    public synchronized Iterator<Path> iterator() {
+        checkState(!closed, "Directory stream is closed");
+        checkState(!iteratorReturned, "Iterator has already been returned");
+        iteratorReturned = true;
+        return Iterators.filter(listing, new Predicate<Path>() {
             public boolean apply(final Path input) {
                 try {
                     return filter.accept(input);
@@ -41,12 +56,8 @@ public class OverthereDirectoryStream implements DirectoryStream<Path> {
     }
 
     @Override
-    public Iterator<Path> iterator() {
-        return paths.iterator();
-    }
-
-    @Override
-    public void close() throws IOException {
-        // no-op
+    public synchronized void close() throws IOException {
+        closed = true;
+        listing.close();
     }
 }
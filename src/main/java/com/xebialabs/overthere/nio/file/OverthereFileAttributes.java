@@ -5,16 +5,47 @@ import java.nio.file.attribute.FileTime;
 
 import com.xebialabs.overthere.OverthereFile;
 
+/**
+ * An immutable snapshot of the basic attributes of a file, taken at the moment it was read.
+ */
 public class OverthereFileAttributes implements BasicFileAttributes {
-    private OverthereFile file;
+    private final long lastModified;
+    private final long size;
+    private final boolean regularFile;
+    private final boolean directory;
+    private final boolean symbolicLink;
+    private final boolean other;
 
+    public OverthereFileAttributes(long lastModified, long size, boolean regularFile, boolean directory, boolean symbolicLink, boolean other) {
+        this.lastModified = lastModified;
+        this.size = size;
+        this.regularFile = regularFile;
+        this.directory = directory;
+        this.symbolicLink = symbolicLink;
+        this.other = other;
+    }
+
+    /**
+     * Takes a snapshot of a file through its {@link OverthereFile} accessors. This costs one call per attribute, so
+     * providers that can fetch all attributes at once should prefer that.
+     *
+     * @deprecated reads the time and size of a file that may not exist; read the attributes through
+     * {@link java.nio.file.Files#readAttributes(java.nio.file.Path, Class, java.nio.file.LinkOption...)}, or take
+     * them with {@link #OverthereFileAttributes(long, long, boolean, boolean, boolean, boolean)}.
+     */
+    @Deprecated
     public OverthereFileAttributes(final OverthereFile file) {
-        this.file = file;
+        this.regularFile = file.isFile();
+        this.directory = !regularFile && file.isDirectory();
+        this.lastModified = file.lastModified();
+        this.size = file.length();
+        this.symbolicLink = false;
+        this.other = false;
     }
 
     @Override
     public FileTime lastModifiedTime() {
-        return FileTime.fromMillis(file.lastModified());
+        return FileTime.fromMillis(lastModified);
     }
 
     @Override
@@ -29,28 +60,27 @@ public class OverthereFileAttributes implements BasicFileAttributes {
 
     @Override
     public boolean isRegularFile() {
-        return file.isFile();
+        return regularFile;
     }
 
     @Override
     public boolean isDirectory() {
-        return file.isDirectory();
+        return directory;
     }
 
     @Override
     public boolean isSymbolicLink() {
-        // TODO
-        return false;
+        return symbolicLink;
     }
 
     @Override
     public boolean isOther() {
-        return false;
+        return other;
     }
 
     @Override
     public long size() {
-        return file.length();
+        return size;
     }
 
     @Override
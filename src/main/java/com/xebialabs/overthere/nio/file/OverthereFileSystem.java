@@ -3,32 +3,124 @@ package com.xebialabs.overthere.nio.file;
 import static java.util.Collections.singleton;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.SocketException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.io.Closeables;
 
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.OverthereProcessOutputHandler;
+import com.xebialabs.overthere.RuntimeIOException;
 
 public class OverthereFileSystem extends FileSystem {
 
+    /**
+     * Number of threads that run the tasks of the asynchronous file channels that are opened without an executor, see
+     * {@link OverthereFileSystemProvider#newAsynchronousFileChannel}. Defaults to the maximum size of the connection
+     * pool.
+     */
+    public static final String ASYNC_THREADS = "asyncThreads";
+
     private OverthereFileSystemProvider provider;
 
-    private OverthereConnection connection;
+    private OverthereConnectionPool connectionPool;
+    private OverthereMetadataCache metadataCache;
     private URI uri;
+    private ConnectionOptions options;
+    private WatchPoller watchPoller;
+    private ExecutorService asyncExecutor;
+    private final OverthereMetrics metrics = new OverthereMetrics();
+    private ObjectName metricsName;
+
+    private volatile boolean findSupported = true;
+
+    /**
+     * Whether the host has {@code tar}, or {@code null} until that was checked.
+     */
+    private volatile Boolean tarSupported;
 
-    public OverthereFileSystem(OverthereFileSystemProvider provider, OverthereConnection connection, final URI uri) {
+    private volatile String separator;
+    private Splitter pathSplitter;
+    private Joiner pathJoiner;
+
+    private final Interner<String> names = Interners.newWeakInterner();
+    private final OvertherePath emptyPath = new OvertherePath(this, false);
+    private final OvertherePath rootPath = new OvertherePath(this, true);
+
+    public OverthereFileSystem(OverthereFileSystemProvider provider, final URI uri, ConnectionOptions options) {
         this.provider = provider;
-        this.connection = connection;
         this.uri = uri;
+        this.options = options;
+        this.metadataCache = new OverthereMetadataCache(options);
+        this.connectionPool = new OverthereConnectionPool(provider, options, metrics);
+        registerMetrics();
+    }
+
+    /**
+     * Publishes the metrics over JMX. A file system whose name is already taken, for instance by another provider
+     * instance for the same URI, is not published.
+     */
+    private void registerMetrics() {
+        try {
+            ObjectName name = new ObjectName("com.xebialabs.overthere.nio:type=OverthereFileSystem,uri=" + ObjectName.quote(publicUri()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException ignored) {
+            // Not published
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(metricsName);
+            } catch (JMException ignored) {
+                // Already gone
+            }
+            metricsName = null;
+        }
+    }
+
+    /**
+     * Returns the URI without a password or query, which may hold credentials too.
+     */
+    private String publicUri() {
+        String userInfo = uri.getUserInfo();
+        if (userInfo != null && userInfo.indexOf(':') >= 0) {
+            userInfo = userInfo.substring(0, userInfo.indexOf(':'));
+        }
+        try {
+            return new URI(uri.getScheme(), userInfo, uri.getHost(), uri.getPort(), uri.getPath(), null, null).toString();
+        } catch (URISyntaxException e) {
+            return uri.getScheme() + ":" + uri.getHost();
+        }
     }
 
     @Override
@@ -38,14 +130,23 @@ public class OverthereFileSystem extends FileSystem {
 
     @Override
     public void close() throws IOException {
-        Closeables.closeQuietly(connection);
-        connection = null;
-        provider.cache.remove(uri);
+        synchronized (this) {
+            if (watchPoller != null) {
+                watchPoller.close();
+            }
+            if (asyncExecutor != null) {
+                asyncExecutor.shutdown();
+            }
+        }
+        Closeables.closeQuietly(connectionPool);
+        metadataCache.invalidateAll();
+        unregisterMetrics();
+        provider.unregister(this);
     }
 
     @Override
     public boolean isOpen() {
-        return connection != null;
+        return !connectionPool.isClosed();
     }
 
     @Override
@@ -55,7 +156,48 @@ public class OverthereFileSystem extends FileSystem {
 
     @Override
     public String getSeparator() {
-        return connection.getHostOperatingSystem().getFileSeparator();
+        String sep = separator;
+        if (sep == null) {
+            initSeparator();
+            sep = separator;
+        }
+        return sep;
+    }
+
+    /**
+     * Asks the host operating system for its separator once, as every path that is created or printed needs it.
+     */
+    private synchronized void initSeparator() {
+        if (separator == null) {
+            String sep;
+            try {
+                sep = connectionPool.getHostOperatingSystem().getFileSeparator();
+            } catch (IOException e) {
+                throw new RuntimeIOException(e);
+            }
+            pathSplitter = Splitter.on(sep).omitEmptyStrings();
+            pathJoiner = Joiner.on(sep).skipNulls();
+            separator = sep;
+        }
+    }
+
+    /**
+     * Returns the path without names that relative paths, or absolute paths, start from.
+     */
+    OvertherePath getEmptyPath(boolean absolute) {
+        return absolute ? rootPath : emptyPath;
+    }
+
+    /**
+     * Returns the one instance of a path name that all paths of this file system share.
+     */
+    String intern(String name) {
+        return names.intern(name);
+    }
+
+    Splitter getPathSplitter() {
+        getSeparator();
+        return pathSplitter;
     }
 
     @Override
@@ -79,19 +221,30 @@ public class OverthereFileSystem extends FileSystem {
 
     @Override
     public Path getPath(String first, String... more) {
-        String sep = getSeparator();
-        StringBuilder path = new StringBuilder();
-        path.append(first);
-        if (more.length > 0) {
-            path.append(sep);
-            Joiner.on(sep).skipNulls().appendTo(path, more);
+        if (more.length == 0) {
+            return new OvertherePath(this, first);
         }
+        StringBuilder path = new StringBuilder();
+        path.append(first).append(getSeparator());
+        pathJoiner.appendTo(path, more);
         return new OvertherePath(this, path.toString());
     }
 
     @Override
     public PathMatcher getPathMatcher(String syntaxAndPattern) {
-        throw new UnsupportedOperationException();
+        int colon = syntaxAndPattern.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected syntax:pattern but got [" + syntaxAndPattern + "]");
+        }
+        String syntax = syntaxAndPattern.substring(0, colon);
+        String pattern = syntaxAndPattern.substring(colon + 1);
+        if (syntax.equalsIgnoreCase("glob")) {
+            return OverthereGlob.compile(pattern, getSeparator().charAt(0));
+        }
+        if (syntax.equalsIgnoreCase("regex")) {
+            return new OverthereRegexMatcher(pattern);
+        }
+        throw new UnsupportedOperationException("Syntax [" + syntax + "] is not supported");
     }
 
     @Override
@@ -101,14 +254,205 @@ public class OverthereFileSystem extends FileSystem {
 
     @Override
     public WatchService newWatchService() throws IOException {
-        throw new UnsupportedOperationException();
+        return new OverthereWatchService(this, getWatchPoller());
+    }
+
+    private synchronized WatchPoller getWatchPoller() {
+        if (watchPoller == null) {
+            watchPoller = new WatchPoller(this, options.getInteger(OverthereWatchService.POLL_INTERVAL, OverthereWatchService.POLL_INTERVAL_DEFAULT));
+        }
+        return watchPoller;
     }
 
+    /**
+     * Returns the thread pool that runs the tasks of the asynchronous channels that were opened without an executor.
+     */
+    synchronized ExecutorService getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            int threads = options.getInteger(ASYNC_THREADS, connectionPool.getMaxSize());
+            asyncExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "overthere-async-" + getUri() + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Returns the primary connection of this file system, see {@link OverthereConnectionPool#getPrimaryConnection()}.
+     * In a pool of more than one connection it is taken out of the pool, until it has been idle for the
+     * {@link OverthereConnectionPool#POOL_IDLE_TIMEOUT}. File operations should {@link #borrowConnection() borrow} a
+     * connection from the pool instead, so that they can run in parallel.
+     */
     public OverthereConnection getConnection() {
-        return connection;
+        return connectionPool.getPrimaryConnection();
+    }
+
+    public OverthereConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Returns the counts and latencies of the operations on this file system.
+     */
+    public OverthereMetrics getMetrics() {
+        return metrics;
+    }
+
+    public OverthereMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Drops whatever the metadata cache knows about a path, for instance after it was changed on the host by other
+     * means than this file system.
+     */
+    public void invalidate(Path path) {
+        metadataCache.invalidate(path);
+    }
+
+    /**
+     * Drops whatever the metadata cache knows about a directory and everything below it.
+     */
+    public void invalidateTree(Path dir) {
+        metadataCache.invalidateTree(dir);
+    }
+
+    /**
+     * Runs a command on the host to completion, on a connection that is borrowed from the pool for as long as the
+     * command runs.
+     *
+     * @return the exit code of the command.
+     */
+    public int execute(OverthereProcessOutputHandler handler, CmdLine commandLine) throws IOException {
+        OverthereConnection connection = borrowConnection();
+        try {
+            return connection.execute(handler, commandLine);
+        } finally {
+            releaseConnection(connection);
+        }
+    }
+
+    /**
+     * Starts a long running process on the host. Its connection goes back to the pool as soon as the process is
+     * started, but the pool neither closes nor pings that connection until the process has terminated or was
+     * destroyed.
+     */
+    public OverthereProcess startProcess(CmdLine commandLine) throws IOException {
+        OverthereConnection connection = borrowConnection();
+        try {
+            if (!connection.canStartProcess()) {
+                throw new IllegalArgumentException("The connection does not support starting (long running) processes.");
+            }
+            connectionPool.processStarted(connection);
+            try {
+                return new PooledProcess(connection.startProcess(commandLine), connectionPool, connection);
+            } catch (RuntimeException e) {
+                connectionPool.processStopped(connection);
+                throw e;
+            }
+        } finally {
+            releaseConnection(connection);
+        }
+    }
+
+    OverthereConnection borrowConnection() throws IOException {
+        return connectionPool.borrow();
+    }
+
+    /**
+     * Runs an operation that can safely run twice, such as reading metadata, on a borrowed connection. If the
+     * connection turns out to be broken, for instance because the host dropped the session, it is discarded and the
+     * operation runs once more on a new connection. A failure only counts as a broken connection if it came from the
+     * transport and the host does not answer a {@link OverthereConnectionPool#isAlive(OverthereConnection) round
+     * trip} either; a command that merely failed on a healthy connection is not run again.
+     */
+    <T> T callIdempotent(OverthereMetrics.Operation operation, IdempotentCall<T> call) throws IOException {
+        OverthereConnection connection = borrowConnection();
+        try {
+            return call(operation, call, connection);
+        } catch (IOException | RuntimeIOException e) {
+            if (!isTransportFailure(e) || connectionPool.isAlive(connection)) {
+                throw e;
+            }
+            connectionPool.discard(connection);
+            connection = null;
+            connection = borrowConnection();
+            return call(operation, call, connection);
+        } finally {
+            releaseConnection(connection);
+        }
+    }
+
+    private <T> T call(OverthereMetrics.Operation operation, IdempotentCall<T> call, OverthereConnection connection) throws IOException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            T result = call.call(connection);
+            succeeded = true;
+            return result;
+        } catch (FileSystemException e) {
+            // An answer from the host, not a failure to reach it
+            succeeded = true;
+            throw e;
+        } finally {
+            metrics.record(operation, start, succeeded);
+        }
+    }
+
+    /**
+     * Returns whether a failure came from the connection rather than from the host: Overthere reports those as
+     * {@link RuntimeIOException}s, which the provider may wrap, and sockets as {@link SocketException}s. A
+     * {@link FileSystemException} is an answer from the host, and an {@link IOException} without such a cause, like a
+     * non-zero exit code, is too.
+     */
+    private static boolean isTransportFailure(Exception e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof FileSystemException || cause instanceof InterruptedIOException) {
+                return false;
+            }
+            if (cause instanceof RuntimeIOException || cause instanceof SocketException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    interface IdempotentCall<T> {
+        T call(OverthereConnection connection) throws IOException;
+    }
+
+    void releaseConnection(OverthereConnection connection) {
+        connectionPool.release(connection);
     }
 
     URI getUri() {
         return uri;
     }
+
+    ConnectionOptions getConnectionOptions() {
+        return options;
+    }
+
+    boolean isFindSupported() {
+        return findSupported;
+    }
+
+    void setFindSupported(boolean findSupported) {
+        this.findSupported = findSupported;
+    }
+
+    Boolean getTarSupported() {
+        return tarSupported;
+    }
+
+    void setTarSupported(boolean tarSupported) {
+        this.tarSupported = tarSupported;
+    }
 }
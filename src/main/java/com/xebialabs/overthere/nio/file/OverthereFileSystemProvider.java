@@ -1,11 +1,15 @@
 package com.xebialabs.overthere.nio.file;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.Channels;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
@@ -13,36 +17,134 @@ import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.spi.FileSystemProvider;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import com.xebialabs.overthere.*;
 
-import static com.google.common.collect.Maps.newHashMap;
-import static com.google.common.collect.Sets.newHashSet;
-
 public abstract class OverthereFileSystemProvider extends FileSystemProvider {
-    Map<URI, OverthereFileSystem> cache = newHashMap();
+
+    /**
+     * Connection option that lets the host of a file system push files straight to the host of another file system
+     * with {@code scp}, instead of relaying them through this JVM. The source host must be able to log in to the
+     * target host without a password. Defaults to {@code false}.
+     */
+    public static final String DIRECT_TRANSFER = "directTransfer";
+
+    /**
+     * How a directory tree is compressed on its way to or from the host by {@link #upload} and {@link #download}.
+     */
+    public enum Compression {
+        NONE,
+        /**
+         * Saves bandwidth on slow links at the cost of CPU on both ends. The host needs {@code tar -z}.
+         */
+        GZIP {
+            @Override
+            CmdLine addOption(CmdLine commandLine) {
+                return commandLine.addArgument("-z");
+            }
+
+            @Override
+            OutputStream compress(OutputStream out) throws IOException {
+                return new GZIPOutputStream(out, 65536);
+            }
+
+            @Override
+            InputStream decompress(InputStream in) throws IOException {
+                return new GZIPInputStream(in, 65536);
+            }
+        };
+
+        CmdLine addOption(CmdLine commandLine) {
+            return commandLine;
+        }
+
+        OutputStream compress(OutputStream out) throws IOException {
+            return out;
+        }
+
+        InputStream decompress(InputStream in) throws IOException {
+            return in;
+        }
+    }
+
+    /**
+     * The open file systems by URI. A file system is registered before it connects, so that concurrent callers for
+     * the same URI wait for that one connection while callers for other URIs go ahead, and completed lookups do not
+     * lock.
+     */
+    private final ConcurrentMap<URI, ListenableFuture<OverthereFileSystem>> fileSystems = new ConcurrentHashMap<URI, ListenableFuture<OverthereFileSystem>>();
 
     @Override
-    public synchronized FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
-        if (cache.containsKey(uri)) {
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        SettableFuture<OverthereFileSystem> future = SettableFuture.create();
+        if (fileSystems.putIfAbsent(uri, future) != null) {
             throw new FileSystemAlreadyExistsException(uri.toString());
         }
-        ConnectionOptions options = buildOptionsFromUri(uri);
-        copyEnvironment(env, options);
+        return createFileSystem(uri, env, future);
+    }
+
+    private OverthereFileSystem createFileSystem(URI uri, Map<String, ?> env, SettableFuture<OverthereFileSystem> future) throws IOException {
+        try {
+            ConnectionOptions options = buildOptionsFromUri(uri);
+            copyEnvironment(env, options);
 
-        OverthereConnection connection = getConnection(options);
-        OverthereFileSystem overthereFileSystem = new OverthereFileSystem(this, connection, uri);
-        cache.put(uri, overthereFileSystem);
-        return overthereFileSystem;
+            OverthereFileSystem overthereFileSystem = new OverthereFileSystem(this, uri, options);
+            future.set(overthereFileSystem);
+            return overthereFileSystem;
+        } catch (final Throwable t) {
+            fileSystems.remove(uri, future);
+            future.setException(t);
+            throw t;
+        }
+    }
+
+    /**
+     * Returns the file system for a URI, waiting while it connects, or {@code null} if there is none or it could not
+     * connect.
+     */
+    private OverthereFileSystem lookUp(URI uri) {
+        ListenableFuture<OverthereFileSystem> future = fileSystems.get(uri);
+        return future == null ? null : getFileSystem(future);
+    }
+
+    private static OverthereFileSystem getFileSystem(ListenableFuture<OverthereFileSystem> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    void unregister(OverthereFileSystem fileSystem) {
+        ListenableFuture<OverthereFileSystem> future = fileSystems.get(fileSystem.getUri());
+        if (future != null && future.isDone() && getFileSystem(future) == fileSystem) {
+            fileSystems.remove(fileSystem.getUri(), future);
+        }
     }
 
     private ConnectionOptions buildOptionsFromUri(final URI uri) {
@@ -57,6 +159,35 @@ public abstract class OverthereFileSystemProvider extends FileSystemProvider {
         return Overthere.getConnection(getScheme(), options);
     }
 
+    /**
+     * Whether the connections of this provider can run commands on the host. If so, metadata operations on UNIX
+     * hosts are answered by a single {@code find} invocation instead of one call per attribute, and copies and moves
+     * within a file system run on the host.
+     */
+    protected boolean supportsHostCommands() {
+        return false;
+    }
+
+    /**
+     * Whether the host of this provider's file systems accepts files pushed with {@code scp} by another host, see
+     * {@link #DIRECT_TRANSFER}.
+     */
+    protected boolean acceptsDirectTransfers() {
+        return false;
+    }
+
+    boolean canUseHostCommands(OverthereConnection connection) {
+        return canUseHostCommands(connection, OperatingSystemFamily.UNIX);
+    }
+
+    boolean canUseHostCommands(OverthereConnection connection, OperatingSystemFamily os) {
+        return supportsHostCommands() && connection.getHostOperatingSystem() == os && connection.canStartProcess();
+    }
+
+    boolean canUseFind(OverthereFileSystem fileSystem, OverthereConnection connection) {
+        return fileSystem.isFindSupported() && canUseHostCommands(connection);
+    }
+
 
     protected void copyHostAndPort(URI uri, ConnectionOptions options) {
         String host = uri.getHost();
@@ -97,20 +228,27 @@ public abstract class OverthereFileSystemProvider extends FileSystemProvider {
 
     @Override
     public FileSystem getFileSystem(URI uri) {
-        if (!cache.containsKey(uri)) {
+        OverthereFileSystem fileSystem = lookUp(uri);
+        if (fileSystem == null) {
             throw new FileSystemNotFoundException(uri.toString());
         }
-        return cache.get(uri);
+        return fileSystem;
     }
 
     @Override
     public Path getPath(URI uri) {
         try {
             URI uri1 = new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), uri.getPort(), "/", uri.getQuery(), uri.getFragment());
-            if (!cache.containsKey(uri1)) {
-                newFileSystem(uri1, Maps.<String, Object>newHashMap());
+            OverthereFileSystem fileSystem = lookUp(uri1);
+            if (fileSystem == null) {
+                SettableFuture<OverthereFileSystem> future = SettableFuture.create();
+                ListenableFuture<OverthereFileSystem> existing = fileSystems.putIfAbsent(uri1, future);
+                fileSystem = existing == null ? createFileSystem(uri1, Maps.<String, Object>newHashMap(), future) : getFileSystem(existing);
+                if (fileSystem == null) {
+                    throw new IOException("Could not connect to " + uri1);
+                }
             }
-            return cache.get(uri1).getPath(uri.getPath());
+            return fileSystem.getPath(uri.getPath());
         } catch (URISyntaxException e) {
             throw new IllegalArgumentException("Could not create URI for FileSystem lookup/creation", e);
         } catch (IOException e) {
@@ -134,72 +272,122 @@ public abstract class OverthereFileSystemProvider extends FileSystemProvider {
 
     @Override
     public SeekableByteChannel newByteChannel(final Path path, final Set<? extends OpenOption> options, final FileAttribute<?>... attrs) throws IOException {
-        OverthereFile ofile = ((OvertherePath) path).getOverthereFile();
-        final InputStream in;
-        final OutputStream out;
+        return new OverthereByteChannel(this, (OvertherePath) path, options);
+    }
 
-        if (options.contains(StandardOpenOption.READ)) {
-            in = ofile.getInputStream();
-        } else {
-            in = null;
+    /**
+     * Opens a channel whose reads and writes run on {@code executor}, or on a thread pool of the file system when it
+     * is {@code null}, see {@link OverthereFileSystem#ASYNC_THREADS}.
+     */
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel(Path path, Set<? extends OpenOption> options, ExecutorService executor, FileAttribute<?>... attrs) throws IOException {
+        OvertherePath overtherePath = (OvertherePath) path;
+        if (executor == null) {
+            executor = overtherePath.getOverthereFileSystem().getAsyncExecutor();
         }
+        return new OverthereAsynchronousFileChannel(this, overtherePath, options, executor);
+    }
 
-        if (!Sets.intersection(options, newHashSet(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.CREATE_NEW)).isEmpty()) {
-            out = ofile.getOutputStream();
-        } else {
-            out = null;
+    /**
+     * Opens a stream that reads a file from {@code position} on. On UNIX hosts that allow host commands the file is
+     * read with {@code tail -c}, so that only the requested range is transferred. Otherwise the bytes before the
+     * position are read and discarded. The stream runs on {@code connection}, which has to stay open until the
+     * stream is closed, see {@link #openDetachedInputStream(OvertherePath, long)}.
+     */
+    protected InputStream openInputStream(OverthereConnection connection, OvertherePath path, long position) throws IOException {
+        if (position > 0 && canUseHostCommands(connection)) {
+            return HostProcess.start(connection, CmdLine.build("tail", "-c", "+" + (position + 1), path.toString())).asInputStream();
         }
 
-        return new SeekableByteChannel() {
-            @Override
-            public boolean isOpen() {
-                return true;
-            }
-
-            @Override
-            public void close() throws IOException {
-                Closeables.closeQuietly(in);
-                Closeables.closeQuietly(out);
-            }
-
-            @Override
-            public int write(ByteBuffer src) throws IOException {
-                int remaining = src.remaining();
-                out.write(src.array(), 0, remaining);
-                src.position(remaining);
-                return remaining;
+        try {
+            InputStream in = path.getOverthereFile(connection).getInputStream();
+            long skipped = 0;
+            while (skipped < position) {
+                long n = in.skip(position - skipped);
+                if (n <= 0) {
+                    if (in.read() < 0) {
+                        break;
+                    }
+                    n = 1;
+                }
+                skipped += n;
             }
+            return in;
+        } catch (RuntimeIOException rio) {
+            throw new IOException(rio);
+        }
+    }
 
-            @Override
-            public SeekableByteChannel truncate(long size) throws IOException {
-                throw new UnsupportedOperationException();
-            }
+    /**
+     * Opens a stream that writes a file from {@code position} on, optionally truncating it first. On UNIX hosts that
+     * allow host commands the bytes are written in place with {@code dd}. Otherwise the file can only be rewritten
+     * from the start, which always truncates it. The stream runs on {@code connection}, which has to stay open until
+     * the stream is closed, see {@link #openDetachedOutputStream(OvertherePath, long, boolean)}.
+     */
+    protected OutputStream openOutputStream(OverthereConnection connection, OvertherePath path, long position, boolean truncate) throws IOException {
+        if (!(position == 0 && truncate) && canUseHostCommands(connection)) {
+            return HostProcess.start(connection, CmdLine.build("dd", "of=" + path, "bs=65536", "seek=" + position, "oflag=seek_bytes", "conv=notrunc")).asOutputStream();
+        }
+        if (position != 0) {
+            throw new UnsupportedOperationException("Cannot write " + path + " from position " + position + " on " + connection);
+        }
 
-            @Override
-            public long size() throws IOException {
-                throw new UnsupportedOperationException();
-            }
+        try {
+            return path.getOverthereFile(connection).getOutputStream();
+        } catch (RuntimeIOException rio) {
+            throw new IOException(rio);
+        }
+    }
 
-            @Override
-            public int read(ByteBuffer dst) throws IOException {
-                byte[] buf = new byte[dst.remaining()];
-                int bytesRead = in.read(buf);
-                if (bytesRead > 0) {
-                    dst.put(buf, 0, bytesRead);
-                }
-                return bytesRead;
-            }
+    /**
+     * Opens a stream like {@link #openInputStream(OverthereConnection, OvertherePath, long)} on a connection that is
+     * released as soon as the stream is open, so that a stream that is read slowly, or left open, does not hold up
+     * other operations on the file system. The pool counts the stream as a running process, and so keeps its
+     * connection open, until the stream is closed.
+     */
+    InputStream openDetachedInputStream(OvertherePath path, long position) throws IOException {
+        OverthereFileSystem fileSystem = path.getOverthereFileSystem();
+        OverthereConnectionPool pool = fileSystem.getConnectionPool();
+        OverthereConnection connection = fileSystem.borrowConnection();
+        pool.processStarted(connection);
+        try {
+            return new DetachedInputStream(openInputStream(connection, path, position), pool, connection);
+        } catch (IOException | RuntimeException e) {
+            pool.processStopped(connection);
+            throw e;
+        } finally {
+            fileSystem.releaseConnection(connection);
+        }
+    }
 
-            @Override
-            public SeekableByteChannel position(long newPosition) throws IOException {
-                throw new UnsupportedOperationException();
-            }
+    /**
+     * Opens a stream like {@link #openOutputStream(OverthereConnection, OvertherePath, long, boolean)} on a
+     * connection that is released as soon as the stream is open, see
+     * {@link #openDetachedInputStream(OvertherePath, long)}.
+     */
+    OutputStream openDetachedOutputStream(OvertherePath path, long position, boolean truncate) throws IOException {
+        OverthereFileSystem fileSystem = path.getOverthereFileSystem();
+        OverthereConnectionPool pool = fileSystem.getConnectionPool();
+        OverthereConnection connection = fileSystem.borrowConnection();
+        pool.processStarted(connection);
+        try {
+            return new DetachedOutputStream(openOutputStream(connection, path, position, truncate), pool, connection);
+        } catch (IOException | RuntimeException e) {
+            pool.processStopped(connection);
+            throw e;
+        } finally {
+            fileSystem.releaseConnection(connection);
+        }
+    }
 
-            @Override
-            public long position() throws IOException {
-                throw new UnsupportedOperationException();
-            }
-        };
+    /**
+     * Truncates a file to {@code size} bytes, with {@code truncate} on UNIX hosts that allow host commands.
+     */
+    protected void truncateFile(OverthereConnection connection, OvertherePath path, long size) throws IOException {
+        if (!canUseHostCommands(connection)) {
+            throw new UnsupportedOperationException("Cannot truncate " + path + " on " + connection);
+        }
+        HostProcess.execute(connection, CmdLine.build("truncate", "-s", Long.toString(size), path.toString()));
     }
 
     @Override
@@ -208,7 +396,30 @@ public abstract class OverthereFileSystemProvider extends FileSystemProvider {
             throw new NotDirectoryException(dir.toString());
         }
 
-        return new OverthereDirectoryStream(((OvertherePath) dir), filter);
+        OvertherePath overtherePath = (OvertherePath) dir;
+        OverthereGlob glob = OverthereGlob.of(filter, overtherePath.getOverthereFileSystem());
+        return new OverthereDirectoryStream(overtherePath, filter, glob != null ? glob.toNamePatterns() : null);
+    }
+
+    /**
+     * Opens a directory stream on the entries whose file names match {@code glob}, like
+     * {@link Files#newDirectoryStream(Path, String)}, which passes the glob on to the host's {@code find} as well.
+     */
+    public DirectoryStream<Path> newDirectoryStream(Path dir, String glob) throws IOException {
+        OvertherePath overtherePath = (OvertherePath) dir;
+        return newDirectoryStream(dir, OverthereGlob.compile(glob, overtherePath.getOverthereFileSystem().getSeparator().charAt(0)));
+    }
+
+    /**
+     * Lists every file below a directory with its attributes and mode, in a single remote call where the host allows
+     * it. Comparing two trees this way costs one round trip per tree instead of one per directory or file.
+     */
+    public OverthereManifest newManifest(Path dir) throws IOException {
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            throw new NotDirectoryException(dir.toString());
+        }
+
+        return new OverthereManifest(this, (OvertherePath) dir);
     }
 
     @Override
@@ -216,10 +427,19 @@ public abstract class OverthereFileSystemProvider extends FileSystemProvider {
         if (Files.exists(dir)) {
             throw new FileAlreadyExistsException(dir.toString());
         }
+        OverthereFileSystem fileSystem = ((OvertherePath) dir).getOverthereFileSystem();
+        OverthereConnection connection = fileSystem.borrowConnection();
+        long start = System.nanoTime();
+        boolean succeeded = false;
         try {
-            ((OvertherePath) dir).getOverthereFile().mkdir();
+            ((OvertherePath) dir).getOverthereFile(connection).mkdir();
+            succeeded = true;
         } catch (RuntimeIOException rio) {
             throw new IOException(rio);
+        } finally {
+            fileSystem.getMetrics().record(OverthereMetrics.Operation.CREATE_DIRECTORY, start, succeeded);
+            fileSystem.releaseConnection(connection);
+            fileSystem.invalidate(dir);
         }
     }
 
@@ -228,27 +448,527 @@ public abstract class OverthereFileSystemProvider extends FileSystemProvider {
         if (!Files.exists(path)) {
             throw new NoSuchFileException(path.toString());
         }
-        ((OvertherePath) path).getOverthereFile().delete();
+        OverthereFileSystem fileSystem = ((OvertherePath) path).getOverthereFileSystem();
+        // Answered from the cache that the check above filled, and only needed when there is a cache to clean up
+        boolean directory = fileSystem.getMetadataCache().isEnabled() && Files.isDirectory(path);
+        OverthereConnection connection = fileSystem.borrowConnection();
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            ((OvertherePath) path).getOverthereFile(connection).delete();
+            succeeded = true;
+        } finally {
+            fileSystem.getMetrics().record(OverthereMetrics.Operation.DELETE, start, succeeded);
+            fileSystem.releaseConnection(connection);
+            if (directory) {
+                fileSystem.invalidateTree(path);
+            } else {
+                fileSystem.invalidate(path);
+            }
+        }
     }
 
     @Override
     public void copy(Path source, Path target, CopyOption... options) throws IOException {
-        throw new UnsupportedOperationException();
+        boolean replaceExisting = false;
+        boolean copyAttributes = false;
+        boolean followLinks = true;
+        for (CopyOption option : options) {
+            if (option == StandardCopyOption.REPLACE_EXISTING) {
+                replaceExisting = true;
+            } else if (option == StandardCopyOption.COPY_ATTRIBUTES) {
+                copyAttributes = true;
+            } else if (option == LinkOption.NOFOLLOW_LINKS) {
+                followLinks = false;
+            } else {
+                throw new UnsupportedOperationException("Unsupported copy option " + option);
+            }
+        }
+
+        OvertherePath from = (OvertherePath) source;
+        OvertherePath to = (OvertherePath) target;
+        BasicFileAttributes attributes = followLinks ? readAttributes(from, BasicFileAttributes.class)
+                : readAttributes(from, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (isSameFile(from, to)) {
+            return;
+        }
+        prepareTarget(to, replaceExisting);
+
+        if (attributes.isDirectory()) {
+            createDirectory(to);
+            if (copyAttributes) {
+                copyLastModifiedTime(attributes, to);
+            }
+        } else if (attributes.isSymbolicLink() && from.getOverthereFileSystem() != to.getOverthereFileSystem()) {
+            throw new UnsupportedOperationException("Cannot copy symbolic link " + from + " to another file system");
+        } else if (from.getOverthereFileSystem() == to.getOverthereFileSystem()) {
+            OverthereFileSystem fileSystem = to.getOverthereFileSystem();
+            OverthereConnection connection = fileSystem.borrowConnection();
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                if (attributes.isSymbolicLink()) {
+                    copySymbolicLink(connection, from, to);
+                } else {
+                    copyFile(connection, from, to, copyAttributes);
+                }
+                succeeded = true;
+            } finally {
+                fileSystem.getMetrics().record(OverthereMetrics.Operation.COPY, start, succeeded);
+                fileSystem.releaseConnection(connection);
+                fileSystem.invalidate(to);
+            }
+        } else {
+            transferBetweenFileSystems(from, to, copyAttributes);
+        }
     }
 
     @Override
     public void move(Path source, Path target, CopyOption... options) throws IOException {
-        throw new UnsupportedOperationException();
+        boolean replaceExisting = false;
+        boolean atomicMove = false;
+        for (CopyOption option : options) {
+            if (option == StandardCopyOption.REPLACE_EXISTING) {
+                replaceExisting = true;
+            } else if (option == StandardCopyOption.ATOMIC_MOVE) {
+                atomicMove = true;
+            } else if (option != StandardCopyOption.COPY_ATTRIBUTES && option != LinkOption.NOFOLLOW_LINKS) {
+                // Moves always keep the attributes and never follow links
+                throw new UnsupportedOperationException("Unsupported copy option " + option);
+            }
+        }
+
+        OvertherePath from = (OvertherePath) source;
+        OvertherePath to = (OvertherePath) target;
+        BasicFileAttributes attributes = readAttributes(from, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (isSameFile(from, to)) {
+            return;
+        }
+
+        if (from.getOverthereFileSystem() != to.getOverthereFileSystem()) {
+            if (atomicMove) {
+                throw new AtomicMoveNotSupportedException(from.toString(), to.toString(), "Source and target are on different file systems");
+            }
+            if (attributes.isDirectory() && !isEmptyDirectory(from)) {
+                // Only an empty directory can be moved by recreating it on the other file system
+                throw new DirectoryNotEmptyException(from.toString());
+            }
+            prepareTarget(to, replaceExisting);
+            if (attributes.isDirectory()) {
+                createDirectory(to);
+                copyLastModifiedTime(attributes, to);
+            } else {
+                transferBetweenFileSystems(from, to, true);
+            }
+            try {
+                delete(from);
+            } catch (IOException e) {
+                if (attributes.isDirectory()) {
+                    // An entry was created in the meantime: leave nothing behind at the target
+                    delete(to);
+                }
+                throw e;
+            }
+            return;
+        }
+
+        if (!atomicMove) {
+            // An atomic move replaces an existing target in the same operation
+            prepareTarget(to, replaceExisting);
+        }
+        OverthereFileSystem fileSystem = to.getOverthereFileSystem();
+        OverthereConnection connection = fileSystem.borrowConnection();
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            moveFile(connection, from, to, atomicMove);
+            succeeded = true;
+        } finally {
+            fileSystem.getMetrics().record(OverthereMetrics.Operation.MOVE, start, succeeded);
+            fileSystem.releaseConnection(connection);
+            if (attributes.isDirectory()) {
+                fileSystem.invalidateTree(from);
+                fileSystem.invalidateTree(to);
+            } else {
+                fileSystem.invalidate(from);
+                fileSystem.invalidate(to);
+            }
+        }
+    }
+
+    private static boolean isEmptyDirectory(OvertherePath dir) throws IOException {
+        DirectoryStream<Path> entries = Files.newDirectoryStream(dir);
+        try {
+            return !entries.iterator().hasNext();
+        } finally {
+            entries.close();
+        }
+    }
+
+    private void copyLastModifiedTime(BasicFileAttributes attributes, OvertherePath target) throws IOException {
+        OverthereFileSystem fileSystem = target.getOverthereFileSystem();
+        OverthereConnection connection = fileSystem.borrowConnection();
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            setLastModifiedTime(connection, target, attributes.lastModifiedTime());
+            succeeded = true;
+        } finally {
+            fileSystem.getMetrics().record(OverthereMetrics.Operation.COPY, start, succeeded);
+            fileSystem.releaseConnection(connection);
+            fileSystem.invalidate(target);
+        }
+    }
+
+    private void prepareTarget(OvertherePath target, boolean replaceExisting) throws IOException {
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            if (!replaceExisting) {
+                throw new FileAlreadyExistsException(target.toString());
+            }
+            delete(target);
+        }
+    }
+
+    /**
+     * Copies a file between two file systems, directly from host to host if possible, or else through this JVM.
+     */
+    private void transferBetweenFileSystems(OvertherePath source, OvertherePath target, boolean copyAttributes) throws IOException {
+        if (!directTransfer(source, target, copyAttributes)) {
+            relayCopy(source, target);
+        }
+    }
+
+    /**
+     * Pushes a file from the host of the source file system to the host of the target with {@code scp}.
+     *
+     * @return whether the file was transferred. If not, nothing is left behind at the target.
+     */
+    private boolean directTransfer(OvertherePath source, OvertherePath target, boolean copyAttributes) throws IOException {
+        OverthereFileSystem sourceFileSystem = source.getOverthereFileSystem();
+        OverthereFileSystem targetFileSystem = target.getOverthereFileSystem();
+        ConnectionOptions targetOptions = targetFileSystem.getConnectionOptions();
+        String address = targetOptions.getOptional(ConnectionOptions.ADDRESS);
+        String username = targetOptions.getOptional(ConnectionOptions.USERNAME);
+        if (!sourceFileSystem.getConnectionOptions().getBoolean(DIRECT_TRANSFER, false)
+                || !((OverthereFileSystemProvider) targetFileSystem.provider()).acceptsDirectTransfers()
+                || address == null || username == null) {
+            return false;
+        }
+
+        CmdLine commandLine = CmdLine.build("scp", "-B", "-q");
+        if (copyAttributes) {
+            commandLine.addArgument("-p");
+        }
+        commandLine.addArgument("-P").addArgument(Integer.toString(targetOptions.getInteger(ConnectionOptions.PORT, 22)));
+        commandLine.addArgument(source.toString());
+        // The remote path is expanded by the login shell on the target host
+        commandLine.addArgument(username + "@" + address + ":'" + target.toString().replace("'", "'\\''") + "'");
+
+        OverthereConnection connection = sourceFileSystem.borrowConnection();
+        try {
+            if (!canUseHostCommands(connection)) {
+                return false;
+            }
+            HostProcess.execute(connection, commandLine);
+            return true;
+        } catch (IOException e) {
+            Files.deleteIfExists(target);
+            return false;
+        } finally {
+            sourceFileSystem.releaseConnection(connection);
+            targetFileSystem.invalidate(target);
+        }
+    }
+
+    /**
+     * Copies a file between two file systems through this JVM.
+     */
+    private void relayCopy(OvertherePath source, OvertherePath target) throws IOException {
+        InputStream in = newInputStream(source);
+        try {
+            OutputStream out = newOutputStream(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                ByteStreams.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Copies the directory tree below {@code localDir}, on any file system, into {@code remoteDir} on a file system of
+     * this provider, creating it if needed and replacing existing files. On UNIX hosts that allow host commands and
+     * have {@code tar}, the whole tree is streamed into a single {@code tar -x} on the host, which saves a round trip
+     * per file. Otherwise every file is copied separately.
+     */
+    public void upload(Path localDir, Path remoteDir, Compression compression) throws IOException {
+        OvertherePath target = (OvertherePath) remoteDir;
+        OverthereFileSystem fileSystem = target.getOverthereFileSystem();
+        Files.createDirectories(target);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            HostProcess process = startTar(fileSystem, compression.addOption(CmdLine.build("tar", "-x", "-o"))
+                    .addArgument("-f").addArgument("-").addArgument("-C").addArgument(target.toString()));
+            if (process == null) {
+                copyTree(localDir, target);
+            } else {
+                OutputStream out = process.asOutputStream();
+                boolean written = false;
+                try {
+                    CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(out, 65536));
+                    TarWriter writer = new TarWriter(compression.compress(counter));
+                    writer.writeTree(localDir);
+                    writer.close();
+                    written = true;
+                    fileSystem.getMetrics().bytesWritten(counter.getCount());
+                } finally {
+                    if (!written) {
+                        // Stop tar rather than letting it extract a truncated archive
+                        process.close();
+                    }
+                }
+            }
+            succeeded = true;
+        } finally {
+            fileSystem.getMetrics().record(OverthereMetrics.Operation.UPLOAD, start, succeeded);
+            fileSystem.getMetadataCache().invalidateAll();
+        }
+    }
+
+    /**
+     * Copies the directory tree below {@code remoteDir}, on a file system of this provider, into {@code localDir} on
+     * any file system, creating it if needed and replacing existing files. On UNIX hosts that allow host commands and
+     * have {@code tar}, the whole tree is streamed from a single {@code tar -c} on the host. Otherwise every file is
+     * copied separately.
+     */
+    public void download(Path remoteDir, Path localDir, Compression compression) throws IOException {
+        OvertherePath source = (OvertherePath) remoteDir;
+        OverthereFileSystem fileSystem = source.getOverthereFileSystem();
+        if (!readAttributes(source, BasicFileAttributes.class).isDirectory()) {
+            throw new NotDirectoryException(source.toString());
+        }
+        Files.createDirectories(localDir);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            HostProcess process = startTar(fileSystem, compression.addOption(CmdLine.build("tar", "-c"))
+                    .addArgument("-f").addArgument("-").addArgument("-C").addArgument(source.toString()).addArgument("."));
+            if (process == null) {
+                copyTree(source, localDir);
+            } else {
+                try {
+                    CountingInputStream counter = new CountingInputStream(new BufferedInputStream(process.getStdout(), 65536));
+                    new TarReader(compression.decompress(counter)).extractTo(localDir);
+                    // Read up to the end, so that tar does not block on the padding of its last record
+                    byte[] rest = new byte[TarWriter.BLOCK_SIZE];
+                    while (counter.read(rest) >= 0) {
+                        // discard
+                    }
+                    fileSystem.getMetrics().bytesRead(counter.getCount());
+                    int exitCode = process.waitFor();
+                    if (exitCode != 0) {
+                        throw new IOException("[tar -c " + source + "] exited with code " + exitCode + ": " + process.getErrorOutput());
+                    }
+                } finally {
+                    process.close();
+                }
+            }
+            succeeded = true;
+        } finally {
+            fileSystem.getMetrics().record(OverthereMetrics.Operation.DOWNLOAD, start, succeeded);
+        }
+    }
+
+    /**
+     * Starts {@code tar} on the host of a file system, borrowing a connection only to start it, or returns
+     * {@code null} if the host cannot run it. Whether the host has {@code tar} at all is checked once.
+     */
+    private HostProcess startTar(OverthereFileSystem fileSystem, CmdLine commandLine) throws IOException {
+        OverthereConnection connection = fileSystem.borrowConnection();
+        try {
+            if (!canUseHostCommands(connection)) {
+                return null;
+            }
+            if (fileSystem.getTarSupported() == null) {
+                boolean supported;
+                try {
+                    HostProcess.execute(connection, CmdLine.build("tar", "-c", "-f", "/dev/null", "-T", "/dev/null"));
+                    supported = true;
+                } catch (IOException e) {
+                    supported = false;
+                }
+                fileSystem.setTarSupported(supported);
+            }
+            return fileSystem.getTarSupported() ? HostProcess.startDetached(fileSystem, connection, commandLine) : null;
+        } finally {
+            fileSystem.releaseConnection(connection);
+        }
+    }
+
+    private static void copyTree(final Path sourceDir, final Path targetDir) throws IOException {
+        Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(targetOf(dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, targetOf(file), StandardCopyOption.REPLACE_EXISTING);
+                return FileVisitResult.CONTINUE;
+            }
+
+            private Path targetOf(Path path) {
+                Path target = targetDir;
+                for (Path name : sourceDir.relativize(path)) {
+                    if (!name.toString().isEmpty()) {
+                        target = target.resolve(name.toString());
+                    }
+                }
+                return target;
+            }
+        });
+    }
+
+    /**
+     * Copies a regular file on the host, without transferring its contents. The target does not exist. On UNIX hosts
+     * that allow host commands this runs {@code cp}, on Windows hosts {@code copy}, which always keeps the
+     * modification time. Otherwise {@link OverthereFile#copyTo(OverthereFile)} is used, which does not copy the
+     * attributes.
+     */
+    protected void copyFile(OverthereConnection connection, OvertherePath source, OvertherePath target, boolean copyAttributes) throws IOException {
+        if (canUseHostCommands(connection)) {
+            CmdLine commandLine = CmdLine.build("cp");
+            if (copyAttributes) {
+                commandLine.addArgument("-p");
+            }
+            HostProcess.execute(connection, commandLine.addArgument(source.toString()).addArgument(target.toString()));
+        } else if (canUseHostCommands(connection, OperatingSystemFamily.WINDOWS)) {
+            HostProcess.execute(connection, CmdLine.build("cmd", "/c", "copy", "/y", source.toString(), target.toString()));
+        } else {
+            try {
+                source.getOverthereFile(connection).copyTo(target.getOverthereFile(connection));
+            } catch (RuntimeIOException rio) {
+                throw new IOException(rio);
+            }
+        }
+    }
+
+    /**
+     * Copies a symbolic link on the host as a link, rather than the file it points to. The target does not exist. On
+     * UNIX hosts that allow host commands this runs {@code cp -P}. Overthere itself always follows links, so other
+     * hosts cannot copy a link.
+     */
+    protected void copySymbolicLink(OverthereConnection connection, OvertherePath source, OvertherePath target) throws IOException {
+        if (!canUseHostCommands(connection)) {
+            throw new UnsupportedOperationException("Cannot copy symbolic link " + source + " on " + connection);
+        }
+        HostProcess.execute(connection, CmdLine.build("cp", "-P", source.toString(), target.toString()));
+    }
+
+    /**
+     * Sets the modification time of a file or directory, with {@code touch} on UNIX hosts that allow host commands.
+     * Overthere cannot set it, so on other hosts the time is left as it is, as copying attributes is a best effort.
+     */
+    protected void setLastModifiedTime(OverthereConnection connection, OvertherePath path, FileTime time) throws IOException {
+        if (!canUseHostCommands(connection)) {
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmm.ss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        HostProcess.execute(connection, CmdLine.build("env", "TZ=UTC0", "touch", "-m", "-t", format.format(new Date(time.toMillis())), path.toString()));
+    }
+
+    /**
+     * Moves a file or directory on the host. Unless {@code atomic} is set, the target does not exist. An atomic move
+     * replaces an existing target, and fails with an {@link AtomicMoveNotSupportedException} when the host would have
+     * to copy the file because the target is on another device or drive.
+     *
+     * On UNIX hosts that allow host commands this runs {@code mv}, on Windows hosts {@code move}. Otherwise
+     * {@link OverthereFile#renameTo(OverthereFile)} is used, which Overthere implements as a single rename request.
+     */
+    protected void moveFile(OverthereConnection connection, OvertherePath source, OvertherePath target, boolean atomic) throws IOException {
+        if (canUseHostCommands(connection)) {
+            if (atomic) {
+                checkSameDevice(connection, source, target);
+                HostProcess.execute(connection, CmdLine.build("mv", "-f", "-T", source.toString(), target.toString()));
+            } else {
+                HostProcess.execute(connection, CmdLine.build("mv", source.toString(), target.toString()));
+            }
+        } else if (canUseHostCommands(connection, OperatingSystemFamily.WINDOWS)) {
+            String sourceDrive = driveOf(source);
+            if (atomic && (sourceDrive == null || !sourceDrive.equalsIgnoreCase(driveOf(target)))) {
+                throw new AtomicMoveNotSupportedException(source.toString(), target.toString(), "Source and target are on different drives");
+            }
+            HostProcess.execute(connection, CmdLine.build("cmd", "/c", "move", "/y", source.toString(), target.toString()));
+        } else {
+            try {
+                source.getOverthereFile(connection).renameTo(target.getOverthereFile(connection));
+            } catch (RuntimeIOException rio) {
+                throw new IOException(rio);
+            }
+        }
+    }
+
+    private static String driveOf(OvertherePath path) {
+        String pathString = path.toString();
+        return pathString.length() >= 2 && pathString.charAt(1) == ':' ? pathString.substring(0, 2) : null;
+    }
+
+    private static void checkSameDevice(OverthereConnection connection, OvertherePath source, OvertherePath target) throws IOException {
+        Path targetDir = target.getParent();
+        CmdLine commandLine = CmdLine.build("stat", "-c", "%d", source.toString(), targetDir != null ? targetDir.toString() : ".");
+        HostProcess process = HostProcess.start(connection, commandLine);
+        try {
+            String sourceDevice = process.readLine();
+            String targetDevice = process.readLine();
+            if (process.waitFor() != 0) {
+                throw new IOException("[" + commandLine + "] failed: " + process.getErrorOutput());
+            }
+            if (sourceDevice == null || !sourceDevice.equals(targetDevice)) {
+                throw new AtomicMoveNotSupportedException(source.toString(), target.toString(), "Source and target are on different devices");
+            }
+        } finally {
+            process.close();
+        }
     }
 
     @Override
     public boolean isSameFile(Path path, Path path2) throws IOException {
-        throw new UnsupportedOperationException();
+        if (path.equals(path2)) {
+            return true;
+        }
+        if (!(path2 instanceof OvertherePath)
+                || ((OvertherePath) path).getOverthereFileSystem() != ((OvertherePath) path2).getOverthereFileSystem()) {
+            return false;
+        }
+        return path.normalize().equals(path2.normalize());
     }
 
     @Override
-    public boolean isHidden(Path path) throws IOException {
-        return ((OvertherePath) path).getOverthereFile().isHidden();
+    public boolean isHidden(final Path path) throws IOException {
+        OverthereFileSystem fileSystem = ((OvertherePath) path).getOverthereFileSystem();
+        return fileSystem.callIdempotent(OverthereMetrics.Operation.READ_ATTRIBUTES, new OverthereFileSystem.IdempotentCall<Boolean>() {
+            @Override
+            public Boolean call(OverthereConnection connection) {
+                return ((OvertherePath) path).getOverthereFile(connection).isHidden();
+            }
+        });
+    }
+
+    /**
+     * Makes a cheap round trip on an idle connection, see {@link OverthereConnectionPool#POOL_KEEP_ALIVE_INTERVAL}.
+     * Providers can override this with a cheaper call of their protocol.
+     *
+     * @throws RuntimeException if the connection is broken.
+     */
+    protected void keepAlive(OverthereConnection connection) {
+        String root = connection.getHostOperatingSystem() == OperatingSystemFamily.WINDOWS ? "C:\\" : "/";
+        connection.getFile(root).exists();
     }
 
     @Override
@@ -257,8 +977,27 @@ public abstract class OverthereFileSystemProvider extends FileSystemProvider {
     }
 
     @Override
-    public void checkAccess(Path path, AccessMode... modes) throws IOException {
-        OverthereFile overthereFile = ((OvertherePath) path).getOverthereFile();
+    public void checkAccess(final Path path, final AccessMode... modes) throws IOException {
+        OverthereFileSystem fileSystem = ((OvertherePath) path).getOverthereFileSystem();
+        if (fileSystem.getMetadataCache().isEnabled()) {
+            // Answers existence from the cache, or caches the attributes for the checks that will likely follow
+            readAttributes(path, BasicFileAttributes.class);
+            if (modes == null || modes.length == 0) {
+                return;
+            }
+        }
+
+        fileSystem.callIdempotent(OverthereMetrics.Operation.CHECK_ACCESS, new OverthereFileSystem.IdempotentCall<Void>() {
+            @Override
+            public Void call(OverthereConnection connection) throws IOException {
+                checkAccess(connection, path, modes);
+                return null;
+            }
+        });
+    }
+
+    private void checkAccess(OverthereConnection connection, Path path, AccessMode... modes) throws IOException {
+        OverthereFile overthereFile = ((OvertherePath) path).getOverthereFile(connection);
         if (!overthereFile.exists()) {
             throw new NoSuchFileException(path.toString());
         }
@@ -294,13 +1033,97 @@ public abstract class OverthereFileSystemProvider extends FileSystemProvider {
 
     @SuppressWarnings("unchecked")
     @Override
-    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
-        if (!BasicFileAttributes.class.isAssignableFrom(type)) {
+    public <A extends BasicFileAttributes> A readAttributes(final Path path, Class<A> type, LinkOption... options) throws IOException {
+        if (!type.isAssignableFrom(OverthereFileAttributes.class)) {
             throw new UnsupportedOperationException("Don't support non BasicFileAttributes.");
         }
 
-        OverthereFile overthereFile = ((OvertherePath) path).getOverthereFile();
-        return (A) new OverthereFileAttributes(overthereFile);
+        final boolean followLinks = followLinks(options);
+        OverthereFileAttributes prefetched = ((OvertherePath) path).getPrefetchedAttributes(followLinks);
+        if (prefetched != null) {
+            return (A) prefetched;
+        }
+
+        OverthereFileSystem fileSystem = ((OvertherePath) path).getOverthereFileSystem();
+        OverthereMetadataCache metadataCache = fileSystem.getMetadataCache();
+        OverthereMetadataCache.Entry cached = metadataCache.get(path, followLinks);
+        if (cached != null) {
+            if (!cached.exists()) {
+                throw new NoSuchFileException(path.toString());
+            }
+            return (A) cached.getAttributes();
+        }
+
+        try {
+            OverthereFileAttributes attributes = fileSystem.callIdempotent(OverthereMetrics.Operation.READ_ATTRIBUTES, new OverthereFileSystem.IdempotentCall<OverthereFileAttributes>() {
+                @Override
+                public OverthereFileAttributes call(OverthereConnection connection) throws IOException {
+                    return fetchAttributes(connection, (OvertherePath) path, followLinks);
+                }
+            });
+            metadataCache.put(path, followLinks, attributes);
+            return (A) attributes;
+        } catch (NoSuchFileException e) {
+            metadataCache.putMissing(path);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a snapshot of the basic attributes of a file, in a single remote call when the host allows it. Otherwise
+     * each attribute costs a call of its own: the type is asked first, so that a missing file is recognized before its
+     * time and size are read.
+     *
+     * @throws NoSuchFileException if the file does not exist.
+     */
+    protected OverthereFileAttributes fetchAttributes(OverthereConnection connection, OvertherePath path, boolean followLinks) throws IOException {
+        if (canUseFind(path.getOverthereFileSystem(), connection)) {
+            OverthereFileAttributes attributes = findAttributes(connection, path, followLinks);
+            if (attributes != null) {
+                return attributes;
+            }
+        }
+
+        OverthereFile file = path.getOverthereFile(connection);
+        try {
+            boolean regularFile = file.isFile();
+            boolean directory = !regularFile && file.isDirectory();
+            if (!regularFile && !directory && !file.exists()) {
+                throw new NoSuchFileException(path.toString());
+            }
+            return new OverthereFileAttributes(file.lastModified(), file.length(), regularFile, directory, false, !regularFile && !directory);
+        } catch (RuntimeIOException rio) {
+            throw new IOException(rio);
+        }
+    }
+
+    private static OverthereFileAttributes findAttributes(OverthereConnection connection, OvertherePath path, boolean followLinks) throws IOException {
+        HostProcess process = HostProcess.start(connection, FindCommand.stat(path.toString()));
+        try {
+            String record = process.readRecord();
+            if (process.waitFor() == 0 && record != null) {
+                return FindCommand.parse(record).toAttributes(followLinks);
+            }
+
+            String errors = process.getErrorOutput();
+            if (FindCommand.isNoSuchFile(errors)) {
+                throw new NoSuchFileException(path.toString());
+            } else if (FindCommand.isUnsupported(errors)) {
+                path.getOverthereFileSystem().setFindSupported(false);
+            }
+            return null;
+        } finally {
+            process.close();
+        }
+    }
+
+    private static boolean followLinks(LinkOption... options) {
+        for (LinkOption option : options) {
+            if (option == LinkOption.NOFOLLOW_LINKS) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -312,4 +1135,57 @@ public abstract class OverthereFileSystemProvider extends FileSystemProvider {
     public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
         throw new UnsupportedOperationException();
     }
+
+    private static class DetachedInputStream extends FilterInputStream {
+        private final OverthereConnectionPool pool;
+        private final OverthereConnection connection;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        DetachedInputStream(InputStream in, OverthereConnectionPool pool, OverthereConnection connection) {
+            super(in);
+            this.pool = pool;
+            this.connection = connection;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.getAndSet(true)) {
+                return;
+            }
+            try {
+                super.close();
+            } finally {
+                pool.processStopped(connection);
+            }
+        }
+    }
+
+    private static class DetachedOutputStream extends FilterOutputStream {
+        private final OverthereConnectionPool pool;
+        private final OverthereConnection connection;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        DetachedOutputStream(OutputStream out, OverthereConnectionPool pool, OverthereConnection connection) {
+            super(out);
+            this.pool = pool;
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.getAndSet(true)) {
+                return;
+            }
+            try {
+                super.close();
+            } finally {
+                pool.processStopped(connection);
+            }
+        }
+    }
 }
@@ -0,0 +1,139 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Opens many file systems at once, for instance at the start of a rollout to hundreds of hosts.
+ */
+public final class OverthereFileSystems {
+
+    private OverthereFileSystems() {
+    }
+
+    /**
+     * Opens and connects a file system for each URI, at most {@code parallelism} at a time, so that it takes about as
+     * long as the slowest host instead of the sum of all hosts. A URI that already has a file system gets that one.
+     * File systems that are created {@link OverthereConnectionPool#LAZY_CONNECT lazily} are connected too.
+     *
+     * If any of them cannot be opened, the ones that were opened by this call are closed again and an
+     * {@link IOException} is thrown with each failure as a suppressed exception.
+     *
+     * @return the file systems by URI, in the order of {@code uris}.
+     */
+    public static Map<URI, FileSystem> openAll(Collection<URI> uris, final Map<String, ?> env, int parallelism) throws IOException {
+        checkArgument(parallelism >= 1, "Parallelism should be at least 1, was %s", parallelism);
+        Map<URI, FileSystem> fileSystems = Maps.newLinkedHashMap();
+        if (uris.isEmpty()) {
+            return fileSystems;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, uris.size()), daemonThreads());
+        Map<URI, Future<Opened>> futures = Maps.newLinkedHashMap();
+        try {
+            for (final URI uri : uris) {
+                if (!futures.containsKey(uri)) {
+                    futures.put(uri, executor.submit(new Callable<Opened>() {
+                        @Override
+                        public Opened call() throws IOException {
+                            return open(uri, env);
+                        }
+                    }));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        List<FileSystem> created = Lists.newArrayList();
+        List<Throwable> failures = Lists.newArrayList();
+        for (Map.Entry<URI, Future<Opened>> entry : futures.entrySet()) {
+            try {
+                Opened opened = Uninterruptibles.getUninterruptibly(entry.getValue());
+                fileSystems.put(entry.getKey(), opened.fileSystem);
+                if (opened.created) {
+                    created.add(opened.fileSystem);
+                }
+            } catch (ExecutionException e) {
+                failures.add(e.getCause());
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            for (FileSystem fileSystem : created) {
+                Closeables.closeQuietly(fileSystem);
+            }
+            IOException exception = new IOException("Could not open " + failures.size() + " of " + futures.size() + " file systems");
+            for (Throwable failure : failures) {
+                exception.addSuppressed(failure);
+            }
+            throw exception;
+        }
+        return fileSystems;
+    }
+
+    private static Opened open(URI uri, Map<String, ?> env) throws IOException {
+        FileSystem fileSystem;
+        boolean created;
+        try {
+            fileSystem = FileSystems.newFileSystem(uri, env);
+            created = true;
+        } catch (FileSystemAlreadyExistsException e) {
+            fileSystem = FileSystems.getFileSystem(uri);
+            created = false;
+        }
+        if (fileSystem instanceof OverthereFileSystem) {
+            try {
+                OverthereConnectionPool pool = ((OverthereFileSystem) fileSystem).getConnectionPool();
+                pool.release(pool.borrow());
+            } catch (IOException | RuntimeException e) {
+                if (created) {
+                    Closeables.closeQuietly(fileSystem);
+                }
+                throw e;
+            }
+        }
+        return new Opened(fileSystem, created);
+    }
+
+    private static ThreadFactory daemonThreads() {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "overthere-open-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static class Opened {
+        final FileSystem fileSystem;
+        final boolean created;
+
+        Opened(FileSystem fileSystem, boolean created) {
+            this.fileSystem = fileSystem;
+            this.created = created;
+        }
+    }
+}
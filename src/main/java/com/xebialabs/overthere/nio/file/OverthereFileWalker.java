@@ -0,0 +1,387 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Walks a file tree like {@link Files#walkFileTree(Path, FileVisitor)} does, but lists several directories at the
+ * same time, so that walking a remote tree is not bound by one round trip per directory. Links are not followed.
+ *
+ * Each directory is listed completely before it is visited. Listings borrow a connection from the pool of their file
+ * system, so the {@link OverthereConnectionPool#POOL_MAX_SIZE pool size} caps how many run at once.
+ */
+public final class OverthereFileWalker {
+
+    public enum Order {
+        /**
+         * Entries are visited as soon as their directory is listed, by several threads at once, so the visitor must be
+         * thread-safe. A directory is still visited before its entries, and its {@code postVisitDirectory} is only
+         * invoked once all of its entries have been visited. {@link FileVisitResult#SKIP_SIBLINGS} skips the siblings
+         * that were not visited yet.
+         */
+        UNORDERED,
+
+        /**
+         * Entries are visited by the calling thread in the depth-first order of {@link Files#walkFileTree}, while the
+         * directories ahead are listed in the background. Listings are held in memory until they are visited.
+         */
+        DEPTH_FIRST
+    }
+
+    private OverthereFileWalker() {
+    }
+
+    /**
+     * Walks a file tree in {@link Order#UNORDERED} order.
+     */
+    public static Path walk(Path start, FileVisitor<? super Path> visitor, int parallelism) throws IOException {
+        return walk(start, visitor, parallelism, Order.UNORDERED);
+    }
+
+    /**
+     * Walks a file tree, listing at most {@code parallelism} directories at the same time.
+     *
+     * @return the starting path.
+     * @throws IOException if the visitor throws one.
+     */
+    public static Path walk(Path start, FileVisitor<? super Path> visitor, int parallelism, Order order) throws IOException {
+        checkArgument(parallelism > 0, "Parallelism should be positive, was %s", parallelism);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(start, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            visitor.visitFileFailed(start, e);
+            return start;
+        }
+        if (!attributes.isDirectory()) {
+            visitor.visitFile(start, attributes);
+            return start;
+        }
+
+        if (order == Order.DEPTH_FIRST) {
+            new DepthFirstWalk(visitor, parallelism).walk(start, attributes);
+        } else {
+            new UnorderedWalk(visitor, parallelism).walk(start, attributes);
+        }
+        return start;
+    }
+
+    /**
+     * Reads a directory and the attributes of its entries, which the listing prefetches on Overthere file systems.
+     */
+    static Listing list(Path dir) {
+        Listing listing = new Listing();
+        DirectoryStream<Path> stream;
+        try {
+            stream = Files.newDirectoryStream(dir);
+        } catch (IOException e) {
+            listing.openFailure = e;
+            return listing;
+        }
+        try {
+            for (Path entry : stream) {
+                try {
+                    listing.entries.add(new Entry(entry, Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+                } catch (IOException e) {
+                    listing.entries.add(new Entry(entry, e));
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            listing.iterationFailure = e.getCause();
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                if (listing.iterationFailure == null) {
+                    listing.iterationFailure = e;
+                }
+            }
+        }
+        return listing;
+    }
+
+    static class Listing {
+        final List<Entry> entries = Lists.newArrayList();
+        IOException openFailure;
+        IOException iterationFailure;
+    }
+
+    static class Entry {
+        final Path path;
+        final BasicFileAttributes attributes;
+        final IOException failure;
+        volatile DepthFirstWalk.Node node;
+
+        Entry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+            this.failure = null;
+        }
+
+        Entry(Path path, IOException failure) {
+            this.path = path;
+            this.attributes = null;
+            this.failure = failure;
+        }
+
+        boolean isDirectory() {
+            return attributes != null && attributes.isDirectory();
+        }
+    }
+
+    private static ThreadFactory daemonThreads() {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "overthere-walker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Forks a task per directory in a {@link ForkJoinPool}.
+     */
+    static class UnorderedWalk {
+        private final FileVisitor<? super Path> visitor;
+        private final int parallelism;
+        private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        private volatile boolean terminated;
+
+        UnorderedWalk(FileVisitor<? super Path> visitor, int parallelism) {
+            this.visitor = visitor;
+            this.parallelism = parallelism;
+        }
+
+        void walk(Path start, BasicFileAttributes attributes) throws IOException {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new DirectoryTask(start, attributes, null));
+            } finally {
+                pool.shutdownNow();
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+
+        private boolean isStopped() {
+            return terminated || failure.get() != null;
+        }
+
+        /**
+         * Applies what the visitor returned for an entry of {@code parent}.
+         */
+        private void handle(FileVisitResult result, DirectoryTask parent) {
+            if (result == FileVisitResult.TERMINATE) {
+                terminated = true;
+            } else if (result == FileVisitResult.SKIP_SIBLINGS && parent != null) {
+                parent.skipSiblings = true;
+            }
+        }
+
+        private void fail(IOException e) {
+            failure.compareAndSet(null, e);
+        }
+
+        class DirectoryTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final Path dir;
+            private final BasicFileAttributes attributes;
+            private final DirectoryTask parent;
+            private volatile boolean skipSiblings;
+
+            DirectoryTask(Path dir, BasicFileAttributes attributes, DirectoryTask parent) {
+                this.dir = dir;
+                this.attributes = attributes;
+                this.parent = parent;
+            }
+
+            @Override
+            protected void compute() {
+                if (isStopped() || (parent != null && parent.skipSiblings)) {
+                    return;
+                }
+                try {
+                    Listing listing = list(dir);
+                    if (listing.openFailure != null) {
+                        handle(visitor.visitFileFailed(dir, listing.openFailure), parent);
+                        return;
+                    }
+                    FileVisitResult result = visitor.preVisitDirectory(dir, attributes);
+                    if (result != FileVisitResult.CONTINUE) {
+                        handle(result, parent);
+                        return;
+                    }
+
+                    List<DirectoryTask> subTasks = Lists.newArrayList();
+                    for (Entry entry : listing.entries) {
+                        if (isStopped() || skipSiblings) {
+                            break;
+                        }
+                        if (entry.failure != null) {
+                            handle(visitor.visitFileFailed(entry.path, entry.failure), this);
+                        } else if (entry.isDirectory()) {
+                            DirectoryTask subTask = new DirectoryTask(entry.path, entry.attributes, this);
+                            subTask.fork();
+                            subTasks.add(subTask);
+                        } else {
+                            handle(visitor.visitFile(entry.path, entry.attributes), this);
+                        }
+                    }
+                    for (DirectoryTask subTask : subTasks) {
+                        subTask.join();
+                    }
+
+                    if (!isStopped()) {
+                        handle(visitor.postVisitDirectory(dir, listing.iterationFailure), parent);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits on the calling thread, while an executor lists every directory as soon as its parent has been listed.
+     */
+    static class DepthFirstWalk {
+        private final FileVisitor<? super Path> visitor;
+        private final ExecutorService executor;
+
+        DepthFirstWalk(FileVisitor<? super Path> visitor, int parallelism) {
+            this.visitor = visitor;
+            this.executor = Executors.newFixedThreadPool(parallelism, daemonThreads());
+        }
+
+        void walk(Path start, BasicFileAttributes attributes) throws IOException {
+            try {
+                Node root = new Node(start, null);
+                schedule(root);
+                visit(root, attributes);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        private void schedule(final Node node) {
+            node.listing = executor.submit(new Callable<Listing>() {
+                @Override
+                public Listing call() {
+                    if (node.isSkipped()) {
+                        return null;
+                    }
+                    Listing listing = list(node.dir);
+                    for (Entry entry : listing.entries) {
+                        if (entry.isDirectory()) {
+                            entry.node = new Node(entry.path, node);
+                            schedule(entry.node);
+                        }
+                    }
+                    return listing;
+                }
+            });
+        }
+
+        private FileVisitResult visit(Node node, BasicFileAttributes attributes) throws IOException {
+            Listing listing = await(node);
+            if (listing.openFailure != null) {
+                return visitor.visitFileFailed(node.dir, listing.openFailure);
+            }
+            FileVisitResult result = visitor.preVisitDirectory(node.dir, attributes);
+            if (result != FileVisitResult.CONTINUE) {
+                node.skipped = true;
+                return result == FileVisitResult.SKIP_SUBTREE ? FileVisitResult.CONTINUE : result;
+            }
+
+            List<Entry> entries = listing.entries;
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                if (entry.failure != null) {
+                    result = visitor.visitFileFailed(entry.path, entry.failure);
+                } else if (entry.node != null) {
+                    result = visit(entry.node, entry.attributes);
+                } else {
+                    result = visitor.visitFile(entry.path, entry.attributes);
+                }
+
+                if (result == FileVisitResult.TERMINATE) {
+                    return result;
+                }
+                if (result == FileVisitResult.SKIP_SIBLINGS) {
+                    for (int j = i + 1; j < entries.size(); j++) {
+                        if (entries.get(j).node != null) {
+                            entries.get(j).node.skipped = true;
+                        }
+                    }
+                    break;
+                }
+            }
+
+            result = visitor.postVisitDirectory(node.dir, listing.iterationFailure);
+            return result == FileVisitResult.SKIP_SUBTREE ? FileVisitResult.CONTINUE : result;
+        }
+
+        private static Listing await(Node node) throws IOException {
+            try {
+                return node.listing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while listing " + node.dir);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        /**
+         * A directory whose listing may be running ahead of the visitor.
+         */
+        static class Node {
+            final Path dir;
+            final Node parent;
+            volatile Future<Listing> listing;
+            volatile boolean skipped;
+
+            Node(Path dir, Node parent) {
+                this.dir = dir;
+                this.parent = parent;
+            }
+
+            boolean isSkipped() {
+                for (Node node = this; node != null; node = node.parent) {
+                    if (node.skipped) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+import com.google.common.collect.Lists;
+
+/**
+ * A {@code glob:} pattern, as described by {@link java.nio.file.FileSystem#getPathMatcher(String)}, compiled once
+ * into token sequences that are matched against the characters of a path without allocating.
+ *
+ * Groups are expanded when compiling, so {@code *.{jar,war}} becomes the sequences for {@code *.jar} and
+ * {@code *.war}. The same sequences can be written back as {@code find -name} patterns, so that a listing only
+ * returns the names that match. As a {@link DirectoryStream.Filter} it accepts the entries whose file name matches,
+ * which is how a directory stream recognizes the globs it can pass on to the host, see
+ * {@link #of(DirectoryStream.Filter, OverthereFileSystem)}.
+ */
+final class OverthereGlob implements PathMatcher, DirectoryStream.Filter<Path> {
+
+    private static final int LITERAL = 0;
+    private static final int ANY = 1;
+    private static final int STAR = 2;
+    private static final int STAR_STAR = 3;
+    private static final int CLASS = 4;
+
+    private final String pattern;
+    private final char separator;
+    private final Token[][] alternatives;
+
+    private OverthereGlob(String pattern, char separator, Token[][] alternatives) {
+        this.pattern = pattern;
+        this.separator = separator;
+        this.alternatives = alternatives;
+    }
+
+    static OverthereGlob compile(String pattern, char separator) {
+        List<List<Token>> sequences = Lists.newArrayList();
+        sequences.add(Lists.<Token>newArrayList());
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c == '{') {
+                int end = indexOfUnescaped(pattern, '}', i + 1, pattern.length());
+                if (end == pattern.length()) {
+                    throw new PatternSyntaxException("Missing '}'", pattern, i);
+                }
+                List<List<Token>> expanded = Lists.newArrayList();
+                int start = i + 1;
+                while (start <= end) {
+                    int comma = indexOfUnescaped(pattern, ',', start, end);
+                    List<Token> alternative = parse(pattern, start, comma, separator);
+                    for (List<Token> sequence : sequences) {
+                        List<Token> copy = Lists.newArrayList(sequence);
+                        copy.addAll(alternative);
+                        expanded.add(copy);
+                    }
+                    start = comma + 1;
+                }
+                sequences = expanded;
+                i = end + 1;
+            } else {
+                int end = indexOfUnescaped(pattern, '{', i, pattern.length());
+                List<Token> tokens = parse(pattern, i, end, separator);
+                for (List<Token> sequence : sequences) {
+                    sequence.addAll(tokens);
+                }
+                i = end;
+            }
+        }
+
+        Token[][] alternatives = new Token[sequences.size()][];
+        for (int j = 0; j < alternatives.length; j++) {
+            alternatives[j] = sequences.get(j).toArray(new Token[sequences.get(j).size()]);
+        }
+        return new OverthereGlob(pattern, separator, alternatives);
+    }
+
+    private static int indexOfUnescaped(String pattern, char wanted, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                int close = pattern.indexOf(']', i + 2);
+                i = close < 0 ? to : close;
+            } else if (c == wanted) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static List<Token> parse(String pattern, int from, int to, char separator) {
+        List<Token> tokens = Lists.newArrayList();
+        int i = from;
+        while (i < to) {
+            char c = pattern.charAt(i++);
+            switch (c) {
+            case '\\':
+                if (i == to) {
+                    throw new PatternSyntaxException("No character to escape", pattern, i - 1);
+                }
+                tokens.add(new Token(LITERAL, pattern.charAt(i++)));
+                break;
+            case '?':
+                tokens.add(new Token(ANY, c));
+                break;
+            case '*':
+                if (i < to && pattern.charAt(i) == '*') {
+                    i++;
+                    tokens.add(new Token(STAR_STAR, c));
+                } else {
+                    tokens.add(new Token(STAR, c));
+                }
+                break;
+            case '[':
+                i = parseClass(pattern, i, to, separator, tokens);
+                break;
+            case '{':
+                throw new PatternSyntaxException("Cannot nest groups", pattern, i - 1);
+            default:
+                tokens.add(new Token(LITERAL, c));
+            }
+        }
+        return tokens;
+    }
+
+    private static int parseClass(String pattern, int from, int to, char separator, List<Token> tokens) {
+        int i = from;
+        boolean negate = i < to && pattern.charAt(i) == '!';
+        if (negate) {
+            i++;
+        }
+        StringBuilder ranges = new StringBuilder();
+        boolean first = true;
+        while (i < to && (first || pattern.charAt(i) != ']')) {
+            char low = pattern.charAt(i++);
+            if (low == '\\' && i < to) {
+                low = pattern.charAt(i++);
+            }
+            char high = low;
+            if (i + 1 < to && pattern.charAt(i) == '-' && pattern.charAt(i + 1) != ']') {
+                high = pattern.charAt(i + 1);
+                i += 2;
+                if (high < low) {
+                    throw new PatternSyntaxException("Invalid range", pattern, i - 1);
+                }
+            }
+            if (low <= separator && separator <= high) {
+                throw new PatternSyntaxException("Explicit 'name separator' in class", pattern, i - 1);
+            }
+            ranges.append(low).append(high);
+            first = false;
+        }
+        if (i == to) {
+            throw new PatternSyntaxException("Missing ']'", pattern, from - 1);
+        }
+        tokens.add(new Token(negate, ranges.toString().toCharArray()));
+        return i + 1;
+    }
+
+    @Override
+    public boolean matches(Path path) {
+        if (path instanceof Probe) {
+            ((Probe) path).glob = this;
+            return false;
+        }
+        return matches(OvertherePath.matchTarget(path));
+    }
+
+    @Override
+    public boolean accept(Path entry) {
+        return matches(entry.getFileName());
+    }
+
+    /**
+     * Returns the glob that a directory stream filter matches the file names of the entries against, so that the
+     * listing can leave out the other names. That is the case for a glob of this provider itself, and for the filter
+     * that {@link java.nio.file.Files#newDirectoryStream(Path, String)} wraps around the glob it asks the file system
+     * for. The latter is found by letting the filters of the platform, which have no side effects, accept a
+     * {@link Probe} that the glob recognizes; user filters are never called this way.
+     *
+     * @return the glob, or {@code null} if the filter may select entries in any other way.
+     */
+    static OverthereGlob of(DirectoryStream.Filter<? super Path> filter, OverthereFileSystem fileSystem) {
+        if (filter instanceof OverthereGlob) {
+            return (OverthereGlob) filter;
+        }
+        if (filter.getClass().getClassLoader() != null) {
+            return null;
+        }
+        Probe probe = new Probe(fileSystem);
+        try {
+            filter.accept(probe);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        return probe.glob;
+    }
+
+    boolean matches(CharSequence input) {
+        for (Token[] tokens : alternatives) {
+            if (matches(tokens, 0, input, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matches(Token[] tokens, int ti, CharSequence input, int si) {
+        int length = input.length();
+        while (ti < tokens.length) {
+            Token token = tokens[ti];
+            if (token.kind == STAR || token.kind == STAR_STAR) {
+                for (int k = si; k <= length; k++) {
+                    if (matches(tokens, ti + 1, input, k)) {
+                        return true;
+                    }
+                    if (k < length && token.kind == STAR && input.charAt(k) == separator) {
+                        return false;
+                    }
+                }
+                return false;
+            }
+            if (si == length || !token.matches(input.charAt(si), separator)) {
+                return false;
+            }
+            ti++;
+            si++;
+        }
+        return si == length;
+    }
+
+    /**
+     * Returns the glob as {@code find -name} patterns, one per group alternative, or {@code null} if it cannot
+     * match a single name.
+     */
+    List<String> toNamePatterns() {
+        List<String> namePatterns = Lists.newArrayList();
+        for (Token[] tokens : alternatives) {
+            StringBuilder namePattern = new StringBuilder();
+            for (Token token : tokens) {
+                if (token.kind == LITERAL && token.literal == separator) {
+                    return null;
+                }
+                token.appendNamePattern(namePattern);
+            }
+            namePatterns.add(namePattern.toString());
+        }
+        return namePatterns;
+    }
+
+    @Override
+    public String toString() {
+        return "glob:" + pattern;
+    }
+
+    private static class Token {
+        final int kind;
+        final char literal;
+        final boolean negate;
+        final char[] ranges;
+
+        Token(int kind, char literal) {
+            this.kind = kind;
+            this.literal = literal;
+            this.negate = false;
+            this.ranges = null;
+        }
+
+        Token(boolean negate, char[] ranges) {
+            this.kind = CLASS;
+            this.literal = 0;
+            this.negate = negate;
+            this.ranges = ranges;
+        }
+
+        boolean matches(char c, char separator) {
+            switch (kind) {
+            case LITERAL:
+                return c == literal;
+            case ANY:
+                return c != separator;
+            default:
+                if (c == separator) {
+                    return false;
+                }
+                for (int i = 0; i < ranges.length; i += 2) {
+                    if (ranges[i] <= c && c <= ranges[i + 1]) {
+                        return !negate;
+                    }
+                }
+                return negate;
+            }
+        }
+
+        void appendNamePattern(StringBuilder out) {
+            switch (kind) {
+            case LITERAL:
+                appendEscaped(out, literal);
+                break;
+            case ANY:
+                out.append('?');
+                break;
+            case STAR:
+            case STAR_STAR:
+                out.append('*');
+                break;
+            default:
+                out.append('[');
+                if (negate) {
+                    out.append('!');
+                }
+                for (int i = 0; i < ranges.length; i += 2) {
+                    appendEscaped(out, ranges[i]);
+                    if (ranges[i + 1] != ranges[i]) {
+                        out.append('-');
+                        appendEscaped(out, ranges[i + 1]);
+                    }
+                }
+                out.append(']');
+            }
+        }
+
+        private static void appendEscaped(StringBuilder out, char c) {
+            if ("*?[]\\!-".indexOf(c) >= 0) {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+    }
+
+    /**
+     * A path that is its own file name and that a glob recognizes when it is asked to match it, to find out which
+     * glob a filter matches file names against.
+     */
+    private static final class Probe extends OvertherePath {
+        private OverthereGlob glob;
+
+        Probe(OverthereFileSystem fileSystem) {
+            super(fileSystem, false);
+        }
+
+        @Override
+        public Path getFileName() {
+            return this;
+        }
+    }
+}
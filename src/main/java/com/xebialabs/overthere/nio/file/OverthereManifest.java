@@ -0,0 +1,168 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import com.google.common.collect.AbstractIterator;
+
+import com.xebialabs.overthere.OverthereConnection;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Every file below a directory, at any depth, with its type, size, modification time and mode. Parents come before
+ * their children. Links are not followed.
+ *
+ * On UNIX hosts that allow host commands the whole tree is listed by a single {@code find} invocation, whose output
+ * is consumed while the host produces it. Otherwise every directory is listed separately, and the mode is not known.
+ * Closing the manifest stops a listing that is still running.
+ */
+public class OverthereManifest implements Iterable<OverthereManifest.Entry>, Closeable {
+
+    private final Iterator<Entry> entries;
+    private final Closeable listing;
+    private boolean iteratorReturned;
+    private boolean closed;
+
+    OverthereManifest(OverthereFileSystemProvider provider, OvertherePath dir) throws IOException {
+        OverthereFileSystem fileSystem = dir.getOverthereFileSystem();
+        DirectoryListing.FindListing findListing = null;
+        OverthereConnection connection = fileSystem.borrowConnection();
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            if (provider.canUseFind(fileSystem, connection)) {
+                findListing = DirectoryListing.FindListing.start(dir, connection, FindCommand.tree(dir.toString()));
+            }
+            succeeded = true;
+        } finally {
+            if (findListing != null || !succeeded) {
+                fileSystem.getMetrics().record(OverthereMetrics.Operation.LIST, start, succeeded);
+            }
+            fileSystem.releaseConnection(connection);
+        }
+
+        if (findListing != null) {
+            this.entries = new FindEntries(findListing);
+            this.listing = findListing;
+        } else {
+            WalkedEntries walkedEntries = new WalkedEntries(provider, dir);
+            this.entries = walkedEntries;
+            this.listing = walkedEntries;
+        }
+    }
+
+    @Override
+    public synchronized Iterator<Entry> iterator() {
+        checkState(!closed, "Manifest is closed");
+        checkState(!iteratorReturned, "Iterator has already been returned");
+        iteratorReturned = true;
+        return entries;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        listing.close();
+    }
+
+    public static class Entry {
+        private final Path path;
+        private final BasicFileAttributes attributes;
+        private final int mode;
+
+        Entry(Path path, BasicFileAttributes attributes, int mode) {
+            this.path = path;
+            this.attributes = attributes;
+            this.mode = mode;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public BasicFileAttributes getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * Returns the permission bits of the file, such as {@code 0755}, or {@code -1} if they are not known.
+         */
+        public int getMode() {
+            return mode;
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    private static class FindEntries extends AbstractIterator<Entry> {
+        private final DirectoryListing.FindListing listing;
+
+        FindEntries(DirectoryListing.FindListing listing) {
+            this.listing = listing;
+        }
+
+        @Override
+        protected Entry computeNext() {
+            if (!listing.hasNext()) {
+                return endOfData();
+            }
+            OvertherePath path = (OvertherePath) listing.next();
+            FindCommand.Entry entry = listing.current();
+            return new Entry(path, entry.toAttributes(false), entry.getMode());
+        }
+    }
+
+    /**
+     * Lists the tree one directory at a time, depth first.
+     */
+    private static class WalkedEntries extends AbstractIterator<Entry> implements Closeable {
+        private final OverthereFileSystemProvider provider;
+        private final Deque<DirectoryListing> listings = new ArrayDeque<DirectoryListing>();
+
+        WalkedEntries(OverthereFileSystemProvider provider, OvertherePath dir) throws IOException {
+            this.provider = provider;
+            listings.push(DirectoryListing.open(provider, dir));
+        }
+
+        @Override
+        protected Entry computeNext() {
+            while (!listings.isEmpty()) {
+                DirectoryListing listing = listings.peek();
+                if (!listing.hasNext()) {
+                    listings.pop().close();
+                    continue;
+                }
+                OvertherePath path = (OvertherePath) listing.next();
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        listings.push(DirectoryListing.open(provider, path));
+                    }
+                    return new Entry(path, attributes, -1);
+                } catch (IOException e) {
+                    close();
+                    throw new DirectoryIteratorException(e);
+                }
+            }
+            return endOfData();
+        }
+
+        @Override
+        public void close() {
+            while (!listings.isEmpty()) {
+                listings.pop().close();
+            }
+        }
+    }
+}
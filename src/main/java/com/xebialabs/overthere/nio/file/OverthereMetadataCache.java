@@ -0,0 +1,154 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import com.xebialabs.overthere.ConnectionOptions;
+
+/**
+ * A time-bounded cache of file attributes and existence, so that the existence and type checks the provider does
+ * before the real work do not each cost a round trip to the host.
+ *
+ * The cache is disabled unless {@link #METADATA_CACHE_TTL} is set. Entries expire that long after they were read,
+ * and the least recently used entries are evicted when there are more than {@link #METADATA_CACHE_SIZE}. Changes
+ * made through the provider invalidate the affected entries; changes made by others on the host are only seen once
+ * the entries expire, or after an explicit {@link #invalidate(Path)} or {@link #invalidateTree(Path)}.
+ */
+public class OverthereMetadataCache {
+
+    /**
+     * Time in milliseconds that attributes stay cached. Defaults to 0, which disables the cache.
+     */
+    public static final String METADATA_CACHE_TTL = "metadataCacheTtl";
+
+    /**
+     * Maximum number of cached entries. Defaults to 10000.
+     */
+    public static final String METADATA_CACHE_SIZE = "metadataCacheSize";
+
+    /**
+     * Time in milliseconds that the attributes a directory listing read along with its entries answer
+     * {@code readAttributes} on the returned paths. Defaults to {@link #METADATA_CACHE_TTL} when the cache is enabled.
+     * Otherwise it defaults to 1000, which is long enough for a tree walker to visit the entries of a directory
+     * without a round trip per entry, and short enough not to serve stale data to paths that are kept around.
+     */
+    public static final String PREFETCHED_ATTRIBUTES_TTL = "prefetchedAttributesTtl";
+
+    private static final int METADATA_CACHE_SIZE_DEFAULT = 10000;
+
+    private static final int PREFETCHED_ATTRIBUTES_TTL_DEFAULT = 1000;
+
+    private final Cache<String, Entry> cache;
+    private final long prefetchedAttributesTtlNanos;
+
+    OverthereMetadataCache(ConnectionOptions options) {
+        int ttl = options.getInteger(METADATA_CACHE_TTL, 0);
+        int prefetchedAttributesTtl = options.getInteger(PREFETCHED_ATTRIBUTES_TTL, ttl > 0 ? ttl : PREFETCHED_ATTRIBUTES_TTL_DEFAULT);
+        prefetchedAttributesTtlNanos = TimeUnit.MILLISECONDS.toNanos(prefetchedAttributesTtl);
+        if (ttl > 0) {
+            cache = CacheBuilder.newBuilder()
+                    .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                    .maximumSize(options.getInteger(METADATA_CACHE_SIZE, METADATA_CACHE_SIZE_DEFAULT))
+                    .build();
+        } else {
+            cache = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    long getPrefetchedAttributesTtlNanos() {
+        return prefetchedAttributesTtlNanos;
+    }
+
+    /**
+     * Returns the cached entry for a path, or {@code null} if there is none that answers a lookup with the given
+     * link option. Attributes read without following links also answer lookups that follow links, unless the file
+     * turned out to be a symbolic link.
+     */
+    Entry get(Path path, boolean followLinks) {
+        if (cache == null) {
+            return null;
+        }
+        Entry entry = cache.getIfPresent(path.toString());
+        if (entry == null || entry.followLinks == followLinks || !entry.exists()) {
+            return entry;
+        }
+        return !entry.followLinks && !entry.attributes.isSymbolicLink() ? entry : null;
+    }
+
+    void put(Path path, boolean followLinks, OverthereFileAttributes attributes) {
+        if (cache != null) {
+            cache.put(path.toString(), new Entry(followLinks, attributes));
+        }
+    }
+
+    void putMissing(Path path) {
+        put(path, true, null);
+    }
+
+    /**
+     * Forgets what is known about a path and about its parent directory, whose modification time changes with it.
+     */
+    public void invalidate(Path path) {
+        if (cache == null) {
+            return;
+        }
+        cache.invalidate(path.toString());
+        Path parent = path.getParent();
+        if (parent != null) {
+            cache.invalidate(parent.toString());
+        }
+    }
+
+    /**
+     * Forgets what is known about a directory, its parent and everything below it, for instance after the directory
+     * was moved or deleted. This goes through all cached entries, so single files are better served by
+     * {@link #invalidate(Path)}.
+     */
+    public void invalidateTree(Path dir) {
+        if (cache == null) {
+            return;
+        }
+        invalidate(dir);
+        String prefix = dir.toString() + dir.getFileSystem().getSeparator();
+        Iterator<String> paths = cache.asMap().keySet().iterator();
+        while (paths.hasNext()) {
+            if (paths.next().startsWith(prefix)) {
+                paths.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    static class Entry {
+        private final boolean followLinks;
+        private final OverthereFileAttributes attributes;
+
+        private Entry(boolean followLinks, OverthereFileAttributes attributes) {
+            this.followLinks = followLinks;
+            this.attributes = attributes;
+        }
+
+        boolean exists() {
+            return attributes != null;
+        }
+
+        /**
+         * The cached attributes, or {@code null} if the file did not exist.
+         */
+        OverthereFileAttributes getAttributes() {
+            return attributes;
+        }
+    }
+}
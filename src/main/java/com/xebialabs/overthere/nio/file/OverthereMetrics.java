@@ -0,0 +1,289 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import com.google.common.collect.Maps;
+
+/**
+ * Counts the operations of one {@link OverthereFileSystem} by type, with their failures, latencies and the bytes read
+ * and written, to tell where the time of a slow step goes: listings, attribute reads, transfers or connecting.
+ *
+ * Latencies are kept in histograms with one bucket per power of two microseconds. Recording an operation costs two
+ * {@link System#nanoTime()} calls and a few atomic increments, which is negligible next to a remote round trip, so
+ * the metrics are always on. They are read with {@link #snapshot()} or over JMX.
+ */
+public final class OverthereMetrics implements OverthereMetricsMXBean {
+
+    public enum Operation {
+        /**
+         * Opening a new connection to the host.
+         */
+        CONNECT,
+        /**
+         * Waiting for a connection from the pool.
+         */
+        BORROW,
+        READ_ATTRIBUTES,
+        CHECK_ACCESS,
+        /**
+         * Starting a directory listing.
+         */
+        LIST,
+        /**
+         * Opening a stream to read or write a file, including reopening it at another position.
+         */
+        OPEN,
+        READ,
+        WRITE,
+        CREATE_DIRECTORY,
+        DELETE,
+        COPY,
+        MOVE,
+        /**
+         * Transferring a directory tree to the host with {@link OverthereFileSystemProvider#upload}.
+         */
+        UPLOAD,
+        /**
+         * Transferring a directory tree from the host with {@link OverthereFileSystemProvider#download}.
+         */
+        DOWNLOAD
+    }
+
+    /**
+     * Bucket {@code i} counts the latencies below {@code 2^i} microseconds that did not fit in a lower bucket. The
+     * last bucket also counts everything longer.
+     */
+    static final int BUCKETS = 32;
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final AtomicLongArray counts = new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray errors = new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray totalNanos = new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray histograms = new AtomicLongArray(OPERATIONS.length * BUCKETS);
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Records an operation that started at {@code startNanos}, as returned by {@link System#nanoTime()}.
+     */
+    void record(Operation operation, long startNanos, boolean succeeded) {
+        long nanos = System.nanoTime() - startNanos;
+        int index = operation.ordinal();
+        counts.incrementAndGet(index);
+        if (!succeeded) {
+            errors.incrementAndGet(index);
+        }
+        totalNanos.addAndGet(index, nanos);
+        histograms.incrementAndGet(index * BUCKETS + bucket(nanos));
+    }
+
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    }
+
+    void bytesRead(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    void bytesWritten(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Returns a copy of the current values. Operations that are recorded while the copy is taken may be partly
+     * included.
+     */
+    public Snapshot snapshot() {
+        Map<Operation, OperationSnapshot> operations = new EnumMap<Operation, OperationSnapshot>(Operation.class);
+        for (Operation operation : OPERATIONS) {
+            int index = operation.ordinal();
+            long[] histogram = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = histograms.get(index * BUCKETS + i);
+            }
+            operations.put(operation, new OperationSnapshot(counts.get(index), errors.get(index), totalNanos.get(index), histogram));
+        }
+        return new Snapshot(operations, bytesRead.get(), bytesWritten.get());
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            counts.set(i, 0);
+            errors.set(i, 0);
+            totalNanos.set(i, 0);
+        }
+        for (int i = 0; i < histograms.length(); i++) {
+            histograms.set(i, 0);
+        }
+        bytesRead.set(0);
+        bytesWritten.set(0);
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> result = Maps.newLinkedHashMap();
+        for (Map.Entry<Operation, OperationSnapshot> entry : snapshot().getOperations().entrySet()) {
+            result.put(entry.getKey().name(), entry.getValue().getCount());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> result = Maps.newLinkedHashMap();
+        for (Map.Entry<Operation, OperationSnapshot> entry : snapshot().getOperations().entrySet()) {
+            result.put(entry.getKey().name(), entry.getValue().getErrors());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getMeanLatencyMicros() {
+        Map<String, Long> result = Maps.newLinkedHashMap();
+        for (Map.Entry<Operation, OperationSnapshot> entry : snapshot().getOperations().entrySet()) {
+            result.put(entry.getKey().name(), entry.getValue().getMeanLatency(TimeUnit.MICROSECONDS));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getMedianLatencyMicros() {
+        return getPercentileLatencyMicros(0.5);
+    }
+
+    @Override
+    public Map<String, Long> get99thPercentileLatencyMicros() {
+        return getPercentileLatencyMicros(0.99);
+    }
+
+    private Map<String, Long> getPercentileLatencyMicros(double percentile) {
+        Map<String, Long> result = Maps.newLinkedHashMap();
+        for (Map.Entry<Operation, OperationSnapshot> entry : snapshot().getOperations().entrySet()) {
+            result.put(entry.getKey().name(), entry.getValue().getPercentileLatencyMicros(percentile));
+        }
+        return result;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * The metrics of a file system at one point in time.
+     */
+    public static final class Snapshot {
+        private final Map<Operation, OperationSnapshot> operations;
+        private final long bytesRead;
+        private final long bytesWritten;
+
+        Snapshot(Map<Operation, OperationSnapshot> operations, long bytesRead, long bytesWritten) {
+            this.operations = Collections.unmodifiableMap(operations);
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+        }
+
+        public Map<Operation, OperationSnapshot> getOperations() {
+            return operations;
+        }
+
+        public OperationSnapshot get(Operation operation) {
+            return operations.get(operation);
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot[bytesRead=" + bytesRead + ", bytesWritten=" + bytesWritten + ", operations=" + operations + "]";
+        }
+    }
+
+    /**
+     * The counts and latencies of one type of operation at one point in time.
+     */
+    public static final class OperationSnapshot {
+        private final long count;
+        private final long errors;
+        private final long totalNanos;
+        private final long[] histogram;
+
+        OperationSnapshot(long count, long errors, long totalNanos, long[] histogram) {
+            this.count = count;
+            this.errors = errors;
+            this.totalNanos = totalNanos;
+            this.histogram = histogram;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getTotalLatency(TimeUnit unit) {
+            return unit.convert(totalNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public long getMeanLatency(TimeUnit unit) {
+            return count == 0 ? 0 : unit.convert(totalNanos / count, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Returns the upper bound, in microseconds, of the histogram bucket that holds the given percentile of the
+         * latencies, e.g. {@code 0.99}. The bound is at most twice the actual latency.
+         */
+        public long getPercentileLatencyMicros(double percentile) {
+            long total = 0;
+            for (long bucketCount : histogram) {
+                total += bucketCount;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (histogram.length - 1);
+        }
+
+        /**
+         * Returns the number of latencies per bucket, where bucket {@code i} holds the latencies from
+         * {@code 2^(i-1)} up to {@code 2^i} microseconds.
+         */
+        public long[] getHistogram() {
+            return Arrays.copyOf(histogram, histogram.length);
+        }
+
+        @Override
+        public String toString() {
+            return "[count=" + count + ", errors=" + errors + ", meanMicros=" + getMeanLatency(TimeUnit.MICROSECONDS) + "]";
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.util.Map;
+
+/**
+ * The metrics of one {@link OverthereFileSystem} as they are published over JMX, under
+ * {@code com.xebialabs.overthere.nio:type=OverthereFileSystem,uri=<uri>}. Operations are keyed by the name of their
+ * {@link OverthereMetrics.Operation}, and latencies are in microseconds.
+ */
+public interface OverthereMetricsMXBean {
+
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Long> getErrorCounts();
+
+    Map<String, Long> getMeanLatencyMicros();
+
+    Map<String, Long> getMedianLatencyMicros();
+
+    Map<String, Long> get99thPercentileLatencyMicros();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    void reset();
+}
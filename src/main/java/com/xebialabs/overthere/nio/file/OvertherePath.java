@@ -9,40 +9,77 @@ import java.nio.file.*;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchEvent.Modifier;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.Stack;
-import com.google.common.base.Splitter;
 
+import com.xebialabs.overthere.OverthereConnection;
 import com.xebialabs.overthere.OverthereFile;
 
-import static com.google.common.base.Joiner.on;
 import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.collect.Lists.newArrayList;
 import static java.lang.String.format;
 
+/**
+ * A path on an {@link OverthereFileSystem}. A path holds its last name and a link to its parent. The chain ends at a
+ * path without names: the root, or the empty path for relative paths. Children that are resolved against the same
+ * directory share that directory's path. A path therefore takes the same memory whatever its depth, and
+ * {@link #getParent()} returns a path that already exists. Names are interned per file system, so the many paths
+ * that repeat a name share one string.
+ *
+ * The string form and hash code are computed when they are first needed.
+ */
 public class OvertherePath implements Path {
 
-    private OverthereFileSystem fileSystem;
+    private final OverthereFileSystem fileSystem;
 
-    private List<String> segments;
+    /**
+     * The path without its last name, or {@code null} if this path has no names.
+     */
+    private final OvertherePath parent;
+    private final String name;
+    private final int count;
 
-    private boolean absolute;
-    private final Splitter pathSplitter;
+    private final boolean absolute;
+
+    private String string;
+    private int hash;
+
+    private volatile Prefetched prefetched;
 
     OvertherePath(OverthereFileSystem fileSystem, String path) {
+        this.absolute = path.startsWith(fileSystem.getSeparator());
+        OvertherePath last = null;
+        for (String pathName : fileSystem.getPathSplitter().split(path)) {
+            last = (last == null ? fileSystem.getEmptyPath(absolute) : last).child(pathName);
+        }
         this.fileSystem = fileSystem;
-        String sep = fileSystem.getSeparator();
-        this.absolute = path.startsWith(sep);
-        pathSplitter = Splitter.on(sep).omitEmptyStrings();
-        this.segments = newArrayList(pathSplitter.split(path));
+        this.parent = last == null ? null : last.parent;
+        this.name = last == null ? null : last.name;
+        this.count = last == null ? 0 : last.count;
     }
 
-    OvertherePath(OverthereFileSystem fileSystem, List<String> segments, boolean absolute) {
+    /**
+     * Creates a path without names.
+     */
+    OvertherePath(OverthereFileSystem fileSystem, boolean absolute) {
         this.fileSystem = fileSystem;
-        this.segments = segments;
+        this.parent = null;
+        this.name = null;
+        this.count = 0;
         this.absolute = absolute;
-        pathSplitter = Splitter.on(fileSystem.getSeparator()).omitEmptyStrings();
+    }
+
+    private OvertherePath(OvertherePath parent, String name) {
+        this.fileSystem = parent.fileSystem;
+        this.parent = parent;
+        this.name = name;
+        this.count = parent.count + 1;
+        this.absolute = parent.absolute;
+    }
+
+    /**
+     * Returns the path of the entry {@code name} of this directory.
+     */
+    OvertherePath child(String name) {
+        return new OvertherePath(this, fileSystem.intern(name));
     }
 
     @Override
@@ -54,8 +91,77 @@ public class OvertherePath implements Path {
         return fileSystem;
     }
 
-    OverthereFile getOverthereFile() {
-        return fileSystem.getConnection().getFile(this.toString());
+    OverthereFile getOverthereFile(OverthereConnection connection) {
+        return connection.getFile(this.toString());
+    }
+
+    /**
+     * Attaches the attributes that were read together with this path, for instance by a directory listing.
+     */
+    void setPrefetchedAttributes(OverthereFileAttributes attributes) {
+        this.prefetched = new Prefetched(attributes, System.nanoTime());
+    }
+
+    /**
+     * Returns the attributes that were read together with this path if they are still fresh enough to be used
+     * instead of asking the host again, {@code null} otherwise. How long that is, is set by
+     * {@link OverthereMetadataCache#PREFETCHED_ATTRIBUTES_TTL}.
+     */
+    OverthereFileAttributes getPrefetchedAttributes(boolean followLinks) {
+        Prefetched current = prefetched;
+        if (current == null || System.nanoTime() - current.readAt > fileSystem.getMetadataCache().getPrefetchedAttributesTtlNanos()) {
+            return null;
+        }
+        if (followLinks && current.attributes.isSymbolicLink()) {
+            return null;
+        }
+        return current.attributes;
+    }
+
+    /**
+     * Returns the characters a {@link java.nio.file.PathMatcher} matches against. That is the name itself for a path
+     * of a single name, such as the file names that directory stream filters match, so that no string is built.
+     */
+    static CharSequence matchTarget(Path path) {
+        if (path instanceof OvertherePath) {
+            OvertherePath overtherePath = (OvertherePath) path;
+            if (!overtherePath.absolute && overtherePath.count == 1) {
+                return overtherePath.name;
+            }
+        }
+        return path.toString();
+    }
+
+    /**
+     * Returns the names of this path, from the first to the last.
+     */
+    private String[] names() {
+        String[] names = new String[count];
+        OvertherePath path = this;
+        for (int i = count - 1; i >= 0; i--) {
+            names[i] = path.name;
+            path = path.parent;
+        }
+        return names;
+    }
+
+    private OvertherePath ancestor(int nameCount) {
+        OvertherePath path = this;
+        while (path.count > nameCount) {
+            path = path.parent;
+        }
+        return path;
+    }
+
+    /**
+     * Returns the path made of {@code names} from {@code begin} to {@code end} appended to {@code base}.
+     */
+    private static OvertherePath append(OvertherePath base, String[] names, int begin, int end) {
+        OvertherePath path = base;
+        for (int i = begin; i < end; i++) {
+            path = new OvertherePath(path, names[i]);
+        }
+        return path;
     }
 
     @Override
@@ -70,39 +176,40 @@ public class OvertherePath implements Path {
 
     @Override
     public Path getFileName() {
-        int last = segments.size();
-        return slicePath(last - 1, last, false);
+        if (count == 0) {
+            return null;
+        }
+        if (count == 1 && !absolute) {
+            return this;
+        }
+        return new OvertherePath(fileSystem.getEmptyPath(false), name);
     }
 
     @Override
     public Path getParent() {
-        return slicePath(0, segments.size() - 1, absolute);
+        return parent;
     }
 
     @Override
     public int getNameCount() {
-        return segments.size();
+        return count;
     }
 
     @Override
     public Path getName(int index) {
-        checkArgument(index >= 0 && index < segments.size(), "Cannot call getName with index = %s on path: %s", index, toString());
-        return slicePath(index, index + 1, false);
+        checkArgument(index >= 0 && index < count, "Cannot call getName with index = %s on path: %s", index, toString());
+        return ancestor(index + 1).getFileName();
     }
 
     @Override
     public Path subpath(int beginIndex, int endIndex) {
-        checkArgument(beginIndex >= 0 && beginIndex < segments.size(), "Cannot call subpath with beginIndex = %s on path: %s", beginIndex, toString());
-        checkArgument(endIndex > beginIndex && endIndex <= segments.size(), "Cannot call subpath with endIndex = %s on path: %s", endIndex, toString());
-        return slicePath(beginIndex, endIndex, false);
-    }
-
-    private Path slicePath(int beginIndex, int endIndex, boolean absolute) {
-        if (segments.isEmpty()) {
-            return null;
+        checkArgument(beginIndex >= 0 && beginIndex < count, "Cannot call subpath with beginIndex = %s on path: %s", beginIndex, toString());
+        checkArgument(endIndex > beginIndex && endIndex <= count, "Cannot call subpath with endIndex = %s on path: %s", endIndex, toString());
+        OvertherePath end = ancestor(endIndex);
+        if (beginIndex == 0 && !absolute) {
+            return end;
         }
-
-        return new OvertherePath(fileSystem, segments.subList(beginIndex, endIndex), absolute);
+        return append(fileSystem.getEmptyPath(false), end.names(), beginIndex, endIndex);
     }
 
     @Override
@@ -114,18 +221,12 @@ public class OvertherePath implements Path {
         OvertherePath otherPath = (OvertherePath) other;
 
         if (!otherPath.getFileSystem().equals(fileSystem)
-                || otherPath.segments.size() > segments.size()
+                || otherPath.count > count
                 || otherPath.absolute != absolute) {
             return false;
         }
 
-        for (int i = 0; i < otherPath.segments.size(); i++) {
-            if (!otherPath.segments.get(i).equals(segments.get(i))) {
-                return false;
-            }
-        }
-
-        return true;
+        return sameNames(ancestor(otherPath.count), otherPath);
     }
 
     @Override
@@ -141,18 +242,21 @@ public class OvertherePath implements Path {
 
         OvertherePath otherPath = (OvertherePath) other;
 
-        int otherSize = otherPath.segments.size();
-        int size = segments.size();
+        int otherSize = otherPath.count;
+        int size = count;
         if (!otherPath.getFileSystem().equals(fileSystem)
                 || otherSize > size
                 || (otherSize == size && otherPath.absolute && !absolute)) {
             return false;
         }
 
+        OvertherePath path = this;
         for (int i = 0; i < otherSize; i++) {
-            if (!otherPath.segments.get(otherSize - i - 1).equals(segments.get(size - i - 1))) {
+            if (!path.name.equals(otherPath.name)) {
                 return false;
             }
+            path = path.parent;
+            otherPath = otherPath.parent;
         }
 
         return true;
@@ -165,21 +269,30 @@ public class OvertherePath implements Path {
 
     @Override
     public Path normalize() {
-        Stack<String> filteredSegments = new Stack<String>();
-        for (String segment : segments) {
-            if (".".equals(segment)) {
+        boolean normal = true;
+        for (OvertherePath path = this; path.count > 0 && normal; path = path.parent) {
+            normal = !".".equals(path.name) && !"..".equals(path.name);
+        }
+        if (normal) {
+            return this;
+        }
+
+        String[] names = names();
+        int filteredCount = 0;
+        for (String pathName : names) {
+            if (".".equals(pathName)) {
                 continue;
             }
-            if ("..".equals(segment)) {
-                if (!filteredSegments.isEmpty()) {
-                    filteredSegments.pop();
+            if ("..".equals(pathName)) {
+                if (filteredCount > 0) {
+                    filteredCount--;
                 }
                 continue;
             }
-            filteredSegments.push(segment);
+            names[filteredCount++] = pathName;
         }
 
-        return new OvertherePath(fileSystem, newArrayList(filteredSegments), absolute);
+        return append(fileSystem.getEmptyPath(absolute), names, 0, filteredCount);
     }
 
     @Override
@@ -188,13 +301,22 @@ public class OvertherePath implements Path {
             return other;
         }
 
-        List<String> strings = newArrayList(segments);
-        for (int i = 0; i < other.getNameCount(); i++) {
-            strings.add(other.getName(i).toString());
+        int otherCount = other.getNameCount();
+        if (otherCount == 0) {
+            return this;
         }
-
-
-        return new OvertherePath(fileSystem, strings, absolute);
+        if (other instanceof OvertherePath) {
+            OvertherePath otherPath = (OvertherePath) other;
+            if (otherCount == 1) {
+                return new OvertherePath(this, otherPath.name);
+            }
+            return append(this, otherPath.names(), 0, otherCount);
+        }
+        OvertherePath path = this;
+        for (int i = 0; i < otherCount; i++) {
+            path = path.child(other.getName(i).toString());
+        }
+        return path;
     }
 
     @Override
@@ -220,28 +342,23 @@ public class OvertherePath implements Path {
             return fileSystem.getPath("");
         }
 
+        String[] names = names();
+        int otherCount = other.getNameCount();
         int longestCommonSubstring = 0;
-        Iterator<Path> otherIt = other.iterator();
-        List<String> newSegments = newArrayList();
-        for (Path path : this) {
-            if (otherIt.hasNext()) {
-                if (path.equals(otherIt.next())) {
-                    longestCommonSubstring++;
-                } else {
-                    break;
-                }
-            }
+        while (longestCommonSubstring < count && longestCommonSubstring < otherCount
+                && names[longestCommonSubstring].equals(other.getName(longestCommonSubstring).toString())) {
+            longestCommonSubstring++;
         }
 
-        for (int i = 0; i < segments.size() - longestCommonSubstring; i++) {
-            newSegments.add("..");
+        OvertherePath relative = fileSystem.getEmptyPath(false);
+        for (int i = longestCommonSubstring; i < count; i++) {
+            relative = relative.child("..");
         }
-
-        for (int i = longestCommonSubstring; i < other.getNameCount(); i++) {
-            newSegments.add(other.getName(i).toString());
+        for (int i = longestCommonSubstring; i < otherCount; i++) {
+            relative = relative.child(other.getName(i).toString());
         }
 
-        return new OvertherePath(fileSystem, newSegments, false);
+        return relative;
     }
 
     @Override
@@ -275,30 +392,32 @@ public class OvertherePath implements Path {
 
     @Override
     public WatchKey register(WatchService watcher, Kind<?>[] events, Modifier... modifiers) throws IOException {
-        throw new UnsupportedOperationException();
+        if (!(watcher instanceof OverthereWatchService)) {
+            throw new ProviderMismatchException();
+        }
+        return ((OverthereWatchService) watcher).register(this, events, modifiers);
     }
 
     @Override
     public WatchKey register(WatchService watcher, Kind<?>... events) throws IOException {
-        throw new UnsupportedOperationException();
+        return register(watcher, events, new Modifier[0]);
     }
 
     @Override
     public Iterator<Path> iterator() {
+        final String[] names = names();
         return new Iterator<Path>() {
             private int i = 0;
 
             @Override
             public boolean hasNext() {
-                return (i < getNameCount());
+                return i < names.length;
             }
 
             @Override
             public Path next() {
-                if (i < getNameCount()) {
-                    Path result = getName(i);
-                    i++;
-                    return result;
+                if (i < names.length) {
+                    return new OvertherePath(fileSystem.getEmptyPath(false), names[i++]);
                 } else {
                     throw new NoSuchElementException();
                 }
@@ -322,8 +441,51 @@ public class OvertherePath implements Path {
     }
 
     private String getPathString() {
-        String sep = getFileSystem().getSeparator();
-        return (absolute ? sep : "") + on(sep).join(segments);
+        String result = string;
+        if (result == null && count == 1 && !absolute) {
+            return name;
+        }
+        if (result == null) {
+            String sep = fileSystem.getSeparator();
+            StringBuilder builder = new StringBuilder();
+            if (absolute) {
+                builder.append(sep);
+            }
+            String[] names = names();
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    builder.append(sep);
+                }
+                builder.append(names[i]);
+            }
+            result = builder.toString();
+            string = result;
+        }
+        return result;
+    }
+
+    private static boolean sameNames(OvertherePath path, OvertherePath other) {
+        while (path != other && path.count > 0) {
+            if (!path.name.equals(other.name)) {
+                return false;
+            }
+            path = path.parent;
+            other = other.parent;
+        }
+        return true;
+    }
+
+    /**
+     * Attributes read together with a path, and when they were read.
+     */
+    private static final class Prefetched {
+        private final OverthereFileAttributes attributes;
+        private final long readAt;
+
+        private Prefetched(OverthereFileAttributes attributes, long readAt) {
+            this.attributes = attributes;
+            this.readAt = readAt;
+        }
     }
 
     @Override
@@ -332,15 +494,23 @@ public class OvertherePath implements Path {
         if (!(o instanceof OvertherePath)) return false;
 
         final OvertherePath other = (OvertherePath) o;
-        return fileSystem.equals(other.fileSystem) && absolute == other.absolute && segments.equals(other.segments);
-
+        if (absolute != other.absolute || count != other.count || hashCode() != other.hashCode() || !fileSystem.equals(other.fileSystem)) {
+            return false;
+        }
+        return sameNames(this, other);
     }
 
     @Override
     public int hashCode() {
-        int result = fileSystem != null ? fileSystem.hashCode() : 0;
-        result = 31 * result + (segments != null ? segments.hashCode() : 0);
-        result = 31 * result + (absolute ? 1 : 0);
+        int result = hash;
+        if (result == 0) {
+            if (parent == null) {
+                result = 31 * fileSystem.hashCode() + (absolute ? 1 : 0);
+            } else {
+                result = 31 * parent.hashCode() + name.hashCode();
+            }
+            hash = result;
+        }
         return result;
     }
 }
@@ -0,0 +1,35 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@code regex:} pattern, compiled once. Every thread reuses its own {@link Matcher}, so matching a path does not
+ * allocate one.
+ */
+final class OverthereRegexMatcher implements PathMatcher {
+
+    private final Pattern pattern;
+    private final ThreadLocal<Matcher> matchers = new ThreadLocal<Matcher>() {
+        @Override
+        protected Matcher initialValue() {
+            return pattern.matcher("");
+        }
+    };
+
+    OverthereRegexMatcher(String regex) {
+        this.pattern = Pattern.compile(regex);
+    }
+
+    @Override
+    public boolean matches(Path path) {
+        return matchers.get().reset(OvertherePath.matchTarget(path)).matches();
+    }
+
+    @Override
+    public String toString() {
+        return "regex:" + pattern.pattern();
+    }
+}
@@ -0,0 +1,219 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import com.google.common.collect.Lists;
+
+/**
+ * A directory registered with an {@link OverthereWatchService}. The events are either pushed by an
+ * {@link InotifyWatcher} or found by comparing a snapshot of the directory with the one taken by the previous poll.
+ */
+class OverthereWatchKey implements WatchKey {
+
+    /**
+     * Events beyond this number are replaced by a single {@link StandardWatchEventKinds#OVERFLOW} event until the
+     * events are retrieved.
+     */
+    static final int MAX_EVENTS = 512;
+
+    private final OverthereWatchService watcher;
+    private final OvertherePath dir;
+    private volatile Set<? extends WatchEvent.Kind<?>> kinds;
+    private volatile boolean valid = true;
+
+    private volatile InotifyWatcher inotifyWatcher;
+    private DirectorySnapshot snapshot;
+    private List<WatchEvent<?>> events = Lists.newArrayList();
+    private boolean signalled;
+
+    OverthereWatchKey(OverthereWatchService watcher, OvertherePath dir, Set<? extends WatchEvent.Kind<?>> kinds) {
+        this.watcher = watcher;
+        this.dir = dir;
+        this.kinds = kinds;
+    }
+
+    void setKinds(Set<? extends WatchEvent.Kind<?>> kinds) {
+        this.kinds = kinds;
+    }
+
+    /**
+     * Takes the snapshot that the first poll is compared against.
+     */
+    void initialize() throws IOException {
+        snapshot = DirectorySnapshot.read((OverthereFileSystemProvider) dir.getFileSystem().provider(), dir);
+    }
+
+    void setInotifyWatcher(InotifyWatcher inotifyWatcher) {
+        this.inotifyWatcher = inotifyWatcher;
+    }
+
+    /**
+     * Stops listening to {@code inotifywait} and polls the directory from now on.
+     */
+    void fallBackToPolling() {
+        inotifyWatcher = null;
+        try {
+            watcher.startPolling(this);
+        } catch (IOException e) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Lists the directory again and signals the differences with the previous listing. Called by the poller only.
+     */
+    void poll() throws IOException {
+        if (!valid) {
+            return;
+        }
+        DirectorySnapshot newSnapshot;
+        try {
+            newSnapshot = DirectorySnapshot.read((OverthereFileSystemProvider) dir.getFileSystem().provider(), dir);
+        } catch (NoSuchFileException e) {
+            invalidate();
+            return;
+        } catch (NotDirectoryException e) {
+            invalidate();
+            return;
+        }
+        snapshot.diff(newSnapshot, this);
+        snapshot = newSnapshot;
+    }
+
+    synchronized void signalEvent(WatchEvent.Kind<Path> kind, String name) {
+        if (!kinds.contains(kind)) {
+            return;
+        }
+        Path context = dir.getFileSystem().getPath(name);
+        int size = events.size();
+        if (size > 0) {
+            Event<?> last = (Event<?>) events.get(size - 1);
+            if (last.kind() == StandardWatchEventKinds.OVERFLOW || (last.kind() == kind && last.context().equals(context))) {
+                last.increment();
+                return;
+            }
+        }
+        if (size >= MAX_EVENTS) {
+            events.add(new Event<Object>(StandardWatchEventKinds.OVERFLOW, null));
+        } else {
+            events.add(new Event<Path>(kind, context));
+        }
+        signal();
+    }
+
+    /**
+     * Signals that events may have been lost.
+     */
+    synchronized void signalOverflow() {
+        int size = events.size();
+        if (size > 0 && events.get(size - 1).kind() == StandardWatchEventKinds.OVERFLOW) {
+            ((Event<?>) events.get(size - 1)).increment();
+            return;
+        }
+        events.add(new Event<Object>(StandardWatchEventKinds.OVERFLOW, null));
+        signal();
+    }
+
+    private synchronized void signal() {
+        if (!signalled) {
+            signalled = true;
+            watcher.enqueue(this);
+        }
+    }
+
+    /**
+     * Cancels the key because the directory can no longer be watched, and signals it so that it is noticed.
+     */
+    void invalidate() {
+        cancel();
+        signal();
+    }
+
+    @Override
+    public boolean isValid() {
+        return valid;
+    }
+
+    @Override
+    public synchronized List<WatchEvent<?>> pollEvents() {
+        if (events.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<WatchEvent<?>> result = events;
+        events = Lists.newArrayList();
+        return result;
+    }
+
+    @Override
+    public synchronized boolean reset() {
+        if (!valid) {
+            return false;
+        }
+        if (signalled && !events.isEmpty()) {
+            watcher.enqueue(this);
+        } else {
+            signalled = false;
+        }
+        return true;
+    }
+
+    @Override
+    public void cancel() {
+        if (valid) {
+            valid = false;
+            watcher.cancelled(this);
+            InotifyWatcher running = inotifyWatcher;
+            if (running != null) {
+                running.close();
+            }
+        }
+    }
+
+    @Override
+    public OvertherePath watchable() {
+        return dir;
+    }
+
+    static class Event<T> implements WatchEvent<T> {
+        private final WatchEvent.Kind<T> kind;
+        private final T context;
+        private int count = 1;
+
+        Event(WatchEvent.Kind<T> kind, T context) {
+            this.kind = kind;
+            this.context = context;
+        }
+
+        @Override
+        public WatchEvent.Kind<T> kind() {
+            return kind;
+        }
+
+        @Override
+        public int count() {
+            return count;
+        }
+
+        void increment() {
+            count++;
+        }
+
+        @Override
+        public T context() {
+            return context;
+        }
+
+        @Override
+        public String toString() {
+            return kind + " " + context;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import com.google.common.collect.Sets;
+
+import com.xebialabs.overthere.OverthereConnection;
+
+/**
+ * A {@link WatchService} that finds changes by listing the registered directories at a fixed interval and comparing
+ * the listings. All watch services of a file system share a single polling thread.
+ *
+ * With the {@link #WATCH_MODE} connection option set to {@code inotify}, every registered directory is instead watched
+ * by an {@code inotifywait} process on the host, falling back to polling when the host cannot run it.
+ */
+public class OverthereWatchService implements WatchService {
+
+    /**
+     * Connection option that sets how often registered directories are listed, in milliseconds. Defaults to 10 seconds.
+     */
+    public static final String POLL_INTERVAL = "watchPollInterval";
+
+    static final int POLL_INTERVAL_DEFAULT = 10000;
+
+    /**
+     * Connection option that sets how registered directories are watched: {@code poll} (the default) or
+     * {@code inotify}. The latter keeps a process running on the host for every registered directory, which counts
+     * against the sessions the host allows per connection.
+     */
+    public static final String WATCH_MODE = "watchMode";
+
+    static final String WATCH_MODE_POLL = "poll";
+    static final String WATCH_MODE_INOTIFY = "inotify";
+
+    /**
+     * Queued when the service is closed, to wake up the threads that are waiting for a key.
+     */
+    private static final WatchKey CLOSED = new WatchKey() {
+        @Override
+        public boolean isValid() {
+            return false;
+        }
+
+        @Override
+        public List<WatchEvent<?>> pollEvents() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean reset() {
+            return false;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public OvertherePath watchable() {
+            return null;
+        }
+    };
+
+    private final OverthereFileSystem fileSystem;
+    private final WatchPoller poller;
+    private final BlockingQueue<WatchKey> signalledKeys = new LinkedBlockingQueue<WatchKey>();
+    private final Map<OvertherePath, OverthereWatchKey> keys = new ConcurrentHashMap<OvertherePath, OverthereWatchKey>();
+    private volatile boolean closed;
+
+    OverthereWatchService(OverthereFileSystem fileSystem, WatchPoller poller) {
+        this.fileSystem = fileSystem;
+        this.poller = poller;
+    }
+
+    WatchKey register(OvertherePath dir, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) throws IOException {
+        if (modifiers.length > 0) {
+            throw new UnsupportedOperationException("Watch modifiers are not supported");
+        }
+        Set<WatchEvent.Kind<?>> kinds = Sets.newHashSet();
+        for (WatchEvent.Kind<?> kind : events) {
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE || kind == StandardWatchEventKinds.ENTRY_DELETE
+                    || kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+                kinds.add(kind);
+            } else if (kind != StandardWatchEventKinds.OVERFLOW) {
+                throw new UnsupportedOperationException("Unsupported watch event kind " + kind);
+            }
+        }
+        if (dir.getOverthereFileSystem() != fileSystem) {
+            throw new IllegalArgumentException(dir + " is not on the file system of this watch service");
+        }
+
+        synchronized (this) {
+            checkOpen();
+            OverthereWatchKey existing = keys.get(dir);
+            if (existing != null && existing.isValid()) {
+                existing.setKinds(kinds);
+                return existing;
+            }
+            if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+                throw new NotDirectoryException(dir.toString());
+            }
+            OverthereWatchKey key = new OverthereWatchKey(this, dir, kinds);
+            if (!startInotify(key)) {
+                startPolling(key);
+            }
+            keys.put(dir, key);
+            return key;
+        }
+    }
+
+    private boolean startInotify(OverthereWatchKey key) throws IOException {
+        String mode = fileSystem.getConnectionOptions().get(WATCH_MODE, WATCH_MODE_POLL);
+        if (!WATCH_MODE_INOTIFY.equalsIgnoreCase(mode)) {
+            return false;
+        }
+        OverthereFileSystemProvider provider = (OverthereFileSystemProvider) fileSystem.provider();
+        OverthereConnection connection = fileSystem.borrowConnection();
+        try {
+            if (!provider.canUseHostCommands(connection)) {
+                return false;
+            }
+        } finally {
+            fileSystem.releaseConnection(connection);
+        }
+        InotifyWatcher inotifyWatcher = new InotifyWatcher(key);
+        key.setInotifyWatcher(inotifyWatcher);
+        if (inotifyWatcher.start()) {
+            return true;
+        }
+        key.setInotifyWatcher(null);
+        return false;
+    }
+
+    void startPolling(OverthereWatchKey key) throws IOException {
+        key.initialize();
+        poller.add(key);
+    }
+
+    void enqueue(OverthereWatchKey key) {
+        if (!closed) {
+            signalledKeys.offer(key);
+        }
+    }
+
+    void cancelled(OverthereWatchKey key) {
+        keys.remove(key.watchable());
+        poller.remove(key);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new ClosedWatchServiceException();
+        }
+    }
+
+    private WatchKey checkKey(WatchKey key) {
+        if (key == CLOSED) {
+            signalledKeys.offer(CLOSED);
+            throw new ClosedWatchServiceException();
+        }
+        return key;
+    }
+
+    @Override
+    public WatchKey poll() {
+        checkOpen();
+        return checkKey(signalledKeys.poll());
+    }
+
+    @Override
+    public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+        checkOpen();
+        return checkKey(signalledKeys.poll(timeout, unit));
+    }
+
+    @Override
+    public WatchKey take() throws InterruptedException {
+        checkOpen();
+        return checkKey(signalledKeys.take());
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        for (OverthereWatchKey key : keys.values()) {
+            key.cancel();
+        }
+        signalledKeys.clear();
+        signalledKeys.offer(CLOSED);
+    }
+}
@@ -0,0 +1,70 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereProcess;
+
+/**
+ * A process started through {@link OverthereFileSystem#startProcess(com.xebialabs.overthere.CmdLine)}, which tells
+ * the pool that it stopped running on its connection once it has terminated or was destroyed.
+ */
+class PooledProcess implements OverthereProcess {
+
+    private final OverthereProcess process;
+    private final OverthereConnectionPool pool;
+    private final OverthereConnection connection;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    PooledProcess(OverthereProcess process, OverthereConnectionPool pool, OverthereConnection connection) {
+        this.process = process;
+        this.pool = pool;
+        this.connection = connection;
+    }
+
+    @Override
+    public OutputStream getStdin() {
+        return process.getStdin();
+    }
+
+    @Override
+    public InputStream getStdout() {
+        return process.getStdout();
+    }
+
+    @Override
+    public InputStream getStderr() {
+        return process.getStderr();
+    }
+
+    @Override
+    public int waitFor() throws InterruptedException {
+        int exitValue = process.waitFor();
+        stopped();
+        return exitValue;
+    }
+
+    @Override
+    public void destroy() {
+        try {
+            process.destroy();
+        } finally {
+            stopped();
+        }
+    }
+
+    @Override
+    public int exitValue() throws IllegalThreadStateException {
+        int exitValue = process.exitValue();
+        stopped();
+        return exitValue;
+    }
+
+    private void stopped() {
+        if (!stopped.getAndSet(true)) {
+            pool.processStopped(connection);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Reads a tar archive in the ustar, GNU or pax format, as written by {@code tar -c}. Only the entry types that a
+ * directory tree can be rebuilt from are returned: files, directories, symbolic links and hard links.
+ */
+final class TarReader {
+
+    static final byte FILE = '0';
+    static final byte HARD_LINK = '1';
+    static final byte SYMBOLIC_LINK = '2';
+    static final byte DIRECTORY = '5';
+    static final byte GNU_LONG_LINK = 'K';
+    static final byte GNU_LONG_NAME = 'L';
+    static final byte PAX_HEADER = 'x';
+    static final byte PAX_GLOBAL_HEADER = 'g';
+
+    private final InputStream in;
+    private final byte[] header = new byte[TarWriter.BLOCK_SIZE];
+    private long remaining;
+    private long padding;
+
+    TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns the next entry, skipping whatever is left of the content of the current one, or {@code null} at the
+     * end of the archive.
+     */
+    Entry next() throws IOException {
+        skipContent();
+        String longName = null;
+        String longLinkName = null;
+        Long paxSize = null;
+        while (true) {
+            if (!readHeader()) {
+                return null;
+            }
+            byte type = header[156];
+            long size = parseNumber(124, 12);
+            if (type == GNU_LONG_NAME || type == GNU_LONG_LINK || type == PAX_HEADER || type == PAX_GLOBAL_HEADER) {
+                String data = readString(size);
+                if (type == GNU_LONG_NAME) {
+                    longName = trimNul(data);
+                } else if (type == GNU_LONG_LINK) {
+                    longLinkName = trimNul(data);
+                } else if (type == PAX_HEADER) {
+                    for (String[] record : parsePax(data)) {
+                        if (record[0].equals("path")) {
+                            longName = record[1];
+                        } else if (record[0].equals("linkpath")) {
+                            longLinkName = record[1];
+                        } else if (record[0].equals("size")) {
+                            paxSize = Long.parseLong(record[1]);
+                        }
+                    }
+                }
+                continue;
+            }
+
+            String name = longName != null ? longName : ustarName();
+            String linkName = longLinkName != null ? longLinkName : parseString(157, 100);
+            if (paxSize != null) {
+                size = paxSize;
+            }
+            remaining = type == DIRECTORY || type == SYMBOLIC_LINK || type == HARD_LINK ? 0 : size;
+            padding = (TarWriter.BLOCK_SIZE - remaining % TarWriter.BLOCK_SIZE) % TarWriter.BLOCK_SIZE;
+            if (type == 0) {
+                type = FILE;
+            } else if (type == FILE && name.endsWith("/")) {
+                type = DIRECTORY;
+            }
+            return new Entry(name, type, (int) parseNumber(100, 8), remaining, parseNumber(136, 12) * 1000, linkName);
+        }
+    }
+
+    /**
+     * Extracts the archive below {@code dir}, replacing existing files. Entries that would end up outside of
+     * {@code dir} are refused. Links are created after all files and directories, so that no entry can be written
+     * through a link from the same archive, and directory times are set last, after their content was written. Hard
+     * links are created before symbolic links, and neither is created where a symbolic link leads out of {@code dir},
+     * so that a symbolic link from the archive cannot make a hard link point to a file outside of it.
+     */
+    void extractTo(Path dir) throws IOException {
+        Path root = dir.toAbsolutePath().normalize();
+        boolean posix = Files.getFileAttributeView(root, PosixFileAttributeView.class) != null;
+        List<Entry> links = Lists.newArrayList();
+        Map<Path, Entry> directories = Maps.newLinkedHashMap();
+        Entry entry;
+        while ((entry = next()) != null) {
+            Path target = resolve(root, entry.name);
+            if (target == null) {
+                continue;
+            }
+            if (entry.type == DIRECTORY) {
+                Files.createDirectories(target);
+                directories.put(target, entry);
+            } else if (entry.type == SYMBOLIC_LINK || entry.type == HARD_LINK) {
+                links.add(entry);
+            } else if (entry.type == FILE) {
+                Files.createDirectories(target.getParent());
+                Files.copy(content(), target, StandardCopyOption.REPLACE_EXISTING);
+                setAttributes(target, entry, posix);
+            }
+        }
+
+        if (!links.isEmpty()) {
+            Files.createDirectories(root);
+            Path realRoot = root.toRealPath();
+            for (Entry link : links) {
+                if (link.type == HARD_LINK) {
+                    createLink(root, realRoot, link);
+                }
+            }
+            for (Entry link : links) {
+                if (link.type == SYMBOLIC_LINK) {
+                    createLink(root, realRoot, link);
+                }
+            }
+        }
+        for (Map.Entry<Path, Entry> directory : Lists.reverse(Lists.newArrayList(directories.entrySet()))) {
+            setAttributes(directory.getKey(), directory.getValue(), posix);
+        }
+    }
+
+    private static void createLink(Path root, Path realRoot, Entry link) throws IOException {
+        Path target = resolve(root, link.name);
+        checkInside(realRoot, target.getParent(), link);
+        Files.createDirectories(target.getParent());
+        Files.deleteIfExists(target);
+        if (link.type == SYMBOLIC_LINK) {
+            Files.createSymbolicLink(target, root.getFileSystem().getPath(link.linkName));
+        } else {
+            Path existing = resolve(root, link.linkName);
+            if (existing == null) {
+                throw new IOException("Hard link " + link.name + " points outside of " + root);
+            }
+            checkInside(realRoot, existing, link);
+            Files.createLink(target, existing);
+        }
+    }
+
+    /**
+     * Checks that {@code path}, or the part of it that exists, does not lead out of {@code realRoot} through a
+     * symbolic link.
+     */
+    private static void checkInside(Path realRoot, Path path, Entry entry) throws IOException {
+        Path existing = path;
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        if (existing == null || !existing.toRealPath().startsWith(realRoot)) {
+            throw new IOException("Tar entry " + entry.name + " points outside of " + realRoot + " through a symbolic link");
+        }
+    }
+
+    /**
+     * Returns where an entry goes below {@code root}, or {@code null} for the root itself.
+     */
+    private static Path resolve(Path root, String name) throws IOException {
+        String relative = name;
+        while (relative.startsWith("./")) {
+            relative = relative.substring(2);
+        }
+        if (relative.isEmpty() || relative.equals(".") || relative.equals("./")) {
+            return null;
+        }
+        Path target = root.resolve(relative).normalize();
+        if (relative.startsWith("/") || !target.startsWith(root) || target.equals(root)) {
+            throw new IOException("Tar entry " + name + " points outside of " + root);
+        }
+        return target;
+    }
+
+    private static void setAttributes(Path path, Entry entry, boolean posix) throws IOException {
+        if (posix) {
+            Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+            PosixFilePermission[] all = PosixFilePermission.values();
+            for (int i = 0; i < all.length; i++) {
+                if ((entry.mode & (1 << (all.length - 1 - i))) != 0) {
+                    permissions.add(all[i]);
+                }
+            }
+            Files.setPosixFilePermissions(path, permissions);
+        }
+        Files.setLastModifiedTime(path, FileTime.fromMillis(entry.mtimeMillis));
+    }
+
+    /**
+     * Returns the content of the current entry. It ends with the entry, and closing it leaves the archive open.
+     */
+    InputStream content() {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Unexpected end of tar archive");
+                }
+                remaining--;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int n = in.read(b, off, (int) Math.min(len, remaining));
+                if (n < 0) {
+                    throw new EOFException("Unexpected end of tar archive");
+                }
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+                // The archive stays open
+            }
+        };
+    }
+
+    private void skipContent() throws IOException {
+        ByteStreams.skipFully(in, remaining + padding);
+        remaining = 0;
+        padding = 0;
+    }
+
+    private boolean readHeader() throws IOException {
+        int read = ByteStreams.read(in, header, 0, header.length);
+        if (read == 0) {
+            return false;
+        }
+        if (read < header.length) {
+            throw new EOFException("Unexpected end of tar archive");
+        }
+        if (isZeroBlock()) {
+            return false;
+        }
+        long expected = parseNumber(148, 8);
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        if (checksum(header) != expected) {
+            throw new IOException("Corrupt tar header");
+        }
+        return true;
+    }
+
+    private boolean isZeroBlock() {
+        for (byte b : header) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString(long size) throws IOException {
+        byte[] data = new byte[(int) size];
+        ByteStreams.readFully(in, data);
+        ByteStreams.skipFully(in, (TarWriter.BLOCK_SIZE - size % TarWriter.BLOCK_SIZE) % TarWriter.BLOCK_SIZE);
+        return new String(data, Charsets.UTF_8);
+    }
+
+    private String ustarName() {
+        String name = parseString(0, 100);
+        boolean ustar = header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r' && header[262] == 0;
+        if (ustar && header[345] != 0) {
+            return parseString(345, 155) + "/" + name;
+        }
+        return name;
+    }
+
+    private String parseString(int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, Charsets.UTF_8);
+    }
+
+    /**
+     * Parses an octal field, or a base-256 one if its first byte has the high bit set.
+     */
+    private long parseNumber(int offset, int length) {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7f;
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (header[offset + i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        int i = offset;
+        while (i < offset + length && header[i] == ' ') {
+            i++;
+        }
+        for (; i < offset + length && header[i] >= '0' && header[i] <= '7'; i++) {
+            value = (value << 3) + (header[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Parses the {@code "<length> <key>=<value>\n"} records of a pax extended header.
+     */
+    private static List<String[]> parsePax(String data) {
+        List<String[]> records = Lists.newArrayList();
+        for (String line : data.split("\n")) {
+            int space = line.indexOf(' ');
+            int equals = line.indexOf('=', space + 1);
+            if (space > 0 && equals > space) {
+                records.add(new String[] { line.substring(space + 1, equals), line.substring(equals + 1) });
+            }
+        }
+        return records;
+    }
+
+    private static String trimNul(String value) {
+        int nul = value.indexOf(0);
+        return nul < 0 ? value : value.substring(0, nul);
+    }
+
+    static long checksum(byte[] header) {
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        return sum;
+    }
+
+    static final class Entry {
+        final String name;
+        final byte type;
+        final int mode;
+        final long size;
+        final long mtimeMillis;
+        final String linkName;
+
+        Entry(String name, byte type, int mode, long size, long mtimeMillis, String linkName) {
+            this.name = name;
+            this.type = type;
+            this.mode = mode;
+            this.size = size;
+            this.mtimeMillis = mtimeMillis;
+            this.linkName = linkName;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.Set;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+
+/**
+ * Writes a tar archive in the ustar format, as read by GNU, BSD and BusyBox {@code tar -x}. Names that do not fit in
+ * the ustar name and prefix fields are written with a GNU long name entry, and sizes beyond 8 GiB in base-256.
+ */
+final class TarWriter implements Closeable {
+
+    static final int BLOCK_SIZE = 512;
+
+    /**
+     * Archives are padded to a multiple of the default record size of {@code tar}, 20 blocks.
+     */
+    private static final int RECORD_SIZE = 20 * BLOCK_SIZE;
+
+    private final OutputStream out;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private final byte[] buffer = new byte[64 * 1024];
+    private long written;
+
+    TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes the entries below {@code dir}, named relative to it. Symbolic links are archived as links.
+     */
+    void writeTree(final Path dir) throws IOException {
+        final boolean posix = Files.getFileAttributeView(dir, PosixFileAttributeView.class) != null;
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                if (!subdir.equals(dir)) {
+                    writeDirectory(nameOf(dir, subdir), modeOf(subdir, posix, 0755), attrs.lastModifiedTime().toMillis());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = nameOf(dir, file);
+                long mtimeMillis = attrs.lastModifiedTime().toMillis();
+                if (attrs.isSymbolicLink()) {
+                    writeSymbolicLink(name, Files.readSymbolicLink(file).toString(), mtimeMillis);
+                } else if (attrs.isRegularFile()) {
+                    InputStream in = Files.newInputStream(file);
+                    try {
+                        writeFile(name, modeOf(file, posix, Files.isExecutable(file) ? 0755 : 0644), attrs.size(), mtimeMillis, in);
+                    } finally {
+                        in.close();
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String nameOf(Path dir, Path path) {
+        return Joiner.on('/').join(dir.relativize(path));
+    }
+
+    private static int modeOf(Path path, boolean posix, int defaultMode) throws IOException {
+        if (!posix) {
+            return defaultMode;
+        }
+        Set<PosixFilePermission> permissions = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS).permissions();
+        int mode = 0;
+        for (PosixFilePermission permission : PosixFilePermission.values()) {
+            mode <<= 1;
+            if (permissions.contains(permission)) {
+                mode |= 1;
+            }
+        }
+        return mode;
+    }
+
+    void writeDirectory(String name, int mode, long mtimeMillis) throws IOException {
+        writeHeader(name.endsWith("/") ? name : name + "/", mode, 0, mtimeMillis, TarReader.DIRECTORY, "");
+    }
+
+    void writeSymbolicLink(String name, String target, long mtimeMillis) throws IOException {
+        writeHeader(name, 0777, 0, mtimeMillis, TarReader.SYMBOLIC_LINK, target);
+    }
+
+    void writeHardLink(String name, String target, long mtimeMillis) throws IOException {
+        writeHeader(name, 0644, 0, mtimeMillis, TarReader.HARD_LINK, target);
+    }
+
+    /**
+     * Writes a file of exactly {@code size} bytes. If the stream ends early, because the file shrank while it was
+     * archived, the rest is padded with zeros, and bytes beyond {@code size} are left out.
+     */
+    void writeFile(String name, int mode, long size, long mtimeMillis, InputStream in) throws IOException {
+        writeHeader(name, mode, size, mtimeMillis, TarReader.FILE, "");
+        long remaining = size;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                break;
+            }
+            write(buffer, n);
+            remaining -= n;
+        }
+        Arrays.fill(buffer, (byte) 0);
+        while (remaining > 0) {
+            int n = (int) Math.min(buffer.length, remaining);
+            write(buffer, n);
+            remaining -= n;
+        }
+        padToBlock();
+    }
+
+    private void writeHeader(String name, int mode, long size, long mtimeMillis, byte type, String linkName) throws IOException {
+        byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+        int split = nameBytes.length > 100 ? splitIndex(nameBytes) : -1;
+        if (nameBytes.length > 100 && split < 0) {
+            writeLongName(TarReader.GNU_LONG_NAME, nameBytes);
+        }
+        byte[] linkBytes = linkName.getBytes(Charsets.UTF_8);
+        if (linkBytes.length > 100) {
+            writeLongName(TarReader.GNU_LONG_LINK, linkBytes);
+        }
+
+        Arrays.fill(header, (byte) 0);
+        if (split >= 0) {
+            put(nameBytes, split + 1, nameBytes.length - split - 1, 0, 100);
+            put(nameBytes, 0, split, 345, 155);
+        } else {
+            put(nameBytes, 0, nameBytes.length, 0, 100);
+        }
+        putOctal(mode & 07777, 100, 8);
+        putOctal(0, 108, 8);
+        putOctal(0, 116, 8);
+        putSize(size);
+        putOctal(Math.max(mtimeMillis / 1000, 0), 136, 12);
+        header[156] = type;
+        put(linkBytes, 0, linkBytes.length, 157, 100);
+        put("ustar".getBytes(Charsets.US_ASCII), 0, 5, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+        putChecksum();
+        write(header, BLOCK_SIZE);
+    }
+
+    /**
+     * Returns where a long name can be split between the prefix and name fields, or -1 if it cannot.
+     */
+    private static int splitIndex(byte[] name) {
+        for (int i = Math.min(name.length - 2, 155); i > 0; i--) {
+            if (name[i] == '/' && name.length - i - 1 <= 100) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void writeLongName(byte type, byte[] name) throws IOException {
+        Arrays.fill(header, (byte) 0);
+        put("././@LongLink".getBytes(Charsets.US_ASCII), 0, 13, 0, 100);
+        putOctal(0, 100, 8);
+        putOctal(0, 108, 8);
+        putOctal(0, 116, 8);
+        putOctal(name.length + 1, 124, 12);
+        putOctal(0, 136, 12);
+        header[156] = type;
+        put("ustar  ".getBytes(Charsets.US_ASCII), 0, 7, 257, 8);
+        putChecksum();
+        write(header, BLOCK_SIZE);
+        write(name, name.length);
+        out.write(0);
+        written++;
+        padToBlock();
+    }
+
+    private void put(byte[] bytes, int offset, int length, int at, int fieldLength) {
+        System.arraycopy(bytes, offset, header, at, Math.min(length, fieldLength));
+    }
+
+    private void putOctal(long value, int at, int fieldLength) {
+        String octal = Long.toOctalString(value);
+        int digits = fieldLength - 1;
+        int pad = digits - octal.length();
+        for (int i = 0; i < digits; i++) {
+            header[at + i] = (byte) (i < pad ? '0' : octal.charAt(i - pad));
+        }
+        header[at + digits] = 0;
+    }
+
+    private void putSize(long size) {
+        if (size < 077777777777L) {
+            putOctal(size, 124, 12);
+        } else {
+            header[124] = (byte) 0x80;
+            for (int i = 11; i > 0; i--) {
+                header[124 + i] = (byte) size;
+                size >>>= 8;
+            }
+        }
+    }
+
+    private void putChecksum() {
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = TarReader.checksum(header);
+        String octal = Long.toOctalString(checksum);
+        for (int i = 0; i < 6; i++) {
+            int index = i - (6 - octal.length());
+            header[148 + i] = (byte) (index < 0 ? '0' : octal.charAt(index));
+        }
+        header[154] = 0;
+        header[155] = ' ';
+    }
+
+    private void write(byte[] bytes, int length) throws IOException {
+        out.write(bytes, 0, length);
+        written += length;
+    }
+
+    private void padToBlock() throws IOException {
+        pad(BLOCK_SIZE);
+    }
+
+    private void pad(int multiple) throws IOException {
+        int remainder = (int) (written % multiple);
+        if (remainder != 0) {
+            byte[] zeros = new byte[multiple - remainder];
+            write(zeros, zeros.length);
+        }
+    }
+
+    /**
+     * Writes the end of the archive and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            write(new byte[2 * BLOCK_SIZE], 2 * BLOCK_SIZE);
+            pad(RECORD_SIZE);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import com.google.common.collect.Sets;
+
+/**
+ * Polls the watched directories of one file system, on a single thread that is started when the first directory is
+ * registered. Directories are polled one after the other, so a slow host delays the next round rather than piling up
+ * listings.
+ */
+class WatchPoller implements Closeable {
+
+    private final OverthereFileSystem fileSystem;
+    private final long intervalMillis;
+    private final Set<OverthereWatchKey> keys = Sets.newSetFromMap(new ConcurrentHashMap<OverthereWatchKey, Boolean>());
+    private ScheduledExecutorService executor;
+    private boolean closed;
+
+    WatchPoller(OverthereFileSystem fileSystem, long intervalMillis) {
+        this.fileSystem = fileSystem;
+        this.intervalMillis = intervalMillis;
+    }
+
+    synchronized void add(OverthereWatchKey key) {
+        if (closed) {
+            key.invalidate();
+            return;
+        }
+        keys.add(key);
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "overthere-watch-poller-" + fileSystem.getUri());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    pollAll();
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void remove(OverthereWatchKey key) {
+        keys.remove(key);
+    }
+
+    private void pollAll() {
+        for (OverthereWatchKey key : keys) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                key.poll();
+            } catch (IOException e) {
+                // The host could not be reached this time, try again next round
+            } catch (RuntimeException e) {
+                // Keep polling the other keys
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (OverthereWatchKey key : keys) {
+            key.invalidate();
+        }
+        keys.clear();
+    }
+}
@@ -22,4 +22,9 @@ public class CifsTelnetFileSystemProvider extends OverthereFileSystemProvider {
         options.set(ConnectionOptions.OPERATING_SYSTEM, OperatingSystemFamily.WINDOWS);
         return Overthere.getConnection(CIFS_PROTOCOL, options);
     }
+
+    @Override
+    protected boolean supportsHostCommands() {
+        return true;
+    }
 }
@@ -1,12 +1,119 @@
 package com.xebialabs.overthere.nio.file.provider;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.nio.file.OverthereFileSystem;
 import com.xebialabs.overthere.nio.file.OverthereFileSystemProvider;
+import com.xebialabs.overthere.nio.file.OvertherePath;
 
 import static com.xebialabs.overthere.local.LocalConnection.LOCAL_PROTOCOL;
 
+/**
+ * The {@code local:} scheme. Channels are opened on the default file system, so they are real {@link FileChannel}s
+ * that support {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel) transferTo} and
+ * {@link FileChannel#map(FileChannel.MapMode, long, long) map}, and their reads and writes do not go through a
+ * connection or the file system metrics.
+ */
 public class LocalFileSystemProvider extends OverthereFileSystemProvider {
     @Override
     public String getScheme() {
         return LOCAL_PROTOCOL;
     }
+
+    @Override
+    public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        invalidateIfWritable(path, options);
+        return FileChannel.open(hostPath(path), options, attrs);
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        return newFileChannel(path, options, attrs);
+    }
+
+    @Override
+    public AsynchronousFileChannel newAsynchronousFileChannel(Path path, Set<? extends OpenOption> options, ExecutorService executor, FileAttribute<?>... attrs) throws IOException {
+        invalidateIfWritable(path, options);
+        return AsynchronousFileChannel.open(hostPath(path), options, executor, attrs);
+    }
+
+    /**
+     * Drops the cached metadata of a file that is opened for writing, as the writes bypass the file system. A cached
+     * size may still be stale while the channel is open.
+     */
+    private static void invalidateIfWritable(Path path, Set<? extends OpenOption> options) {
+        if (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND)) {
+            ((OverthereFileSystem) path.getFileSystem()).invalidate(path);
+        }
+    }
+
+    private static Path hostPath(Path path) {
+        return Paths.get(path.toString());
+    }
+
+    @Override
+    protected InputStream openInputStream(OverthereConnection connection, OvertherePath path, long position) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path.toString()), StandardOpenOption.READ);
+        channel.position(position);
+        return Channels.newInputStream(channel);
+    }
+
+    @Override
+    protected OutputStream openOutputStream(OverthereConnection connection, OvertherePath path, long position, boolean truncate) throws IOException {
+        FileChannel channel = truncate
+                ? FileChannel.open(Paths.get(path.toString()), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(Paths.get(path.toString()), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        channel.position(position);
+        return Channels.newOutputStream(channel);
+    }
+
+    @Override
+    protected void truncateFile(OverthereConnection connection, OvertherePath path, long size) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path.toString()), StandardOpenOption.WRITE);
+        try {
+            channel.truncate(size);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    protected void copyFile(OverthereConnection connection, OvertherePath source, OvertherePath target, boolean copyAttributes) throws IOException {
+        if (copyAttributes) {
+            Files.copy(Paths.get(source.toString()), Paths.get(target.toString()), StandardCopyOption.COPY_ATTRIBUTES);
+        } else {
+            Files.copy(Paths.get(source.toString()), Paths.get(target.toString()));
+        }
+    }
+
+    @Override
+    protected void setLastModifiedTime(OverthereConnection connection, OvertherePath path, FileTime time) throws IOException {
+        Files.setLastModifiedTime(Paths.get(path.toString()), time);
+    }
+
+    @Override
+    protected void moveFile(OverthereConnection connection, OvertherePath source, OvertherePath target, boolean atomic) throws IOException {
+        if (atomic) {
+            Files.move(Paths.get(source.toString()), Paths.get(target.toString()), StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            Files.move(Paths.get(source.toString()), Paths.get(target.toString()));
+        }
+    }
 }
@@ -9,4 +9,14 @@ public class SshFileSystemProvider extends OverthereFileSystemProvider {
     public String getScheme() {
         return SSH_PROTOCOL;
     }
+
+    @Override
+    protected boolean supportsHostCommands() {
+        return true;
+    }
+
+    @Override
+    protected boolean acceptsDirectTransfers() {
+        return true;
+    }
 }
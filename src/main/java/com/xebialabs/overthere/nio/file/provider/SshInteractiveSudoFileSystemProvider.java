@@ -20,4 +20,9 @@ public class SshInteractiveSudoFileSystemProvider extends OverthereFileSystemPro
         options.set(SshConnectionBuilder.CONNECTION_TYPE, SshConnectionType.INTERACTIVE_SUDO);
         return Overthere.getConnection(SSH_PROTOCOL, options);
     }
+
+    @Override
+    protected boolean supportsHostCommands() {
+        return true;
+    }
 }
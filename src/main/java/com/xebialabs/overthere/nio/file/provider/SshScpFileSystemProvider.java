@@ -20,4 +20,14 @@ public class SshScpFileSystemProvider extends OverthereFileSystemProvider {
         options.set(SshConnectionBuilder.CONNECTION_TYPE, SshConnectionType.SCP);
         return Overthere.getConnection(SSH_PROTOCOL, options);
     }
+
+    @Override
+    protected boolean supportsHostCommands() {
+        return true;
+    }
+
+    @Override
+    protected boolean acceptsDirectTransfers() {
+        return true;
+    }
 }
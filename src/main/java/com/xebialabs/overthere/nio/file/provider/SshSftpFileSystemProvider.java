@@ -1,9 +1,13 @@
 package com.xebialabs.overthere.nio.file.provider;
 
+import java.io.IOException;
+
 import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.Overthere;
 import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.nio.file.OverthereFileSystemProvider;
+import com.xebialabs.overthere.nio.file.OvertherePath;
 import com.xebialabs.overthere.ssh.SshConnectionBuilder;
 import com.xebialabs.overthere.ssh.SshConnectionType;
 
@@ -20,4 +24,31 @@ public class SshSftpFileSystemProvider extends OverthereFileSystemProvider {
         options.set(SshConnectionBuilder.CONNECTION_TYPE, SshConnectionType.SFTP);
         return Overthere.getConnection(SSH_PROTOCOL, options);
     }
+
+    @Override
+    protected boolean supportsHostCommands() {
+        return true;
+    }
+
+    @Override
+    protected boolean acceptsDirectTransfers() {
+        return true;
+    }
+
+    /**
+     * Moves with an SFTP rename. Atomic moves go through {@code mv}, as SFTP version 3 cannot rename onto an existing
+     * file.
+     */
+    @Override
+    protected void moveFile(OverthereConnection connection, OvertherePath source, OvertherePath target, boolean atomic) throws IOException {
+        if (atomic) {
+            super.moveFile(connection, source, target, true);
+            return;
+        }
+        try {
+            connection.getFile(source.toString()).renameTo(connection.getFile(target.toString()));
+        } catch (RuntimeIOException rio) {
+            throw new IOException(rio);
+        }
+    }
 }
@@ -20,4 +20,9 @@ public class SshSudoFileSystemProvider extends OverthereFileSystemProvider {
         options.set(SshConnectionBuilder.CONNECTION_TYPE, SshConnectionType.SUDO);
         return Overthere.getConnection(SSH_PROTOCOL, options);
     }
+
+    @Override
+    protected boolean supportsHostCommands() {
+        return true;
+    }
 }
@@ -1,5 +1,6 @@
 package com.xebialabs.overthere.nio.process;
 
+import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
@@ -7,6 +8,7 @@ import java.nio.file.Path;
 import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.OverthereConnection;
 import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.local.LocalConnection;
 import com.xebialabs.overthere.nio.file.OverthereFileSystem;
 
@@ -18,14 +20,29 @@ import static com.xebialabs.overthere.util.ConsoleOverthereProcessOutputHandler.
 public class Processes {
 
     public static int execute(Path path, String... arguments) {
-        OverthereConnection connection = getOverthereConnection(path);
         final CmdLine commandLine = toCommandLine(path, arguments);
-        return connection.execute(consoleHandler(), commandLine);
+        FileSystem fileSystem = path.getFileSystem();
+        if (fileSystem instanceof OverthereFileSystem) {
+            try {
+                return ((OverthereFileSystem) fileSystem).execute(consoleHandler(), commandLine);
+            } catch (IOException e) {
+                throw new RuntimeIOException(e);
+            }
+        }
+        return getLocalConnection(fileSystem).execute(consoleHandler(), commandLine);
     }
 
     public static OverthereProcess startProcess(Path path, String... arguments) {
-        OverthereConnection connection = getOverthereConnection(path);
         final CmdLine commandLine = toCommandLine(path, arguments);
+        FileSystem fileSystem = path.getFileSystem();
+        if (fileSystem instanceof OverthereFileSystem) {
+            try {
+                return ((OverthereFileSystem) fileSystem).startProcess(commandLine);
+            } catch (IOException e) {
+                throw new RuntimeIOException(e);
+            }
+        }
+        OverthereConnection connection = getLocalConnection(fileSystem);
         if (connection.canStartProcess()) {
             return connection.startProcess(commandLine);
         } else {
@@ -33,15 +50,10 @@ public class Processes {
         }
     }
 
-    private static OverthereConnection getOverthereConnection(final Path path) {
-        FileSystem fileSystem = path.getFileSystem();
-        OverthereConnection connection = null;
-        if (fileSystem instanceof OverthereFileSystem) {
-            connection = ((OverthereFileSystem) fileSystem).getConnection();
-        } else if (fileSystem.equals(FileSystems.getDefault())) {
-            connection = LocalConnection.getLocalConnection();
+    private static OverthereConnection getLocalConnection(final FileSystem fileSystem) {
+        if (fileSystem.equals(FileSystems.getDefault())) {
+            return LocalConnection.getLocalConnection();
         } else throw new IllegalArgumentException("FileSystem " + fileSystem + " is not supported for command execution.");
-        return connection;
     }
 
     private static CmdLine toCommandLine(final Path path, final String[] arguments) {
@@ -0,0 +1,402 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereFile;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.local.LocalConnection;
+import com.xebialabs.overthere.local.LocalFile;
+
+import static com.xebialabs.overthere.local.LocalConnection.LOCAL_PROTOCOL;
+
+/**
+ * A local provider that counts every call that would be a round trip to a remote host, by operation, and that runs
+ * host commands like the SSH providers do. To stand in for a remote host in benchmarks and tests, it can delay every
+ * round trip by a latency plus a random jitter, and cap the bandwidth of file and process streams.
+ *
+ * The delays are set when the provider is created, or per file system with the {@link #LATENCY}, {@link #JITTER} and
+ * {@link #BANDWIDTH} connection options.
+ */
+public class CountingLocalFileSystemProvider extends OverthereFileSystemProvider {
+
+    /**
+     * Connection option that delays every round trip, in milliseconds.
+     */
+    public static final String LATENCY = "latencyMillis";
+
+    /**
+     * Connection option that adds a random delay of up to this many milliseconds to every round trip.
+     */
+    public static final String JITTER = "jitterMillis";
+
+    /**
+     * Connection option that caps the bytes per second read from or written to files and processes. 0 means no cap.
+     */
+    public static final String BANDWIDTH = "bytesPerSecond";
+
+    /**
+     * Connection option that delays opening a connection, like a handshake, in milliseconds.
+     */
+    public static final String CONNECT_LATENCY = "connectLatencyMillis";
+
+    enum Operation {
+        START_PROCESS, EXISTS, IS_FILE, IS_DIRECTORY, LAST_MODIFIED, LENGTH, LIST_FILES, CAN_READ, CAN_WRITE,
+        CAN_EXECUTE, READ, WRITE, MKDIR, DELETE, RENAME, COPY
+    }
+
+    final AtomicInteger roundTrips = new AtomicInteger();
+    final List<String> commandLines = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicIntegerArray operations = new AtomicIntegerArray(Operation.values().length);
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final long bytesPerSecond;
+
+    public CountingLocalFileSystemProvider() {
+        this(0);
+    }
+
+    public CountingLocalFileSystemProvider(long latencyMillis) {
+        this(latencyMillis, 0, 0);
+    }
+
+    public CountingLocalFileSystemProvider(long latencyMillis, long jitterMillis, long bytesPerSecond) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public String getScheme() {
+        return LOCAL_PROTOCOL;
+    }
+
+    @Override
+    protected OverthereConnection getConnection(ConnectionOptions options) {
+        sleep(TimeUnit.MILLISECONDS.toNanos(options.getInteger(CONNECT_LATENCY, 0)));
+        return new CountingConnection(options);
+    }
+
+    @Override
+    protected boolean supportsHostCommands() {
+        return true;
+    }
+
+    int getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    int getCount(Operation operation) {
+        return operations.get(operation.ordinal());
+    }
+
+    long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    void resetCounts() {
+        roundTrips.set(0);
+        for (int i = 0; i < operations.length(); i++) {
+            operations.set(i, 0);
+        }
+        bytesTransferred.set(0);
+        commandLines.clear();
+    }
+
+    private static void sleep(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    class CountingConnection extends LocalConnection {
+        private final long latencyMillis;
+        private final long jitterMillis;
+        private final long bytesPerSecond;
+        private volatile boolean dropped;
+        private volatile boolean hung;
+
+        CountingConnection(ConnectionOptions options) {
+            super(LOCAL_PROTOCOL, options);
+            this.latencyMillis = options.getInteger(LATENCY, (int) CountingLocalFileSystemProvider.this.latencyMillis);
+            this.jitterMillis = options.getInteger(JITTER, (int) CountingLocalFileSystemProvider.this.jitterMillis);
+            this.bytesPerSecond = options.getInteger(BANDWIDTH, (int) CountingLocalFileSystemProvider.this.bytesPerSecond);
+        }
+
+        /**
+         * Makes every later round trip fail, like a session that the host or the network dropped.
+         */
+        void drop() {
+            dropped = true;
+        }
+
+        /**
+         * Makes every later round trip block until its thread is interrupted, like a host that stopped answering.
+         */
+        void hang() {
+            hung = true;
+        }
+
+        void roundTrip(Operation operation) {
+            roundTrips.incrementAndGet();
+            operations.incrementAndGet(operation.ordinal());
+            if (hung) {
+                sleep(TimeUnit.MINUTES.toNanos(10));
+                throw new RuntimeIOException("Session hung");
+            }
+            if (dropped) {
+                throw new RuntimeIOException("Session dropped");
+            }
+            long delayMillis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+            sleep(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        }
+
+        InputStream throttle(InputStream in) {
+            return new ThrottledInputStream(in, bytesPerSecond);
+        }
+
+        OutputStream throttle(OutputStream out) {
+            return new ThrottledOutputStream(out, bytesPerSecond);
+        }
+
+        @Override
+        public OverthereFile getFile(String hostPath) {
+            return new CountingFile(this, new File(hostPath));
+        }
+
+        @Override
+        public OverthereProcess startProcess(CmdLine commandLine) {
+            roundTrip(Operation.START_PROCESS);
+            commandLines.add(commandLine.toString());
+            final OverthereProcess process = super.startProcess(commandLine);
+            final OutputStream stdin = throttle(process.getStdin());
+            final InputStream stdout = throttle(process.getStdout());
+            return new OverthereProcess() {
+                @Override
+                public OutputStream getStdin() {
+                    return stdin;
+                }
+
+                @Override
+                public InputStream getStdout() {
+                    return stdout;
+                }
+
+                @Override
+                public InputStream getStderr() {
+                    return process.getStderr();
+                }
+
+                @Override
+                public int waitFor() throws InterruptedException {
+                    return process.waitFor();
+                }
+
+                @Override
+                public void destroy() {
+                    process.destroy();
+                }
+
+                @Override
+                public int exitValue() {
+                    return process.exitValue();
+                }
+            };
+        }
+    }
+
+    /**
+     * Sleeps for as long as transferring the counted bytes takes at the capped bandwidth.
+     */
+    private class Throttle {
+        private final long bytesPerSecond;
+        private long debtNanos;
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void transferred(int bytes) {
+            if (bytes <= 0) {
+                return;
+            }
+            bytesTransferred.addAndGet(bytes);
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            debtNanos += bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+            if (debtNanos >= TimeUnit.MILLISECONDS.toNanos(1)) {
+                long start = System.nanoTime();
+                sleep(debtNanos);
+                debtNanos -= System.nanoTime() - start;
+            }
+        }
+    }
+
+    private class ThrottledInputStream extends FilterInputStream {
+        private final Throttle throttle;
+
+        ThrottledInputStream(InputStream in, long bytesPerSecond) {
+            super(in);
+            this.throttle = new Throttle(bytesPerSecond);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                throttle.transferred(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            throttle.transferred(n);
+            return n;
+        }
+    }
+
+    private class ThrottledOutputStream extends FilterOutputStream {
+        private final Throttle throttle;
+
+        ThrottledOutputStream(OutputStream out, long bytesPerSecond) {
+            super(out);
+            this.throttle = new Throttle(bytesPerSecond);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            throttle.transferred(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            throttle.transferred(len);
+        }
+    }
+
+    class CountingFile extends LocalFile {
+        private final CountingConnection connection;
+
+        CountingFile(CountingConnection connection, File file) {
+            super(connection, file);
+            this.connection = connection;
+        }
+
+        @Override
+        public boolean exists() {
+            connection.roundTrip(Operation.EXISTS);
+            return super.exists();
+        }
+
+        @Override
+        public boolean isFile() {
+            connection.roundTrip(Operation.IS_FILE);
+            return super.isFile();
+        }
+
+        @Override
+        public boolean isDirectory() {
+            connection.roundTrip(Operation.IS_DIRECTORY);
+            return super.isDirectory();
+        }
+
+        @Override
+        public long lastModified() {
+            connection.roundTrip(Operation.LAST_MODIFIED);
+            return super.lastModified();
+        }
+
+        @Override
+        public long length() {
+            connection.roundTrip(Operation.LENGTH);
+            return super.length();
+        }
+
+        @Override
+        public List<OverthereFile> listFiles() {
+            connection.roundTrip(Operation.LIST_FILES);
+            return super.listFiles();
+        }
+
+        @Override
+        public boolean canRead() {
+            connection.roundTrip(Operation.CAN_READ);
+            return super.canRead();
+        }
+
+        @Override
+        public boolean canWrite() {
+            connection.roundTrip(Operation.CAN_WRITE);
+            return super.canWrite();
+        }
+
+        @Override
+        public boolean canExecute() {
+            connection.roundTrip(Operation.CAN_EXECUTE);
+            return super.canExecute();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            connection.roundTrip(Operation.READ);
+            return connection.throttle(super.getInputStream());
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            connection.roundTrip(Operation.WRITE);
+            return connection.throttle(super.getOutputStream());
+        }
+
+        @Override
+        public void mkdir() {
+            connection.roundTrip(Operation.MKDIR);
+            super.mkdir();
+        }
+
+        @Override
+        public void delete() {
+            connection.roundTrip(Operation.DELETE);
+            super.delete();
+        }
+
+        @Override
+        public void renameTo(OverthereFile dest) {
+            connection.roundTrip(Operation.RENAME);
+            super.renameTo(dest);
+        }
+
+        @Override
+        public void copyTo(OverthereFile dest) {
+            connection.roundTrip(Operation.COPY);
+            super.copyTo(dest);
+        }
+    }
+}
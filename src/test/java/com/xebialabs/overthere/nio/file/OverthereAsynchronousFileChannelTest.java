@@ -0,0 +1,166 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Closeables;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OverthereAsynchronousFileChannelTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private FileSystem fileSystem;
+    private File tempDir;
+    private Path file;
+
+    @BeforeMethod
+    public void createFileSystem() throws IOException {
+        CountingLocalFileSystemProvider provider = new CountingLocalFileSystemProvider();
+        fileSystem = provider.newFileSystem(URI.create("local:/"), ImmutableMap.<String, Object>of(OverthereConnectionPool.POOL_MAX_SIZE, 2));
+        tempDir = com.google.common.io.Files.createTempDir();
+        com.google.common.io.Files.write("Hello, async world", new File(tempDir, "hello.txt"), UTF8);
+        file = fileSystem.getPath(tempDir.getAbsolutePath()).resolve("hello.txt");
+    }
+
+    @AfterMethod
+    public void closeFileSystem() throws IOException {
+        Closeables.closeQuietly(fileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void shouldReadAtPositionWithFuture() throws Exception {
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(5);
+            assertThat(channel.read(buffer, 7).get(), equalTo(5));
+            assertThat(new String(buffer.array(), UTF8), equalTo("async"));
+            assertThat(channel.size(), equalTo(18L));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void shouldReturnMinusOneAtEndOfFile() throws Exception {
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(file);
+        try {
+            assertThat(channel.read(ByteBuffer.allocateDirect(10), 18).get(), equalTo(-1));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void shouldWriteAtPositionWithCompletionHandler() throws Exception {
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(file, StandardOpenOption.WRITE);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Object> outcome = new AtomicReference<Object>();
+        try {
+            channel.write(ByteBuffer.wrap("ASYNC".getBytes(UTF8)), 7, "attachment", new CompletionHandler<Integer, String>() {
+                @Override
+                public void completed(Integer result, String attachment) {
+                    outcome.set(result);
+                    done.countDown();
+                }
+
+                @Override
+                public void failed(Throwable exc, String attachment) {
+                    outcome.set(exc);
+                    done.countDown();
+                }
+            });
+            assertThat(done.await(10, TimeUnit.SECONDS), equalTo(true));
+        } finally {
+            channel.close();
+        }
+
+        assertThat(outcome.get(), equalTo((Object) 5));
+        assertThat(new String(Files.readAllBytes(file), UTF8), equalTo("Hello, ASYNC world"));
+    }
+
+    @Test
+    public void shouldRunOnGivenExecutor() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Path copy = file.resolveSibling("copy.txt");
+        try {
+            AsynchronousFileChannel channel = fileSystem.provider().newAsynchronousFileChannel(copy,
+                    EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW), executor);
+            try {
+                assertThat(channel.write(ByteBuffer.wrap("Hello".getBytes(UTF8)), 0).get(), equalTo(5));
+            } finally {
+                channel.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(new String(Files.readAllBytes(copy), UTF8), equalTo("Hello"));
+    }
+
+    @Test
+    public void shouldCountTransfersInMetrics() throws Exception {
+        OverthereMetrics metrics = ((OverthereFileSystem) fileSystem).getMetrics();
+        metrics.reset();
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(file);
+        try {
+            channel.read(ByteBuffer.allocate(100), 0).get();
+        } finally {
+            channel.close();
+        }
+        assertThat(metrics.getBytesRead(), equalTo(18L));
+    }
+
+    @Test(expectedExceptions = NoSuchFileException.class)
+    public void shouldNotOpenMissingFileForReading() throws IOException {
+        AsynchronousFileChannel.open(file.resolveSibling("missing.txt"));
+    }
+
+    @Test(expectedExceptions = NonWritableChannelException.class)
+    public void shouldNotWriteReadOnlyChannel() throws IOException {
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(file);
+        try {
+            channel.write(ByteBuffer.allocate(1), 0);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void shouldFailAfterClose() throws Exception {
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(file);
+        channel.close();
+        try {
+            channel.read(ByteBuffer.allocate(1), 0).get();
+        } catch (ExecutionException expected) {
+            assertThat(expected.getCause(), instanceOf(ClosedChannelException.class));
+            return;
+        }
+        throw new AssertionError("Read should have failed");
+    }
+}
@@ -0,0 +1,166 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import com.xebialabs.overthere.nio.file.OverthereFileSystemProvider.Compression;
+import com.xebialabs.overthere.nio.file.provider.LocalFileSystemProvider;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.fail;
+
+public class OverthereBulkTransferTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String LONG_NAME = Strings.repeat("long-directory-name/", 8) + Strings.repeat("x", 120) + ".txt";
+
+    private CountingLocalFileSystemProvider provider;
+    private FileSystem fileSystem;
+    private File tempDir;
+    private Path source;
+
+    @BeforeMethod
+    public void createTree() throws IOException {
+        provider = new CountingLocalFileSystemProvider();
+        fileSystem = provider.newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        tempDir = com.google.common.io.Files.createTempDir();
+        source = tempDir.toPath().resolve("source");
+        Files.createDirectories(source.resolve("sub/empty"));
+        Files.write(source.resolve("hello.txt"), "Hello".getBytes(UTF_8));
+        Files.write(source.resolve("sub/world.txt"), "World".getBytes(UTF_8));
+        Files.createDirectories(source.resolve(LONG_NAME).getParent());
+        Files.write(source.resolve(LONG_NAME), "Long".getBytes(UTF_8));
+        Files.createSymbolicLink(source.resolve("link.txt"), Paths.get("hello.txt"));
+        assertThat(source.resolve("hello.txt").toFile().setLastModified(1000000000L), equalTo(true));
+    }
+
+    @AfterMethod
+    public void deleteTree() throws IOException {
+        Closeables.closeQuietly(fileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @DataProvider(name = "compressions")
+    public Object[][] compressions() {
+        return new Object[][] {{Compression.NONE}, {Compression.GZIP}};
+    }
+
+    @Test(dataProvider = "compressions")
+    public void shouldUploadTreeThroughOneTarProcess(Compression compression) throws IOException {
+        Path target = fileSystem.getPath(tempDir.getAbsolutePath(), "target");
+        provider.upload(source, target, compression);
+
+        assertTree(tempDir.toPath().resolve("target"));
+        assertThat(provider.commandLines.toString(), containsString("[tar, -x"));
+        assertThat(provider.getCount(CountingLocalFileSystemProvider.Operation.WRITE), equalTo(0));
+        assertThat(((OverthereFileSystem) fileSystem).getMetrics().snapshot().get(OverthereMetrics.Operation.UPLOAD).getCount(), equalTo(1L));
+    }
+
+    @Test(dataProvider = "compressions")
+    public void shouldDownloadTreeThroughOneTarProcess(Compression compression) throws IOException {
+        Path target = tempDir.toPath().resolve("target");
+        provider.download(fileSystem.getPath(source.toString()), target, compression);
+
+        assertTree(target);
+        assertThat(provider.commandLines.toString(), containsString("[tar, -c"));
+        assertThat(provider.getCount(CountingLocalFileSystemProvider.Operation.READ), equalTo(0));
+        assertThat(((OverthereFileSystem) fileSystem).getMetrics().getBytesRead() > 0, equalTo(true));
+    }
+
+    @Test
+    public void shouldCheckForTarOnce() throws IOException {
+        provider.upload(source, fileSystem.getPath(tempDir.getAbsolutePath(), "first"), Compression.NONE);
+        provider.upload(source, fileSystem.getPath(tempDir.getAbsolutePath(), "second"), Compression.NONE);
+
+        assertThat(provider.getCount(CountingLocalFileSystemProvider.Operation.START_PROCESS), equalTo(3));
+    }
+
+    @Test
+    public void shouldCopyFileByFileWithoutHostCommands() throws IOException {
+        LocalFileSystemProvider localProvider = new LocalFileSystemProvider();
+        FileSystem localFileSystem = localProvider.newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        try {
+            localProvider.upload(source, localFileSystem.getPath(tempDir.getAbsolutePath(), "uploaded"), Compression.GZIP);
+            localProvider.download(localFileSystem.getPath(tempDir.getAbsolutePath(), "uploaded"), tempDir.toPath().resolve("downloaded"), Compression.GZIP);
+        } finally {
+            localFileSystem.close();
+        }
+        assertThat(read(tempDir.toPath().resolve("downloaded/sub/world.txt")), equalTo("World"));
+        assertThat(read(tempDir.toPath().resolve("downloaded").resolve(LONG_NAME)), equalTo("Long"));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void shouldRefuseEntryOutsideOfTarget() throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        TarWriter writer = new TarWriter(archive);
+        writer.writeFile("../evil.txt", 0644, 4, 0, new ByteArrayInputStream("Evil".getBytes(UTF_8)));
+        writer.close();
+
+        new TarReader(new ByteArrayInputStream(archive.toByteArray())).extractTo(tempDir.toPath().resolve("target"));
+    }
+
+    @Test
+    public void shouldRefuseHardLinkThroughSymbolicLinkOutsideOfTarget() throws IOException {
+        Path outside = tempDir.toPath().resolve("outside");
+        Files.createDirectories(outside);
+        Files.write(outside.resolve("victim"), "Victim".getBytes(UTF_8));
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        TarWriter writer = new TarWriter(archive);
+        writer.writeSymbolicLink("d", outside.toString(), 0);
+        writer.writeHardLink("h", "d/victim", 0);
+        writer.close();
+
+        Path target = tempDir.toPath().resolve("target");
+        try {
+            new TarReader(new ByteArrayInputStream(archive.toByteArray())).extractTo(target);
+            fail("Extracted a hard link to a file outside of the target");
+        } catch (IOException expected) {
+            assertThat(Files.exists(target.resolve("h")), equalTo(false));
+        }
+    }
+
+    @Test
+    public void shouldReadWhatItWrites() throws IOException {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        TarWriter writer = new TarWriter(archive);
+        writer.writeTree(source);
+        writer.close();
+        assertThat(archive.size() % (20 * TarWriter.BLOCK_SIZE), equalTo(0));
+
+        Path target = tempDir.toPath().resolve("target");
+        new TarReader(new ByteArrayInputStream(archive.toByteArray())).extractTo(target);
+        assertTree(target);
+    }
+
+    private void assertTree(Path target) throws IOException {
+        assertThat(read(target.resolve("hello.txt")), equalTo("Hello"));
+        assertThat(read(target.resolve("sub/world.txt")), equalTo("World"));
+        assertThat(read(target.resolve(LONG_NAME)), equalTo("Long"));
+        assertThat(Files.isDirectory(target.resolve("sub/empty")), equalTo(true));
+        assertThat(Files.readSymbolicLink(target.resolve("link.txt")).toString(), equalTo("hello.txt"));
+        assertThat(Files.getLastModifiedTime(target.resolve("hello.txt")).toMillis(), equalTo(1000000000L));
+    }
+
+    private static String read(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), UTF_8);
+    }
+}
@@ -0,0 +1,270 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.nio.file.provider.LocalFileSystemProvider;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OverthereByteChannelTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private FileSystem localFileSystem;
+    private FileSystem hostCommandFileSystem;
+    private File tempDir;
+    private File testFile;
+
+    @BeforeMethod
+    public void createFileSystems() throws IOException {
+        localFileSystem = new LocalFileSystemProvider().newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        hostCommandFileSystem = new CountingLocalFileSystemProvider().newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        tempDir = com.google.common.io.Files.createTempDir();
+        testFile = new File(tempDir, "test.txt");
+        com.google.common.io.Files.write("Some text", testFile, UTF_8);
+    }
+
+    @AfterMethod
+    public void closeFileSystems() throws IOException {
+        Closeables.closeQuietly(localFileSystem);
+        Closeables.closeQuietly(hostCommandFileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @DataProvider(name = "fileSystems")
+    public Object[][] fileSystems() {
+        return new Object[][] {{"local"}, {"host commands"}};
+    }
+
+    private Path testPath(String fileSystem) {
+        return ("local".equals(fileSystem) ? localFileSystem : hostCommandFileSystem).getPath(testFile.getAbsolutePath());
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldReadFromPosition(String fileSystem) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(testPath(fileSystem));
+        try {
+            channel.position(5);
+            assertThat(read(channel, 4), equalTo("text"));
+            assertThat(channel.position(), equalTo(9L));
+            channel.position(0);
+            assertThat(read(channel, 4), equalTo("Some"));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldReadIntoDirectBuffer(String fileSystem) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(testPath(fileSystem));
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+            buffer.position(2);
+            while (channel.read(buffer) >= 0) {
+                // keep reading
+            }
+            buffer.flip().position(2);
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            assertThat(new String(bytes, UTF_8), equalTo("Some text"));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldReadIntoSlicedHeapBuffer(String fileSystem) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(testPath(fileSystem));
+        try {
+            byte[] backing = "XXXXXXXX".getBytes(UTF_8);
+            ByteBuffer buffer = ByteBuffer.wrap(backing, 2, 6).slice();
+            buffer.position(1);
+            buffer.limit(5);
+            assertThat(channel.read(buffer), equalTo(4));
+            assertThat(new String(backing, UTF_8), equalTo("XXXSomeX"));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldWriteFromDirectBuffer(String fileSystem) throws IOException {
+        byte[] bytes = new byte[OverthereByteChannel.TRANSFER_BUFFER_SIZE * 2 + 3];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ('a' + i % 26);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+
+        SeekableByteChannel channel = Files.newByteChannel(testPath(fileSystem), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            assertThat(channel.write(buffer), equalTo(bytes.length));
+            assertThat(buffer.hasRemaining(), equalTo(false));
+        } finally {
+            channel.close();
+        }
+        assertThat(com.google.common.io.Files.toByteArray(testFile), equalTo(bytes));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldWriteRemainingPartOfHeapBuffer(String fileSystem) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap("__Some TEXT__".getBytes(UTF_8), 1, 12).slice();
+        buffer.position(6);
+        buffer.limit(10);
+
+        SeekableByteChannel channel = Files.newByteChannel(testPath(fileSystem), StandardOpenOption.WRITE);
+        try {
+            channel.position(5);
+            assertThat(channel.write(buffer), equalTo(4));
+            assertThat(buffer.position(), equalTo(10));
+        } finally {
+            channel.close();
+        }
+        assertThat(com.google.common.io.Files.toString(testFile, UTF_8), equalTo("Some TEXT"));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldReportSize(String fileSystem) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(testPath(fileSystem));
+        try {
+            assertThat(channel.size(), equalTo(9L));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldWriteAtPosition(String fileSystem) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(testPath(fileSystem), StandardOpenOption.WRITE);
+        try {
+            channel.position(5);
+            channel.write(ByteBuffer.wrap("TEXT".getBytes(UTF_8)));
+        } finally {
+            channel.close();
+        }
+        assertThat(com.google.common.io.Files.toString(testFile, UTF_8), equalTo("Some TEXT"));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldAppend(String fileSystem) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(testPath(fileSystem), StandardOpenOption.APPEND);
+        try {
+            channel.write(ByteBuffer.wrap(" and more".getBytes(UTF_8)));
+            assertThat(channel.position(), equalTo(18L));
+        } finally {
+            channel.close();
+        }
+        assertThat(com.google.common.io.Files.toString(testFile, UTF_8), equalTo("Some text and more"));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldReadBackWhatWasWritten(String fileSystem) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(testPath(fileSystem), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            channel.position(5);
+            channel.write(ByteBuffer.wrap("TEXT and more".getBytes(UTF_8)));
+            assertThat(channel.size(), equalTo(18L));
+            channel.position(0);
+            assertThat(read(channel, 9), equalTo("Some TEXT"));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void shouldNotHoldUpOtherOperationsWhileStreamIsOpen() throws IOException {
+        OverthereConnectionPool pool = ((OverthereFileSystem) hostCommandFileSystem).getConnectionPool();
+        File other = new File(tempDir, "other.txt");
+        com.google.common.io.Files.write("Hello", other, UTF_8);
+
+        InputStream in = Files.newInputStream(testPath("host commands"));
+        try {
+            assertThat(Files.size(hostCommandFileSystem.getPath(other.getAbsolutePath())), equalTo(5L));
+            assertThat(pool.getBorrowedConnections(), equalTo(0));
+            OverthereConnection connection = pool.borrow();
+            assertThat(pool.getRunningProcesses(connection), equalTo(1));
+            pool.release(connection);
+        } finally {
+            in.close();
+        }
+        OverthereConnection connection = pool.borrow();
+        assertThat(pool.getRunningProcesses(connection), equalTo(0));
+        pool.release(connection);
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldTruncate(String fileSystem) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(testPath(fileSystem), StandardOpenOption.WRITE);
+        try {
+            channel.truncate(4);
+            assertThat(channel.size(), equalTo(4L));
+        } finally {
+            channel.close();
+        }
+        assertThat(com.google.common.io.Files.toString(testFile, UTF_8), equalTo("Some"));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldOverwriteWhenTruncatingExisting(String fileSystem) throws IOException {
+        Files.write(testPath(fileSystem), "New".getBytes(UTF_8));
+        assertThat(com.google.common.io.Files.toString(testFile, UTF_8), equalTo("New"));
+    }
+
+    @Test
+    public void shouldOpenNativeFileChannelOnLocal() throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(testPath("local"));
+        try {
+            assertThat(channel, instanceOf(FileChannel.class));
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void shouldTransferAndMapOnLocal() throws IOException {
+        Path target = localFileSystem.getPath(new File(tempDir, "target.txt").getAbsolutePath());
+        FileChannel source = FileChannel.open(testPath("local"));
+        FileChannel copy = FileChannel.open(target, EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+        try {
+            assertThat(source.transferTo(0, source.size(), copy), equalTo(9L));
+            MappedByteBuffer mapped = source.map(FileChannel.MapMode.READ_ONLY, 5, 4);
+            byte[] bytes = new byte[4];
+            mapped.get(bytes);
+            assertThat(new String(bytes, UTF_8), equalTo("text"));
+        } finally {
+            source.close();
+            copy.close();
+        }
+        assertThat(new String(Files.readAllBytes(target), UTF_8), equalTo("Some text"));
+    }
+
+    private static String read(SeekableByteChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // keep reading
+        }
+        return new String(buffer.array(), 0, buffer.position(), UTF_8);
+    }
+}
@@ -0,0 +1,312 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.DirectoryStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.nio.file.provider.LocalFileSystemProvider;
+import com.xebialabs.overthere.nio.process.Processes;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.fail;
+
+public class OverthereConnectionPoolTest {
+
+    private OverthereFileSystem fileSystem;
+
+    @BeforeMethod
+    public void createFileSystem() throws IOException {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereConnectionPool.POOL_MAX_SIZE, 2);
+        fileSystem = (OverthereFileSystem) new LocalFileSystemProvider().newFileSystem(URI.create("local:/"), env);
+    }
+
+    @AfterMethod
+    public void closeFileSystem() throws IOException {
+        fileSystem.close();
+    }
+
+    @Test
+    public void shouldHandOutDistinctConnectionsUpToMaxSize() throws IOException {
+        OverthereConnectionPool pool = fileSystem.getConnectionPool();
+        OverthereConnection first = pool.borrow();
+        OverthereConnection second = pool.borrow();
+        assertThat(first, not(sameInstance(second)));
+        pool.release(first);
+        pool.release(second);
+    }
+
+    @Test
+    public void shouldReuseReleasedConnection() throws IOException {
+        OverthereConnectionPool pool = fileSystem.getConnectionPool();
+        OverthereConnection first = pool.borrow();
+        pool.release(first);
+        assertThat(pool.borrow(), sameInstance(first));
+    }
+
+    @Test
+    public void shouldWaitForConnectionWhenPoolIsExhausted() throws Exception {
+        final OverthereConnectionPool pool = fileSystem.getConnectionPool();
+        OverthereConnection first = pool.borrow();
+        pool.borrow();
+
+        final AtomicReference<OverthereConnection> borrowed = new AtomicReference<OverthereConnection>();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    borrowed.set(pool.borrow());
+                } catch (IOException ignored) {
+                    // asserted below
+                }
+                done.countDown();
+            }
+        }.start();
+
+        assertThat(done.await(200, TimeUnit.MILLISECONDS), equalTo(false));
+        pool.release(first);
+        assertThat(done.await(5, TimeUnit.SECONDS), equalTo(true));
+        assertThat(borrowed.get(), sameInstance(first));
+    }
+
+    @Test
+    public void shouldFailToBorrowWhenNoConnectionIsReleasedInTime() throws IOException {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereConnectionPool.POOL_BORROW_TIMEOUT, 100);
+        OverthereFileSystem single = (OverthereFileSystem) new LocalFileSystemProvider().newFileSystem(URI.create("local:/"), env);
+        try {
+            OverthereConnectionPool pool = single.getConnectionPool();
+            pool.borrow();
+            try {
+                pool.borrow();
+                fail("Borrowed a second connection from a pool of 1");
+            } catch (IOException expected) {
+                assertThat(expected.getMessage().contains("Timed out"), equalTo(true));
+            }
+        } finally {
+            Closeables.closeQuietly(single);
+        }
+    }
+
+    @Test
+    public void shouldNotLendPrimaryConnectionToBorrowers() throws IOException {
+        OverthereConnectionPool pool = fileSystem.getConnectionPool();
+        OverthereConnection primary = fileSystem.getConnection();
+        OverthereConnection borrowed = pool.borrow();
+        assertThat(borrowed, not(sameInstance(primary)));
+        assertThat(pool.getOpenConnections(), equalTo(2));
+        pool.release(borrowed);
+        assertThat(pool.borrow(), not(sameInstance(primary)));
+    }
+
+    @Test
+    public void shouldNotOpenMoreThanMaxSizeConnectionsInLazyMode() throws IOException {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereConnectionPool.LAZY_CONNECT, true);
+        env.put(OverthereConnectionPool.POOL_MAX_SIZE, 2);
+        env.put(OverthereConnectionPool.POOL_BORROW_TIMEOUT, 100);
+        OverthereFileSystem lazy = (OverthereFileSystem) new LocalFileSystemProvider().newFileSystem(URI.create("local:/"), env);
+        try {
+            OverthereConnectionPool pool = lazy.getConnectionPool();
+            pool.borrow();
+            assertThat(lazy.getConnection(), notNullValue());
+            try {
+                pool.borrow();
+                fail("Borrowed a third connection from a pool of 2");
+            } catch (IOException expected) {
+                assertThat(pool.getOpenConnections(), equalTo(2));
+            }
+        } finally {
+            Closeables.closeQuietly(lazy);
+        }
+    }
+
+    @Test(expectedExceptions = ClosedFileSystemException.class)
+    public void shouldNotBorrowFromClosedFileSystem() throws IOException {
+        assertThat(fileSystem.getConnection(), notNullValue());
+        fileSystem.close();
+        fileSystem.getConnectionPool().borrow();
+    }
+
+    @Test
+    public void shouldCloseIdleConnectionsAndReconnectWhenUsed() throws Exception {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereConnectionPool.POOL_MAX_SIZE, 2);
+        env.put(OverthereConnectionPool.POOL_IDLE_TIMEOUT, 100);
+        OverthereFileSystem idleFileSystem = (OverthereFileSystem) new CountingLocalFileSystemProvider().newFileSystem(URI.create("local:/"), env);
+        try {
+            OverthereConnectionPool pool = idleFileSystem.getConnectionPool();
+            OverthereConnection first = pool.borrow();
+            OverthereConnection second = pool.borrow();
+            pool.release(first);
+            pool.release(second);
+            assertThat(pool.getOpenConnections(), equalTo(2));
+
+            awaitOpenConnections(pool, 0);
+            assertThat(Files.exists(idleFileSystem.getPath(System.getProperty("java.io.tmpdir"))), equalTo(true));
+            assertThat(pool.getOpenConnections(), equalTo(1));
+            assertThat(idleFileSystem.getConnection(), notNullValue());
+        } finally {
+            Closeables.closeQuietly(idleFileSystem);
+        }
+    }
+
+    @Test
+    public void shouldKeepIdleConnectionsAliveAndCloseBrokenOnes() throws Exception {
+        CountingLocalFileSystemProvider provider = new CountingLocalFileSystemProvider();
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereConnectionPool.POOL_KEEP_ALIVE_INTERVAL, 50);
+        OverthereFileSystem keptAlive = (OverthereFileSystem) provider.newFileSystem(URI.create("local:/"), env);
+        try {
+            provider.resetCounts();
+            Thread.sleep(300);
+            assertThat(provider.getCount(CountingLocalFileSystemProvider.Operation.EXISTS) >= 2, equalTo(true));
+
+            OverthereConnectionPool pool = keptAlive.getConnectionPool();
+            OverthereConnection connection = pool.borrow();
+            ((CountingLocalFileSystemProvider.CountingConnection) connection).drop();
+            pool.release(connection);
+            awaitOpenConnections(pool, 0);
+        } finally {
+            Closeables.closeQuietly(keptAlive);
+        }
+    }
+
+    @Test
+    public void shouldRetryMetadataCallsOnNewConnectionWhenSessionWasDropped() throws IOException {
+        OverthereFileSystem dropping = (OverthereFileSystem) new CountingLocalFileSystemProvider().newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        try {
+            OverthereConnectionPool pool = dropping.getConnectionPool();
+            OverthereConnection connection = pool.borrow();
+            ((CountingLocalFileSystemProvider.CountingConnection) connection).drop();
+            pool.release(connection);
+
+            Path tempDir = dropping.getPath(new File(System.getProperty("java.io.tmpdir")).getAbsolutePath());
+            assertThat(Files.isDirectory(tempDir), equalTo(true));
+            assertThat(Files.isHidden(tempDir), equalTo(false));
+
+            OverthereMetrics.Snapshot metrics = dropping.getMetrics().snapshot();
+            assertThat(metrics.get(OverthereMetrics.Operation.READ_ATTRIBUTES).getErrors(), equalTo(1L));
+            assertThat(metrics.get(OverthereMetrics.Operation.CONNECT).getCount(), equalTo(2L));
+            assertThat(pool.borrow(), not(sameInstance(connection)));
+        } finally {
+            Closeables.closeQuietly(dropping);
+        }
+    }
+
+    @Test
+    public void shouldCloseConnectionThatDoesNotAnswerKeepAlive() throws Exception {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereConnectionPool.POOL_KEEP_ALIVE_INTERVAL, 50);
+        env.put(OverthereConnectionPool.POOL_KEEP_ALIVE_TIMEOUT, 100);
+        OverthereFileSystem hanging = (OverthereFileSystem) new CountingLocalFileSystemProvider().newFileSystem(URI.create("local:/"), env);
+        try {
+            OverthereConnectionPool pool = hanging.getConnectionPool();
+            OverthereConnection connection = pool.borrow();
+            ((CountingLocalFileSystemProvider.CountingConnection) connection).hang();
+            pool.release(connection);
+            awaitOpenConnections(pool, 0);
+            assertThat(pool.getBorrowedConnections(), equalTo(0));
+        } finally {
+            Closeables.closeQuietly(hanging);
+        }
+    }
+
+    @Test
+    public void shouldLeaveConnectionWithRunningProcessAlone() throws Exception {
+        CountingLocalFileSystemProvider provider = new CountingLocalFileSystemProvider();
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereConnectionPool.POOL_IDLE_TIMEOUT, 100);
+        env.put(OverthereConnectionPool.POOL_KEEP_ALIVE_INTERVAL, 50);
+        OverthereFileSystem listing = (OverthereFileSystem) provider.newFileSystem(URI.create("local:/"), env);
+        File dir = com.google.common.io.Files.createTempDir();
+        try {
+            assertThat(new File(dir, "a.txt").createNewFile(), equalTo(true));
+            assertThat(new File(dir, "b.txt").createNewFile(), equalTo(true));
+            DirectoryStream<Path> stream = Files.newDirectoryStream(listing.getPath(dir.getAbsolutePath()));
+            try {
+                Iterator<Path> entries = stream.iterator();
+                assertThat(entries.hasNext(), equalTo(true));
+                provider.resetCounts();
+                Thread.sleep(300);
+                assertThat(listing.getConnectionPool().getOpenConnections(), equalTo(1));
+                assertThat(provider.getCount(CountingLocalFileSystemProvider.Operation.EXISTS), equalTo(0));
+            } finally {
+                stream.close();
+            }
+            awaitOpenConnections(listing.getConnectionPool(), 0);
+        } finally {
+            Closeables.closeQuietly(listing);
+            Files.walkFileTree(dir.toPath(), new DeleteDirVisitor());
+        }
+    }
+
+    @Test
+    public void shouldLeaveConnectionOfStartedProcessAlone() throws Exception {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereConnectionPool.POOL_IDLE_TIMEOUT, 100);
+        OverthereFileSystem processes = (OverthereFileSystem) new CountingLocalFileSystemProvider().newFileSystem(URI.create("local:/"), env);
+        try {
+            OverthereProcess process = Processes.startProcess(processes.getPath("/bin/sleep"), "10");
+            try {
+                Thread.sleep(300);
+                assertThat(processes.getConnectionPool().getOpenConnections(), equalTo(1));
+            } finally {
+                process.destroy();
+            }
+            awaitOpenConnections(processes.getConnectionPool(), 0);
+        } finally {
+            Closeables.closeQuietly(processes);
+        }
+    }
+
+    @Test
+    public void shouldNotRetryCommandThatFailedOnHealthyConnection() throws IOException {
+        long connects = fileSystem.getMetrics().snapshot().get(OverthereMetrics.Operation.CONNECT).getCount();
+        final AtomicInteger calls = new AtomicInteger();
+        try {
+            fileSystem.callIdempotent(OverthereMetrics.Operation.READ_ATTRIBUTES, new OverthereFileSystem.IdempotentCall<Object>() {
+                @Override
+                public Object call(OverthereConnection connection) throws IOException {
+                    calls.incrementAndGet();
+                    throw new IOException(new RuntimeIOException("[stat] exited with code 1"));
+                }
+            });
+            throw new AssertionError("Call should have failed");
+        } catch (IOException expected) {
+            assertThat(calls.get(), equalTo(1));
+        }
+        assertThat(fileSystem.getMetrics().snapshot().get(OverthereMetrics.Operation.CONNECT).getCount(), equalTo(connects));
+    }
+
+    private static void awaitOpenConnections(OverthereConnectionPool pool, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.getOpenConnections() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(pool.getOpenConnections(), equalTo(expected));
+    }
+}
@@ -0,0 +1,206 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import com.xebialabs.overthere.nio.file.provider.LocalFileSystemProvider;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.fail;
+
+public class OverthereCopyMoveTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private FileSystem localFileSystem;
+    private FileSystem hostCommandFileSystem;
+    private File tempDir;
+    private File testFile;
+
+    @BeforeMethod
+    public void createFileSystems() throws IOException {
+        localFileSystem = new LocalFileSystemProvider().newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        hostCommandFileSystem = new CountingLocalFileSystemProvider().newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        tempDir = com.google.common.io.Files.createTempDir();
+        testFile = new File(tempDir, "test.txt");
+        com.google.common.io.Files.write("Some text", testFile, UTF_8);
+    }
+
+    @AfterMethod
+    public void closeFileSystems() throws IOException {
+        Closeables.closeQuietly(localFileSystem);
+        Closeables.closeQuietly(hostCommandFileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @DataProvider(name = "fileSystems")
+    public Object[][] fileSystems() {
+        return new Object[][] {{"local"}, {"host commands"}};
+    }
+
+    private Path path(String fileSystem, String name) {
+        return ("local".equals(fileSystem) ? localFileSystem : hostCommandFileSystem).getPath(new File(tempDir, name).getAbsolutePath());
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldCopyFile(String fileSystem) throws IOException {
+        Files.copy(path(fileSystem, "test.txt"), path(fileSystem, "copy.txt"));
+        assertThat(com.google.common.io.Files.toString(new File(tempDir, "copy.txt"), UTF_8), equalTo("Some text"));
+        assertThat(testFile.exists(), equalTo(true));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldCopyAttributes(String fileSystem) throws IOException {
+        assertThat(testFile.setLastModified(1000000000L), equalTo(true));
+        Files.copy(path(fileSystem, "test.txt"), path(fileSystem, "copy.txt"), StandardCopyOption.COPY_ATTRIBUTES);
+        assertThat(new File(tempDir, "copy.txt").lastModified(), equalTo(1000000000L));
+    }
+
+    @Test(dataProvider = "fileSystems", expectedExceptions = FileAlreadyExistsException.class)
+    public void shouldNotCopyOntoExistingFile(String fileSystem) throws IOException {
+        com.google.common.io.Files.write("Other text", new File(tempDir, "copy.txt"), UTF_8);
+        Files.copy(path(fileSystem, "test.txt"), path(fileSystem, "copy.txt"));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldReplaceExistingFile(String fileSystem) throws IOException {
+        com.google.common.io.Files.write("Other text", new File(tempDir, "copy.txt"), UTF_8);
+        Files.copy(path(fileSystem, "test.txt"), path(fileSystem, "copy.txt"), StandardCopyOption.REPLACE_EXISTING);
+        assertThat(com.google.common.io.Files.toString(new File(tempDir, "copy.txt"), UTF_8), equalTo("Some text"));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldCopyDirectoryWithoutEntries(String fileSystem) throws IOException {
+        File dir = new File(tempDir, "dir");
+        assertThat(dir.mkdir(), equalTo(true));
+        com.google.common.io.Files.write("Some text", new File(dir, "entry.txt"), UTF_8);
+        Files.copy(path(fileSystem, "dir"), path(fileSystem, "dir-copy"));
+        assertThat(new File(tempDir, "dir-copy").isDirectory(), equalTo(true));
+        assertThat(new File(tempDir, "dir-copy").list().length, equalTo(0));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldCopyDirectoryAttributes(String fileSystem) throws IOException {
+        File dir = new File(tempDir, "dir");
+        assertThat(dir.mkdir(), equalTo(true));
+        assertThat(dir.setLastModified(1000000000L), equalTo(true));
+        Files.copy(path(fileSystem, "dir"), path(fileSystem, "dir-copy"), StandardCopyOption.COPY_ATTRIBUTES);
+        assertThat(new File(tempDir, "dir-copy").lastModified(), equalTo(1000000000L));
+    }
+
+    @Test
+    public void shouldCopyLinkItselfWhenNotFollowingLinks() throws IOException {
+        Files.createSymbolicLink(new File(tempDir, "link.txt").toPath(), Paths.get("test.txt"));
+        Files.copy(path("host commands", "link.txt"), path("host commands", "copy.txt"), LinkOption.NOFOLLOW_LINKS);
+        assertThat(Files.readSymbolicLink(new File(tempDir, "copy.txt").toPath()).toString(), equalTo("test.txt"));
+    }
+
+    @Test(dataProvider = "fileSystems", expectedExceptions = NoSuchFileException.class)
+    public void shouldNotCopyMissingFile(String fileSystem) throws IOException {
+        Files.copy(path(fileSystem, "missing.txt"), path(fileSystem, "copy.txt"));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldMoveFile(String fileSystem) throws IOException {
+        Files.move(path(fileSystem, "test.txt"), path(fileSystem, "moved.txt"));
+        assertThat(com.google.common.io.Files.toString(new File(tempDir, "moved.txt"), UTF_8), equalTo("Some text"));
+        assertThat(testFile.exists(), equalTo(false));
+        assertThat(Files.exists(path(fileSystem, "test.txt")), equalTo(false));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldMoveDirectoryWithEntries(String fileSystem) throws IOException {
+        File dir = new File(tempDir, "dir");
+        assertThat(dir.mkdir(), equalTo(true));
+        com.google.common.io.Files.write("Some text", new File(dir, "entry.txt"), UTF_8);
+        Files.move(path(fileSystem, "dir"), path(fileSystem, "moved-dir"));
+        assertThat(new File(tempDir, "moved-dir/entry.txt").exists(), equalTo(true));
+        assertThat(dir.exists(), equalTo(false));
+    }
+
+    @Test(dataProvider = "fileSystems")
+    public void shouldMoveAtomicallyOntoExistingFile(String fileSystem) throws IOException {
+        com.google.common.io.Files.write("Other text", new File(tempDir, "moved.txt"), UTF_8);
+        Files.move(path(fileSystem, "test.txt"), path(fileSystem, "moved.txt"), StandardCopyOption.ATOMIC_MOVE);
+        assertThat(com.google.common.io.Files.toString(new File(tempDir, "moved.txt"), UTF_8), equalTo("Some text"));
+        assertThat(testFile.exists(), equalTo(false));
+    }
+
+    @Test(dataProvider = "fileSystems", expectedExceptions = FileAlreadyExistsException.class)
+    public void shouldNotMoveOntoExistingFile(String fileSystem) throws IOException {
+        com.google.common.io.Files.write("Other text", new File(tempDir, "moved.txt"), UTF_8);
+        Files.move(path(fileSystem, "test.txt"), path(fileSystem, "moved.txt"));
+    }
+
+    @Test
+    public void shouldCopyBetweenFileSystems() throws IOException {
+        Files.copy(path("local", "test.txt"), path("host commands", "copy.txt"));
+        assertThat(com.google.common.io.Files.toString(new File(tempDir, "copy.txt"), UTF_8), equalTo("Some text"));
+    }
+
+    @Test
+    public void shouldNotMoveDirectoryWithEntriesBetweenFileSystems() throws IOException {
+        File dir = new File(tempDir, "dir");
+        assertThat(dir.mkdir(), equalTo(true));
+        com.google.common.io.Files.write("Some text", new File(dir, "entry.txt"), UTF_8);
+        FileSystem other = hostCommandFileSystem.provider().newFileSystem(URI.create("local://other/"), Maps.<String, Object>newHashMap());
+        try {
+            Files.move(path("host commands", "dir"), other.getPath(new File(tempDir, "moved-dir").getAbsolutePath()));
+            fail("Expected DirectoryNotEmptyException");
+        } catch (DirectoryNotEmptyException expected) {
+            assertThat(new File(tempDir, "moved-dir").exists(), equalTo(false));
+            assertThat(new File(dir, "entry.txt").exists(), equalTo(true));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void shouldRelayWhenDirectTransferFails() throws IOException {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereFileSystemProvider.DIRECT_TRANSFER, true);
+        CountingLocalFileSystemProvider provider = new CountingLocalFileSystemProvider() {
+            @Override
+            protected boolean acceptsDirectTransfers() {
+                return true;
+            }
+        };
+        FileSystem source = provider.newFileSystem(URI.create("local://source/"), env);
+        FileSystem target = provider.newFileSystem(URI.create("local://nobody@127.0.0.1:1/"), Maps.<String, Object>newHashMap());
+        try {
+            Files.copy(source.getPath(testFile.getAbsolutePath()), target.getPath(new File(tempDir, "copy.txt").getAbsolutePath()));
+            assertThat(com.google.common.io.Files.toString(new File(tempDir, "copy.txt"), UTF_8), equalTo("Some text"));
+            assertThat(provider.commandLines.toString(), containsString("scp"));
+        } finally {
+            source.close();
+            target.close();
+        }
+    }
+
+    @Test
+    public void shouldConsiderEqualPathsTheSameFile() throws IOException {
+        Path path = path("local", "test.txt");
+        assertThat(Files.isSameFile(path, path.getParent().resolve("../" + tempDir.getName() + "/test.txt")), equalTo(true));
+        assertThat(Files.isSameFile(path, path("host commands", "test.txt")), equalTo(false));
+    }
+}
@@ -0,0 +1,180 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import com.xebialabs.overthere.OverthereConnection;
+
+import static com.google.common.collect.Sets.newHashSet;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OverthereDirectoryStreamTest {
+
+    private CountingLocalFileSystemProvider provider;
+    private FileSystem fileSystem;
+    private File tempDir;
+
+    @BeforeMethod
+    public void createFileSystem() throws IOException {
+        provider = new CountingLocalFileSystemProvider();
+        fileSystem = provider.newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        tempDir = com.google.common.io.Files.createTempDir();
+        File subDir = new File(tempDir, "sub");
+        subDir.mkdir();
+        for (int i = 0; i < 10; i++) {
+            com.google.common.io.Files.write("Some text", new File(tempDir, "file" + i + ".txt"), Charset.defaultCharset());
+            com.google.common.io.Files.write("Some text", new File(subDir, "file" + i + ".txt"), Charset.defaultCharset());
+        }
+    }
+
+    @AfterMethod
+    public void closeFileSystem() throws IOException {
+        Closeables.closeQuietly(fileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void shouldListEntries() throws IOException {
+        Path dir = fileSystem.getPath(tempDir.getAbsolutePath());
+        Set<Path> entries = newHashSet();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+        try {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        } finally {
+            stream.close();
+        }
+        assertThat(entries.size(), equalTo(11));
+        assertThat(entries.contains(dir.resolve("sub")), equalTo(true));
+        assertThat(entries.contains(dir.resolve("file0.txt")), equalTo(true));
+    }
+
+    @Test
+    public void shouldListEntryWithNewlineInItsName() throws IOException {
+        com.google.common.io.Files.write("Some text", new File(tempDir, "two\nlines.txt"), Charset.defaultCharset());
+        Path dir = fileSystem.getPath(tempDir.getAbsolutePath());
+        Set<Path> entries = newHashSet();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+        try {
+            for (Path entry : stream) {
+                entries.add(entry);
+            }
+        } finally {
+            stream.close();
+        }
+        assertThat(entries.size(), equalTo(12));
+        assertThat(entries.contains(dir.resolve("two\nlines.txt")), equalTo(true));
+        assertThat(provider.commandLines.toString().contains("find"), equalTo(true));
+    }
+
+    @Test
+    public void shouldStopListingWhenClosedEarly() throws IOException {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(fileSystem.getPath(tempDir.getAbsolutePath()));
+        Iterator<Path> iterator = stream.iterator();
+        assertThat(iterator.hasNext(), equalTo(true));
+        iterator.next();
+        stream.close();
+        assertThat(iterator.hasNext(), equalTo(false));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shouldOnlyReturnOneIterator() throws IOException {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(fileSystem.getPath(tempDir.getAbsolutePath()));
+        try {
+            stream.iterator();
+            stream.iterator();
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void shouldWalkTreeWithOneRoundTripPerDirectory() throws IOException {
+        final AtomicInteger files = new AtomicInteger();
+        int before = provider.getRoundTrips();
+        Files.walkFileTree(fileSystem.getPath(tempDir.getAbsolutePath()), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                assertThat(attrs.size(), equalTo(9L));
+                assertThat(Files.isRegularFile(file), equalTo(true));
+                files.incrementAndGet();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        assertThat(files.get(), equalTo(20));
+        // Attributes and type check of the root, then one listing per directory
+        assertThat(provider.getRoundTrips() - before, equalTo(4));
+    }
+
+    @Test
+    public void shouldAskHostAgainOncePrefetchedAttributesExpire() throws IOException {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereMetadataCache.PREFETCHED_ATTRIBUTES_TTL, 0);
+        CountingLocalFileSystemProvider expiringProvider = new CountingLocalFileSystemProvider();
+        FileSystem expiring = expiringProvider.newFileSystem(URI.create("local:/"), env);
+        try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(expiring.getPath(tempDir.getAbsolutePath()));
+            try {
+                Path entry = stream.iterator().next();
+                int before = expiringProvider.getRoundTrips();
+                Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                assertThat(expiringProvider.getRoundTrips() - before, equalTo(1));
+            } finally {
+                stream.close();
+            }
+        } finally {
+            expiring.close();
+        }
+    }
+
+    @Test
+    public void shouldReadListingsBeyondMaximumCompletely() throws IOException {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereConnectionPool.POOL_MAX_RUNNING_PROCESSES, 1);
+        OverthereFileSystem limited = (OverthereFileSystem) new CountingLocalFileSystemProvider().newFileSystem(URI.create("local:/"), env);
+        try {
+            Path dir = limited.getPath(tempDir.getAbsolutePath());
+            DirectoryStream<Path> outer = Files.newDirectoryStream(dir);
+            try {
+                Iterator<Path> outerEntries = outer.iterator();
+                assertThat(outerEntries.hasNext(), equalTo(true));
+                DirectoryStream<Path> inner = Files.newDirectoryStream(dir.resolve("sub"));
+                try {
+                    OverthereConnection connection = limited.getConnectionPool().borrow();
+                    assertThat(limited.getConnectionPool().getRunningProcesses(connection), equalTo(1));
+                    limited.getConnectionPool().release(connection);
+                    assertThat(Iterators.size(inner.iterator()), equalTo(10));
+                } finally {
+                    inner.close();
+                }
+                assertThat(Iterators.size(outerEntries), equalTo(11));
+            } finally {
+                outer.close();
+            }
+        } finally {
+            limited.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.testng.Assert.fail;
+
+public class OverthereFileAttributesTest {
+
+    private CountingLocalFileSystemProvider provider;
+    private FileSystem fileSystem;
+    private File tempDir;
+    private File testFile;
+
+    @BeforeMethod
+    public void createFileSystem() throws IOException {
+        provider = new CountingLocalFileSystemProvider();
+        fileSystem = provider.newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        tempDir = com.google.common.io.Files.createTempDir();
+        testFile = new File(tempDir, "test.txt");
+        com.google.common.io.Files.write("Some text", testFile, Charset.defaultCharset());
+    }
+
+    @AfterMethod
+    public void closeFileSystem() throws IOException {
+        Closeables.closeQuietly(fileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void shouldReadAllAttributesInOneRoundTrip() throws IOException {
+        Path path = fileSystem.getPath(testFile.getAbsolutePath());
+        int before = provider.getRoundTrips();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        assertThat(attributes.isRegularFile(), equalTo(true));
+        assertThat(attributes.isDirectory(), equalTo(false));
+        assertThat(attributes.size(), equalTo(9L));
+        assertThat(attributes.lastModifiedTime().toMillis() / 1000, equalTo(testFile.lastModified() / 1000));
+        assertThat(provider.getRoundTrips() - before, equalTo(1));
+    }
+
+    @Test
+    public void shouldReadDirectoryAttributes() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(fileSystem.getPath(tempDir.getAbsolutePath()), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        assertThat(attributes.isDirectory(), equalTo(true));
+        assertThat(attributes.isRegularFile(), equalTo(false));
+        assertThat(attributes.isSymbolicLink(), equalTo(false));
+    }
+
+    @Test
+    public void shouldKeepSnapshotAfterFileChanges() throws IOException {
+        Path path = fileSystem.getPath(testFile.getAbsolutePath());
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        assertThat(testFile.delete(), equalTo(true));
+        assertThat(attributes.isRegularFile(), equalTo(true));
+        assertThat(attributes.size(), equalTo(9L));
+    }
+
+    @Test
+    public void shouldNotReadTimeAndSizeOfMissingFileWithoutFind() throws IOException {
+        Path path = fileSystem.getPath(new File(tempDir, "foo").getAbsolutePath());
+        ((OverthereFileSystem) fileSystem).setFindSupported(false);
+        int before = provider.getRoundTrips();
+        try {
+            Files.readAttributes(path, BasicFileAttributes.class);
+            fail("Expected NoSuchFileException");
+        } catch (NoSuchFileException expected) {
+            // expected
+        }
+        // isFile, isDirectory and exists
+        assertThat(provider.getRoundTrips() - before, equalTo(3));
+        assertThat(provider.getCount(CountingLocalFileSystemProvider.Operation.LAST_MODIFIED), equalTo(0));
+        assertThat(provider.getCount(CountingLocalFileSystemProvider.Operation.LENGTH), equalTo(0));
+    }
+
+    @Test(expectedExceptions = NoSuchFileException.class)
+    public void shouldThrowWhenReadingAttributesOfNonExistingFile() throws IOException {
+        Files.readAttributes(fileSystem.getPath(new File(tempDir, "foo").getAbsolutePath()), BasicFileAttributes.class);
+    }
+}
@@ -5,13 +5,25 @@ import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.OverthereConnection;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -144,4 +156,87 @@ public class OverthereFileSystemProviderTest {
         }
         assertThat(".foo should be hidden on unix", Files.isHidden(hiddenPath));
     }
+
+    @Test
+    public void shouldNotBlockOtherHostsWhileConnecting() throws Exception {
+        final CountDownLatch slowHostReleased = new CountDownLatch(1);
+        final CountingLocalFileSystemProvider provider = new CountingLocalFileSystemProvider() {
+            @Override
+            protected OverthereConnection getConnection(ConnectionOptions options) {
+                if ("slow".equals(options.get(ConnectionOptions.ADDRESS, null))) {
+                    Uninterruptibles.awaitUninterruptibly(slowHostReleased);
+                }
+                return super.getConnection(options);
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<FileSystem> slow = executor.submit(new Callable<FileSystem>() {
+                @Override
+                public FileSystem call() throws IOException {
+                    return provider.newFileSystem(URI.create("local://slow/"), Maps.<String, Object>newHashMap());
+                }
+            });
+            FileSystem fast = provider.newFileSystem(URI.create("local://fast/"), Maps.<String, Object>newHashMap());
+            assertThat(slow.isDone(), equalTo(false));
+            fast.close();
+
+            slowHostReleased.countDown();
+            slow.get(10, TimeUnit.SECONDS).close();
+        } finally {
+            slowHostReleased.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldConnectOnceForConcurrentLookups() throws Exception {
+        final AtomicInteger connections = new AtomicInteger();
+        final CountingLocalFileSystemProvider provider = new CountingLocalFileSystemProvider() {
+            @Override
+            protected OverthereConnection getConnection(ConnectionOptions options) {
+                connections.incrementAndGet();
+                Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+                return super.getConnection(options);
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Path>> paths = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                paths.add(executor.submit(new Callable<Path>() {
+                    @Override
+                    public Path call() {
+                        return provider.getPath(URI.create("local://shared/tmp/file.txt"));
+                    }
+                }));
+            }
+            FileSystem shared = null;
+            for (Future<Path> path : paths) {
+                FileSystem pathFileSystem = path.get(10, TimeUnit.SECONDS).getFileSystem();
+                assertThat(shared == null || shared == pathFileSystem, equalTo(true));
+                shared = pathFileSystem;
+            }
+            assertThat(connections.get(), equalTo(1));
+            shared.close();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expectedExceptions = FileSystemNotFoundException.class)
+    public void shouldForgetFileSystemThatCouldNotConnect() throws IOException {
+        CountingLocalFileSystemProvider provider = new CountingLocalFileSystemProvider() {
+            @Override
+            protected OverthereConnection getConnection(ConnectionOptions options) {
+                throw new IllegalStateException("Cannot connect");
+            }
+        };
+        try {
+            provider.newFileSystem(URI.create("local://broken/"), Maps.<String, Object>newHashMap());
+        } catch (IllegalStateException expected) {
+            // Expected
+        }
+        provider.getFileSystem(URI.create("local://broken/"));
+    }
 }
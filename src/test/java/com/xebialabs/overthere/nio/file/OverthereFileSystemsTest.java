@@ -0,0 +1,104 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OverthereFileSystemsTest {
+
+    private final List<FileSystem> fileSystems = Lists.newArrayList();
+
+    @AfterMethod
+    public void closeFileSystems() {
+        for (FileSystem fileSystem : fileSystems) {
+            Closeables.closeQuietly(fileSystem);
+        }
+        fileSystems.clear();
+    }
+
+    @Test
+    public void shouldReturnLazyFileSystemWithoutConnecting() throws IOException {
+        long start = System.nanoTime();
+        OverthereFileSystem fileSystem = (OverthereFileSystem) FileSystems.newFileSystem(URI.create("slowlocal://lazy/"),
+                ImmutableMap.of(OverthereConnectionPool.LAZY_CONNECT, true, CountingLocalFileSystemProvider.CONNECT_LATENCY, 500));
+        fileSystems.add(fileSystem);
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 400, equalTo(true));
+        assertThat(fileSystem.getConnectionPool().getOpenConnections(), equalTo(0));
+
+        assertThat(Files.isDirectory(fileSystem.getPath("/")), equalTo(true));
+        assertThat(fileSystem.getMetrics().snapshot().get(OverthereMetrics.Operation.CONNECT).getCount(), equalTo(1L));
+    }
+
+    @Test
+    public void shouldConnectInParallel() throws IOException {
+        List<URI> uris = Lists.newArrayList();
+        for (int i = 0; i < 6; i++) {
+            uris.add(URI.create("slowlocal://host" + i + "/"));
+        }
+
+        long start = System.nanoTime();
+        Map<URI, FileSystem> opened = OverthereFileSystems.openAll(uris, ImmutableMap.of(CountingLocalFileSystemProvider.CONNECT_LATENCY, 300), 3);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        fileSystems.addAll(opened.values());
+
+        assertThat(Lists.newArrayList(opened.keySet()), equalTo(uris));
+        assertThat(elapsedMillis >= 600, equalTo(true));
+        assertThat(elapsedMillis < 1500, equalTo(true));
+        for (FileSystem fileSystem : opened.values()) {
+            assertThat(((OverthereFileSystem) fileSystem).getConnectionPool().getOpenConnections(), equalTo(1));
+        }
+    }
+
+    @Test
+    public void shouldConnectLazyFileSystems() throws IOException {
+        URI uri = URI.create("slowlocal://eager/");
+        Map<URI, FileSystem> opened = OverthereFileSystems.openAll(Collections.singleton(uri), ImmutableMap.of(OverthereConnectionPool.LAZY_CONNECT, true), 1);
+        fileSystems.addAll(opened.values());
+
+        assertThat(((OverthereFileSystem) opened.get(uri)).getConnectionPool().getOpenConnections(), equalTo(1));
+    }
+
+    @Test
+    public void shouldReuseOpenFileSystem() throws IOException {
+        URI uri = URI.create("slowlocal://existing/");
+        FileSystem existing = FileSystems.newFileSystem(uri, Collections.<String, Object>emptyMap());
+        fileSystems.add(existing);
+
+        Map<URI, FileSystem> opened = OverthereFileSystems.openAll(Collections.singleton(uri), Collections.<String, Object>emptyMap(), 4);
+        assertThat(opened.get(uri) == existing, equalTo(true));
+    }
+
+    @Test
+    public void shouldCloseOpenedFileSystemsWhenOneFails() {
+        URI good = URI.create("slowlocal://good/");
+        URI bad = URI.create("nosuchscheme://bad/");
+        try {
+            OverthereFileSystems.openAll(Lists.newArrayList(good, bad), Collections.<String, Object>emptyMap(), 2);
+            throw new AssertionError("openAll should have failed");
+        } catch (IOException expected) {
+            assertThat(expected.getSuppressed().length, equalTo(1));
+        }
+        try {
+            FileSystems.getFileSystem(good);
+            throw new AssertionError("File system should have been closed");
+        } catch (FileSystemNotFoundException expected) {
+            // Expected
+        }
+    }
+}
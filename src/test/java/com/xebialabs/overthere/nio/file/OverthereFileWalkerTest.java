@@ -0,0 +1,167 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import static com.google.common.collect.Sets.newHashSet;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OverthereFileWalkerTest {
+
+    private FileSystem fileSystem;
+    private File tempDir;
+    private Path root;
+
+    @BeforeMethod
+    public void createFileSystem() throws IOException {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereConnectionPool.POOL_MAX_SIZE, 4);
+        fileSystem = new CountingLocalFileSystemProvider().newFileSystem(URI.create("local:/"), env);
+        tempDir = com.google.common.io.Files.createTempDir();
+        createTree(tempDir, 3);
+        root = fileSystem.getPath(tempDir.getAbsolutePath());
+    }
+
+    private static void createTree(File dir, int depth) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            com.google.common.io.Files.write("Some text", new File(dir, "file" + i + ".txt"), Charset.defaultCharset());
+            if (depth > 0) {
+                File subDir = new File(dir, "dir" + i);
+                subDir.mkdir();
+                createTree(subDir, depth - 1);
+            }
+        }
+    }
+
+    @AfterMethod
+    public void closeFileSystem() throws IOException {
+        Closeables.closeQuietly(fileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void shouldVisitAllEntriesUnordered() throws IOException {
+        RecordingVisitor expected = new RecordingVisitor();
+        Files.walkFileTree(root, expected);
+        RecordingVisitor actual = new RecordingVisitor();
+        OverthereFileWalker.walk(root, actual, 4);
+
+        assertThat(actual.events.size(), equalTo(expected.events.size()));
+        assertThat(newHashSet(actual.events), equalTo(newHashSet(expected.events)));
+    }
+
+    @Test
+    public void shouldPostVisitDirectoriesAfterTheirEntries() throws IOException {
+        RecordingVisitor visitor = new RecordingVisitor();
+        OverthereFileWalker.walk(root, visitor, 4);
+
+        for (int i = 0; i < visitor.events.size(); i++) {
+            String event = visitor.events.get(i);
+            if (event.startsWith("file ")) {
+                String parent = event.substring("file ".length(), event.lastIndexOf('/'));
+                assertThat(visitor.events.indexOf("pre " + parent) < i, equalTo(true));
+                assertThat(visitor.events.indexOf("post " + parent) > i, equalTo(true));
+            }
+        }
+    }
+
+    @Test
+    public void shouldVisitInDepthFirstOrder() throws IOException {
+        RecordingVisitor expected = new RecordingVisitor();
+        Files.walkFileTree(root, expected);
+        RecordingVisitor actual = new RecordingVisitor();
+        OverthereFileWalker.walk(root, actual, 4, OverthereFileWalker.Order.DEPTH_FIRST);
+
+        assertThat(actual.events, equalTo(expected.events));
+    }
+
+    @Test
+    public void shouldSkipSubtrees() throws IOException {
+        for (OverthereFileWalker.Order order : OverthereFileWalker.Order.values()) {
+            RecordingVisitor visitor = new RecordingVisitor() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    super.preVisitDirectory(dir, attrs);
+                    return dir.getFileName().toString().equals("dir0") ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+            };
+            OverthereFileWalker.walk(root, visitor, 4, order);
+            for (String event : visitor.events) {
+                assertThat(event, event.contains("/dir0/"), equalTo(false));
+            }
+            assertThat(visitor.events.contains("post " + root.resolve("dir1")), equalTo(true));
+        }
+    }
+
+    @Test
+    public void shouldTerminate() throws IOException {
+        for (OverthereFileWalker.Order order : OverthereFileWalker.Order.values()) {
+            RecordingVisitor visitor = new RecordingVisitor() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    super.visitFile(file, attrs);
+                    return FileVisitResult.TERMINATE;
+                }
+            };
+            OverthereFileWalker.walk(root, visitor, 1, order);
+            assertThat(visitor.events.contains("post " + root), equalTo(false));
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void shouldRethrowVisitorFailures() throws IOException {
+        OverthereFileWalker.walk(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                throw new IOException("Failed on " + file);
+            }
+        }, 4);
+    }
+
+    @Test
+    public void shouldVisitStartFile() throws IOException {
+        RecordingVisitor visitor = new RecordingVisitor();
+        OverthereFileWalker.walk(root.resolve("file0.txt"), visitor, 4);
+        assertThat(visitor.events, equalTo((List<String>) Lists.newArrayList("file " + root.resolve("file0.txt"))));
+    }
+
+    static class RecordingVisitor extends SimpleFileVisitor<Path> {
+        final List<String> events = Collections.synchronizedList(Lists.<String>newArrayList());
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            events.add("pre " + dir);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            events.add("file " + file);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+            events.add("post " + dir);
+            return FileVisitResult.CONTINUE;
+        }
+    }
+}
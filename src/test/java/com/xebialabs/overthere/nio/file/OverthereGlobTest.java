@@ -0,0 +1,159 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OverthereGlobTest {
+
+    private CountingLocalFileSystemProvider provider;
+    private FileSystem fileSystem;
+    private File tempDir;
+    private Path dir;
+
+    @BeforeMethod
+    public void createFileSystem() throws IOException {
+        provider = new CountingLocalFileSystemProvider();
+        fileSystem = provider.newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        tempDir = com.google.common.io.Files.createTempDir();
+        for (String name : new String[] { "app.jar", "lib.jar", "app.war", "readme.txt", ".hidden.jar", "notes [draft].txt" }) {
+            com.google.common.io.Files.write("Some text", new File(tempDir, name), Charset.defaultCharset());
+        }
+        new File(tempDir, "classes.jar.d").mkdir();
+        dir = fileSystem.getPath(tempDir.getAbsolutePath());
+    }
+
+    @AfterMethod
+    public void closeFileSystem() throws IOException {
+        Closeables.closeQuietly(fileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @DataProvider(name = "globs")
+    public Object[][] globs() {
+        return new Object[][] {
+                { "*.jar", new String[] { "app.jar", ".jar", "a/b.jar", "app.jar.d", "app.war" } },
+                { "*.{jar,war}", new String[] { "app.jar", "app.war", "app.ear", "a/app.war" } },
+                { "**/*.jar", new String[] { "a/b.jar", "a/b/c.jar", "b.jar", "/a/b.jar" } },
+                { "/tmp/*", new String[] { "/tmp/a", "/tmp/a/b", "/tmp/", "tmp/a" } },
+                { "?.txt", new String[] { "a.txt", "ab.txt", "/.txt" } },
+                { "[a-c]*.[!t]*", new String[] { "app.jar", "bob.txt", "dan.jar", "c.x", "a/b.c" } },
+                { "notes \\[draft\\].txt", new String[] { "notes [draft].txt", "notes d.txt" } },
+                { "{a,b\\,c}", new String[] { "a", "b,c", "b", "c" } },
+                { "", new String[] { "", "a" } },
+        };
+    }
+
+    @Test(dataProvider = "globs")
+    public void shouldMatchLikeDefaultFileSystem(String glob, String[] paths) {
+        PathMatcher expected = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        PathMatcher actual = fileSystem.getPathMatcher("glob:" + glob);
+        for (String path : paths) {
+            assertThat(glob + " on " + path, actual.matches(fileSystem.getPath(path)), equalTo(expected.matches(FileSystems.getDefault().getPath(path))));
+        }
+    }
+
+    @Test
+    public void shouldMatchRegex() {
+        PathMatcher matcher = fileSystem.getPathMatcher("regex:[a-z]+\\.(jar|war)");
+        assertThat(matcher.matches(fileSystem.getPath("app.jar")), equalTo(true));
+        assertThat(matcher.matches(fileSystem.getPath("app.war")), equalTo(true));
+        assertThat(matcher.matches(fileSystem.getPath("app.txt")), equalTo(false));
+        assertThat(matcher.matches(fileSystem.getPath("/tmp/app.jar")), equalTo(false));
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void shouldRejectUnknownSyntax() {
+        fileSystem.getPathMatcher("ant:**/*.jar");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shouldRequireSyntax() {
+        fileSystem.getPathMatcher("*.jar");
+    }
+
+    @Test(expectedExceptions = PatternSyntaxException.class)
+    public void shouldRejectUnclosedGroup() {
+        fileSystem.getPathMatcher("glob:*.{jar,war");
+    }
+
+    @Test
+    public void shouldPushGlobDownToFind() throws IOException {
+        assertThat(list(provider.newDirectoryStream(dir, "*.jar")), equalTo((Set<String>) Sets.newHashSet("app.jar", "lib.jar", ".hidden.jar")));
+        assertThat(provider.commandLines.get(provider.commandLines.size() - 1), containsString("*.jar"));
+    }
+
+    @Test
+    public void shouldPushGroupsDownAsAlternatives() throws IOException {
+        assertThat(list(provider.newDirectoryStream(dir, "app.{jar,war}")), equalTo((Set<String>) Sets.newHashSet("app.jar", "app.war")));
+        String command = provider.commandLines.get(provider.commandLines.size() - 1);
+        assertThat(command, containsString("app.jar"));
+        assertThat(command, containsString("-o"));
+    }
+
+    @Test
+    public void shouldEscapeSpecialCharactersWhenPushingDown() throws IOException {
+        assertThat(list(provider.newDirectoryStream(dir, "notes \\[*")), equalTo((Set<String>) Sets.newHashSet("notes [draft].txt")));
+    }
+
+    @Test
+    public void shouldPushGlobOfFilesDownToFind() throws IOException {
+        assertThat(list(Files.newDirectoryStream(dir, "*.jar")), equalTo((Set<String>) Sets.newHashSet("app.jar", "lib.jar", ".hidden.jar")));
+        assertThat(provider.commandLines.get(provider.commandLines.size() - 1), containsString("-name"));
+    }
+
+    @Test
+    public void shouldPushMatcherUsedAsFilterDownToFind() throws IOException {
+        @SuppressWarnings("unchecked")
+        DirectoryStream.Filter<Path> jars = (DirectoryStream.Filter<Path>) fileSystem.getPathMatcher("glob:*.jar");
+        assertThat(list(Files.newDirectoryStream(dir, jars)), equalTo((Set<String>) Sets.newHashSet("app.jar", "lib.jar", ".hidden.jar")));
+        assertThat(provider.commandLines.get(provider.commandLines.size() - 1), containsString("-name"));
+    }
+
+    @Test
+    public void shouldNotPushDownOtherFilters() throws IOException {
+        final PathMatcher matcher = fileSystem.getPathMatcher("glob:*.jar");
+        DirectoryStream.Filter<Path> notJar = new DirectoryStream.Filter<Path>() {
+            @Override
+            public boolean accept(Path entry) {
+                return !matcher.matches(entry.getFileName());
+            }
+        };
+        Set<String> names = list(Files.newDirectoryStream(dir, notJar));
+        assertThat(names, equalTo((Set<String>) Sets.newHashSet("app.war", "readme.txt", "notes [draft].txt", "classes.jar.d")));
+        assertThat(provider.commandLines.get(provider.commandLines.size() - 1), not(containsString("-name")));
+    }
+
+    private static Set<String> list(DirectoryStream<Path> stream) throws IOException {
+        try {
+            Set<String> names = Sets.newHashSet();
+            for (Path path : stream) {
+                names.add(path.getFileName().toString());
+            }
+            return names;
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import com.xebialabs.overthere.nio.file.provider.LocalFileSystemProvider;
+
+import static com.google.common.collect.Sets.newHashSet;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OverthereManifestTest {
+
+    private CountingLocalFileSystemProvider provider;
+    private FileSystem fileSystem;
+    private File tempDir;
+    private Path root;
+
+    @BeforeMethod
+    public void createFileSystem() throws IOException {
+        provider = new CountingLocalFileSystemProvider();
+        fileSystem = provider.newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        tempDir = com.google.common.io.Files.createTempDir();
+        File subDir = new File(tempDir, "sub dir");
+        subDir.mkdir();
+        new File(subDir, "deeper").mkdir();
+        com.google.common.io.Files.write("Some text", new File(tempDir, "file.txt"), Charset.defaultCharset());
+        com.google.common.io.Files.write("More text", new File(subDir, "deeper/script.sh"), Charset.defaultCharset());
+        new File(subDir, "deeper/script.sh").setExecutable(true, false);
+        root = fileSystem.getPath(tempDir.getAbsolutePath());
+    }
+
+    @AfterMethod
+    public void closeFileSystem() throws IOException {
+        Closeables.closeQuietly(fileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void shouldListWholeTreeInOneRoundTrip() throws IOException {
+        Map<String, OverthereManifest.Entry> entries = readManifest(provider, root);
+        // One to check that the root is a directory, one for the tree
+        assertThat(provider.getRoundTrips(), equalTo(2));
+
+        assertThat(entries.keySet(), equalTo((Set<String>) newHashSet(
+                "file.txt", "sub dir", "sub dir/deeper", "sub dir/deeper/script.sh")));
+        assertThat(entries.get("file.txt").getAttributes().size(), equalTo(9L));
+        assertThat(entries.get("sub dir/deeper").getAttributes().isDirectory(), equalTo(true));
+        assertThat(entries.get("sub dir/deeper/script.sh").getMode() & 0111, equalTo(0111));
+        assertThat(entries.get("sub dir/deeper/script.sh").getAttributes().lastModifiedTime().toMillis() / 1000,
+                equalTo(new File(tempDir, "sub dir/deeper/script.sh").lastModified() / 1000));
+
+        Files.readAttributes(entries.get("sub dir/deeper/script.sh").getPath(), BasicFileAttributes.class);
+        assertThat(provider.getRoundTrips(), equalTo(2));
+    }
+
+    @Test
+    public void shouldWalkTreeWithoutHostCommands() throws IOException {
+        FileSystem localFileSystem = new LocalFileSystemProvider().newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        try {
+            Map<String, OverthereManifest.Entry> entries = readManifest(
+                    (OverthereFileSystemProvider) localFileSystem.provider(), localFileSystem.getPath(tempDir.getAbsolutePath()));
+            assertThat(entries.size(), equalTo(4));
+            assertThat(entries.get("sub dir/deeper/script.sh").getAttributes().isRegularFile(), equalTo(true));
+            assertThat(entries.get("sub dir/deeper/script.sh").getMode(), equalTo(-1));
+        } finally {
+            localFileSystem.close();
+        }
+    }
+
+    @Test
+    public void shouldListParentsBeforeChildren() throws IOException {
+        List<String> paths = Lists.newArrayList();
+        OverthereManifest manifest = provider.newManifest(root);
+        try {
+            for (OverthereManifest.Entry entry : manifest) {
+                paths.add(root.relativize(entry.getPath()).toString());
+            }
+        } finally {
+            manifest.close();
+        }
+        assertThat(paths.indexOf("sub dir") < paths.indexOf("sub dir/deeper"), equalTo(true));
+        assertThat(paths.indexOf("sub dir/deeper") < paths.indexOf("sub dir/deeper/script.sh"), equalTo(true));
+    }
+
+    @Test
+    public void shouldShareDirectoryPathWithItsEntries() throws IOException {
+        Map<String, OverthereManifest.Entry> entries = readManifest(provider, root);
+        assertThat(entries.get("sub dir/deeper").getPath().getParent() == entries.get("sub dir").getPath(), equalTo(true));
+        assertThat(entries.get("sub dir/deeper/script.sh").getPath().getParent() == entries.get("sub dir/deeper").getPath(), equalTo(true));
+    }
+
+    @Test
+    public void shouldStopWhenClosedEarly() throws IOException {
+        OverthereManifest manifest = provider.newManifest(root);
+        Iterator<OverthereManifest.Entry> iterator = manifest.iterator();
+        iterator.next();
+        manifest.close();
+        assertThat(iterator.hasNext(), equalTo(false));
+    }
+
+    @Test(expectedExceptions = NotDirectoryException.class)
+    public void shouldNotListFile() throws IOException {
+        provider.newManifest(root.resolve("file.txt"));
+    }
+
+    private static Map<String, OverthereManifest.Entry> readManifest(OverthereFileSystemProvider provider, Path dir) throws IOException {
+        Map<String, OverthereManifest.Entry> entries = Maps.newHashMap();
+        OverthereManifest manifest = provider.newManifest(dir);
+        try {
+            for (OverthereManifest.Entry entry : manifest) {
+                entries.put(dir.relativize(entry.getPath()).toString(), entry);
+            }
+        } finally {
+            manifest.close();
+        }
+        return entries;
+    }
+}
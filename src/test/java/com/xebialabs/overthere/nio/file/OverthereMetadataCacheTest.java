@@ -0,0 +1,104 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OverthereMetadataCacheTest {
+
+    private CountingLocalFileSystemProvider provider;
+    private OverthereFileSystem fileSystem;
+    private File tempDir;
+    private File testFile;
+
+    @BeforeMethod
+    public void createFileSystem() throws IOException {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereMetadataCache.METADATA_CACHE_TTL, 60000);
+        provider = new CountingLocalFileSystemProvider();
+        fileSystem = (OverthereFileSystem) provider.newFileSystem(URI.create("local:/"), env);
+        tempDir = com.google.common.io.Files.createTempDir();
+        testFile = new File(tempDir, "test.txt");
+        com.google.common.io.Files.write("Some text", testFile, Charset.defaultCharset());
+    }
+
+    @AfterMethod
+    public void closeFileSystem() throws IOException {
+        Closeables.closeQuietly(fileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void shouldAnswerRepeatedChecksFromCache() throws IOException {
+        Path path = fileSystem.getPath(testFile.getAbsolutePath());
+        int before = provider.getRoundTrips();
+        assertThat(Files.exists(path), equalTo(true));
+        assertThat(Files.isRegularFile(path), equalTo(true));
+        assertThat(Files.isDirectory(path), equalTo(false));
+        assertThat(Files.size(path), equalTo(9L));
+        assertThat(provider.getRoundTrips() - before, equalTo(1));
+    }
+
+    @Test
+    public void shouldCacheNonExistence() throws IOException {
+        Path path = fileSystem.getPath(new File(tempDir, "foo").getAbsolutePath());
+        int before = provider.getRoundTrips();
+        assertThat(Files.exists(path), equalTo(false));
+        assertThat(Files.exists(path), equalTo(false));
+        assertThat(provider.getRoundTrips() - before, equalTo(1));
+    }
+
+    @Test
+    public void shouldInvalidateOnDelete() throws IOException {
+        Path path = fileSystem.getPath(testFile.getAbsolutePath());
+        assertThat(Files.exists(path), equalTo(true));
+        Files.delete(path);
+        assertThat(Files.exists(path), equalTo(false));
+    }
+
+    @Test
+    public void shouldInvalidateOnCreateDirectory() throws IOException {
+        Path path = fileSystem.getPath(new File(tempDir, "a-dir").getAbsolutePath());
+        assertThat(Files.exists(path), equalTo(false));
+        Files.createDirectory(path);
+        assertThat(Files.isDirectory(path), equalTo(true));
+    }
+
+    @Test
+    public void shouldInvalidateEntriesOfMovedDirectory() throws IOException {
+        File dir = new File(tempDir, "dir");
+        assertThat(dir.mkdir(), equalTo(true));
+        com.google.common.io.Files.write("Some text", new File(dir, "entry.txt"), Charset.defaultCharset());
+        Path entry = fileSystem.getPath(new File(dir, "entry.txt").getAbsolutePath());
+        Path movedEntry = fileSystem.getPath(new File(tempDir, "moved/entry.txt").getAbsolutePath());
+        assertThat(Files.exists(entry), equalTo(true));
+        assertThat(Files.exists(movedEntry), equalTo(false));
+
+        Files.move(entry.getParent(), movedEntry.getParent());
+
+        assertThat(Files.exists(entry), equalTo(false));
+        assertThat(Files.exists(movedEntry), equalTo(true));
+    }
+
+    @Test
+    public void shouldOnlySeeExternalChangesAfterExplicitInvalidation() throws IOException {
+        Path path = fileSystem.getPath(testFile.getAbsolutePath());
+        assertThat(Files.exists(path), equalTo(true));
+        assertThat(testFile.delete(), equalTo(true));
+        assertThat(Files.exists(path), equalTo(true));
+        fileSystem.invalidate(path);
+        assertThat(Files.exists(path), equalTo(false));
+    }
+}
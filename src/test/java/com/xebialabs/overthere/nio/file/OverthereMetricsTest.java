@@ -0,0 +1,126 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OverthereMetricsTest {
+
+    private CountingLocalFileSystemProvider provider;
+    private FileSystem fileSystem;
+    private OverthereMetrics metrics;
+    private File tempDir;
+    private Path dir;
+
+    @BeforeMethod
+    public void createFileSystem() throws IOException {
+        provider = new CountingLocalFileSystemProvider();
+        fileSystem = provider.newFileSystem(URI.create("local:/"), Maps.<String, Object>newHashMap());
+        metrics = ((OverthereFileSystem) fileSystem).getMetrics();
+        tempDir = com.google.common.io.Files.createTempDir();
+        dir = fileSystem.getPath(tempDir.getAbsolutePath());
+    }
+
+    @AfterMethod
+    public void closeFileSystem() throws IOException {
+        Closeables.closeQuietly(fileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void shouldCountOperationsAndBytes() throws IOException {
+        Path file = dir.resolve("data.bin");
+        Files.write(file, new byte[1000]);
+        Files.readAllBytes(file);
+        Files.newDirectoryStream(dir).close();
+        Files.delete(file);
+
+        OverthereMetrics.Snapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.get(OverthereMetrics.Operation.CONNECT).getCount() >= 1, equalTo(true));
+        assertThat(snapshot.get(OverthereMetrics.Operation.OPEN).getCount() >= 2, equalTo(true));
+        assertThat(snapshot.get(OverthereMetrics.Operation.LIST).getCount(), equalTo(1L));
+        assertThat(snapshot.get(OverthereMetrics.Operation.DELETE).getCount(), equalTo(1L));
+        assertThat(snapshot.get(OverthereMetrics.Operation.MOVE).getCount(), equalTo(0L));
+        assertThat(snapshot.getBytesWritten(), equalTo(1000L));
+        assertThat(snapshot.getBytesRead(), equalTo(1000L));
+    }
+
+    @Test
+    public void shouldNotCountMissingFileAsError() throws IOException {
+        try {
+            Files.readAttributes(dir.resolve("missing"), BasicFileAttributes.class);
+        } catch (NoSuchFileException expected) {
+            // Expected
+        }
+
+        OverthereMetrics.OperationSnapshot attributes = metrics.snapshot().get(OverthereMetrics.Operation.READ_ATTRIBUTES);
+        assertThat(attributes.getCount(), equalTo(1L));
+        assertThat(attributes.getErrors(), equalTo(0L));
+    }
+
+    @Test
+    public void shouldReset() throws IOException {
+        Files.exists(dir);
+        metrics.reset();
+
+        assertThat(metrics.snapshot().get(OverthereMetrics.Operation.READ_ATTRIBUTES).getCount(), equalTo(0L));
+    }
+
+    @Test
+    public void shouldPublishOverJmx() throws Exception {
+        Files.write(dir.resolve("data.bin"), new byte[10]);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.xebialabs.overthere.nio:type=OverthereFileSystem,uri=" + ObjectName.quote("local:/"));
+
+        assertThat((Long) server.getAttribute(name, "BytesWritten"), equalTo(10L));
+        fileSystem.close();
+        assertThat(server.isRegistered(name), equalTo(false));
+    }
+
+    @Test
+    public void shouldExposeOperationCountsAsMap() throws IOException {
+        Files.createDirectory(dir.resolve("sub"));
+
+        Map<String, Long> counts = metrics.getOperationCounts();
+        assertThat(counts.get("CREATE_DIRECTORY"), equalTo(1L));
+        assertThat(counts.size(), equalTo(OverthereMetrics.Operation.values().length));
+    }
+
+    @Test
+    public void shouldBucketByPowersOfTwoMicros() {
+        assertThat(OverthereMetrics.bucket(0), equalTo(0));
+        assertThat(OverthereMetrics.bucket(TimeUnit.MICROSECONDS.toNanos(1)), equalTo(1));
+        assertThat(OverthereMetrics.bucket(TimeUnit.MICROSECONDS.toNanos(3)), equalTo(2));
+        assertThat(OverthereMetrics.bucket(TimeUnit.MICROSECONDS.toNanos(1024)), equalTo(11));
+        assertThat(OverthereMetrics.bucket(Long.MAX_VALUE), equalTo(OverthereMetrics.BUCKETS - 1));
+    }
+
+    @Test
+    public void shouldReportPercentileAsBucketBound() {
+        long[] histogram = new long[OverthereMetrics.BUCKETS];
+        histogram[3] = 98;
+        histogram[10] = 2;
+        OverthereMetrics.OperationSnapshot snapshot = new OverthereMetrics.OperationSnapshot(100, 0, 0, histogram);
+
+        assertThat(snapshot.getPercentileLatencyMicros(0.5), equalTo(8L));
+        assertThat(snapshot.getPercentileLatencyMicros(0.99), equalTo(1024L));
+    }
+}
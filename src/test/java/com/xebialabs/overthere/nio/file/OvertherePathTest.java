@@ -296,6 +296,52 @@ public class OvertherePathTest {
         assertThat(fileSystem.getPath("/first/second").relativize(fileSystem.getPath("/first/second/third/fourth")), equalTo(fileSystem.getPath("third/fourth")));
     }
 
+    @Test
+    public void shouldEqualFreshPathWhenSliced() {
+        Path parent = absolutePath.getParent();
+        assertThat(parent, equalTo(fileSystem.getPath("/first/second")));
+        assertThat(parent.hashCode(), equalTo(fileSystem.getPath("/first/second").hashCode()));
+        assertThat(absolutePath.subpath(1, 3), equalTo(fileSystem.getPath("second/third")));
+        assertThat(absolutePath.subpath(1, 3).hashCode(), equalTo(fileSystem.getPath("second/third").hashCode()));
+        assertThat(absolutePath.getFileName(), equalTo(relativePath.getFileName()));
+    }
+
+    @Test
+    public void shouldNotChangeSlicedPathWhenResolvingOnIt() {
+        Path parent = absolutePath.getParent();
+        assertThat(parent.resolve("other").toString(), equalTo("/first/second/other"));
+        assertThat(absolutePath.toString(), equalTo("/first/second/third"));
+        assertThat(absolutePath.getFileName().resolve("fourth").toString(), equalTo("third/fourth"));
+    }
+
+    @Test
+    public void shouldShareParentWithResolvedChildren() {
+        Path child = absolutePath.resolve("child");
+        assertThat(child.getParent() == absolutePath, equalTo(true));
+        assertThat(absolutePath.resolve("a/b").getParent().getParent() == absolutePath, equalTo(true));
+    }
+
+    @Test
+    public void shouldShareInternedNames() {
+        String first = fileSystem.getPath("/one/name").getFileName().toString();
+        String second = fileSystem.getPath("/two").resolve(new String("name")).getFileName().toString();
+        assertThat(first == second, equalTo(true));
+    }
+
+    @Test
+    public void shouldHandleDeepPaths() {
+        Path deep = fileSystem.getPath("/");
+        for (int i = 0; i < 1000; i++) {
+            deep = deep.resolve("d" + i);
+        }
+        assertThat(deep.getNameCount(), equalTo(1000));
+        assertThat(deep.subpath(998, 1000).toString(), equalTo("d998/d999"));
+        assertThat(deep.startsWith(fileSystem.getPath("/d0/d1")), equalTo(true));
+        assertThat(deep.endsWith(fileSystem.getPath("d998/d999")), equalTo(true));
+        assertThat(fileSystem.getPath(deep.toString()), equalTo(deep));
+        assertThat(fileSystem.getPath(deep.toString()).hashCode(), equalTo(deep.hashCode()));
+    }
+
     @Test
     public void shouldConvertToUri() {
         URI uri = absolutePath.toUri();
@@ -0,0 +1,325 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class OverthereWatchServiceTest {
+
+    private FileSystem fileSystem;
+    private File tempDir;
+    private Path dir;
+
+    @BeforeMethod
+    public void createFileSystem() throws IOException {
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereWatchService.POLL_INTERVAL, 50);
+        fileSystem = new CountingLocalFileSystemProvider().newFileSystem(URI.create("local:/"), env);
+        tempDir = com.google.common.io.Files.createTempDir();
+        com.google.common.io.Files.write("Some text", new File(tempDir, "existing.txt"), Charset.defaultCharset());
+        dir = fileSystem.getPath(tempDir.getAbsolutePath());
+    }
+
+    @AfterMethod
+    public void closeFileSystem() throws IOException {
+        Closeables.closeQuietly(fileSystem);
+        if (tempDir.exists()) {
+            Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+        }
+    }
+
+    @Test
+    public void shouldReportCreatedModifiedAndDeletedEntries() throws IOException, InterruptedException {
+        WatchService watcher = fileSystem.newWatchService();
+        try {
+            WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+
+            com.google.common.io.Files.write("New text", new File(tempDir, "new.txt"), Charset.defaultCharset());
+            assertThat(takeEvents(watcher, key), equalTo((List<String>) Lists.newArrayList("ENTRY_CREATE new.txt")));
+
+            com.google.common.io.Files.append(" and more", new File(tempDir, "existing.txt"), Charset.defaultCharset());
+            assertThat(takeEvents(watcher, key), equalTo((List<String>) Lists.newArrayList("ENTRY_MODIFY existing.txt")));
+
+            assertThat(new File(tempDir, "new.txt").delete(), equalTo(true));
+            assertThat(takeEvents(watcher, key), equalTo((List<String>) Lists.newArrayList("ENTRY_DELETE new.txt")));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void shouldOnlyReportRegisteredKinds() throws IOException, InterruptedException {
+        WatchService watcher = fileSystem.newWatchService();
+        try {
+            WatchKey key = dir.register(watcher, ENTRY_DELETE);
+            com.google.common.io.Files.write("New text", new File(tempDir, "new.txt"), Charset.defaultCharset());
+            assertThat(new File(tempDir, "existing.txt").delete(), equalTo(true));
+            assertThat(takeEvents(watcher, key), equalTo((List<String>) Lists.newArrayList("ENTRY_DELETE existing.txt")));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void shouldReturnSameKeyForSameDirectory() throws IOException {
+        WatchService watcher = fileSystem.newWatchService();
+        try {
+            assertThat(dir.register(watcher, ENTRY_CREATE), equalTo(dir.register(watcher, ENTRY_DELETE)));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void shouldCancelKeyWhenDirectoryIsDeleted() throws IOException, InterruptedException {
+        WatchService watcher = fileSystem.newWatchService();
+        try {
+            WatchKey key = dir.register(watcher, ENTRY_CREATE);
+            Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+            assertThat(watcher.poll(5, TimeUnit.SECONDS), equalTo(key));
+            assertThat(key.isValid(), equalTo(false));
+            assertThat(key.reset(), equalTo(false));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void shouldShareOnePollerThreadPerFileSystem() throws IOException {
+        WatchService watcher1 = fileSystem.newWatchService();
+        WatchService watcher2 = fileSystem.newWatchService();
+        try {
+            File otherDir = new File(tempDir, "other");
+            assertThat(otherDir.mkdir(), equalTo(true));
+            dir.register(watcher1, ENTRY_CREATE);
+            fileSystem.getPath(otherDir.getAbsolutePath()).register(watcher2, ENTRY_CREATE);
+            assertThat(countPollerThreads(), equalTo(1));
+        } finally {
+            watcher1.close();
+            watcher2.close();
+        }
+    }
+
+    @Test(expectedExceptions = ClosedWatchServiceException.class)
+    public void shouldWakeUpWaitersWhenClosed() throws IOException, InterruptedException {
+        final WatchService watcher = fileSystem.newWatchService();
+        dir.register(watcher, ENTRY_CREATE);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+                Closeables.closeQuietly(watcher);
+            }
+        }.start();
+        watcher.take();
+    }
+
+    @Test
+    public void shouldNotSignalUnchangedDirectory() throws IOException, InterruptedException {
+        WatchService watcher = fileSystem.newWatchService();
+        try {
+            dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            assertThat(watcher.poll(300, TimeUnit.MILLISECONDS), nullValue());
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void shouldFallBackToPollingWithoutInotifywait() throws IOException, InterruptedException {
+        FileSystem inotifyFileSystem = newInotifyFileSystem("echo 'inotifywait: command not found' >&2; exit 127", 50);
+        WatchService watcher = inotifyFileSystem.newWatchService();
+        try {
+            WatchKey key = inotifyFileSystem.getPath(tempDir.getAbsolutePath()).register(watcher, ENTRY_CREATE);
+            com.google.common.io.Files.write("New text", new File(tempDir, "new.txt"), Charset.defaultCharset());
+            assertThat(takeEvents(watcher, key), equalTo((List<String>) Lists.newArrayList("ENTRY_CREATE new.txt")));
+        } finally {
+            watcher.close();
+            inotifyFileSystem.close();
+        }
+    }
+
+    @Test
+    public void shouldReportEventsPushedByInotifywait() throws IOException, InterruptedException {
+        FileSystem inotifyFileSystem = newInotifyFileSystem("echo 'Watches established.' >&2; echo 'CREATE pushed.txt'; "
+                + "echo 'MODIFY,ISDIR sub'; echo 'MOVED_FROM old.txt'; exec sleep 30", 60000);
+        WatchService watcher = inotifyFileSystem.newWatchService();
+        try {
+            WatchKey key = inotifyFileSystem.getPath(tempDir.getAbsolutePath()).register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            List<String> events = Lists.newArrayList();
+            while (events.size() < 3) {
+                events.addAll(takeEvents(watcher, key));
+            }
+            assertThat(events, equalTo((List<String>) Lists.newArrayList("ENTRY_CREATE pushed.txt", "ENTRY_MODIFY sub", "ENTRY_DELETE old.txt")));
+        } finally {
+            watcher.close();
+            inotifyFileSystem.close();
+        }
+    }
+
+    @Test
+    public void shouldSignalOverflowAndRestartWhenInotifywaitExits() throws IOException, InterruptedException {
+        FileSystem inotifyFileSystem = newInotifyFileSystem("echo 'Watches established.' >&2; echo 'CREATE pushed.txt'", 60000);
+        WatchService watcher = inotifyFileSystem.newWatchService();
+        try {
+            WatchKey key = inotifyFileSystem.getPath(tempDir.getAbsolutePath()).register(watcher, ENTRY_CREATE);
+            List<String> events = Lists.newArrayList();
+            while (!events.contains("OVERFLOW null")) {
+                events.addAll(takeEvents(watcher, key));
+            }
+            assertThat(events, hasItem("ENTRY_CREATE pushed.txt"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (inotifyStarts.get() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertThat(inotifyStarts.get() >= 2, equalTo(true));
+            assertThat(key.isValid(), equalTo(true));
+        } finally {
+            watcher.close();
+            inotifyFileSystem.close();
+        }
+    }
+
+    @Test
+    public void shouldFallBackToPollingWhenReconnectingForInotifywaitFails() throws IOException, InterruptedException {
+        final AtomicInteger connects = new AtomicInteger();
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereWatchService.POLL_INTERVAL, 50);
+        env.put(OverthereWatchService.WATCH_MODE, "inotify");
+        FileSystem inotifyFileSystem = new CountingLocalFileSystemProvider() {
+            @Override
+            protected OverthereConnection getConnection(ConnectionOptions options) {
+                if (connects.incrementAndGet() == 2) {
+                    throw new RuntimeIOException("Host unreachable");
+                }
+                return new CountingConnection(options) {
+                    @Override
+                    public OverthereProcess startProcess(CmdLine commandLine) {
+                        if (commandLine.toString().contains("inotifywait")) {
+                            inotifyStarts.incrementAndGet();
+                            OverthereProcess process = super.startProcess(CmdLine.build("sh", "-c", "echo 'Watches established.' >&2; sleep 1"));
+                            drop();
+                            return process;
+                        }
+                        return super.startProcess(commandLine);
+                    }
+                };
+            }
+        }.newFileSystem(URI.create("local:/"), env);
+        inotifyStarts.set(0);
+        WatchService watcher = inotifyFileSystem.newWatchService();
+        try {
+            WatchKey key = inotifyFileSystem.getPath(tempDir.getAbsolutePath()).register(watcher, ENTRY_CREATE);
+            assertThat(takeEvents(watcher, key), hasItem("OVERFLOW null"));
+            Thread.sleep(2 * InotifyWatcher.RESTART_DELAY_MILLIS);
+
+            com.google.common.io.Files.write("Polled", new File(tempDir, "polled.txt"), Charset.defaultCharset());
+            assertThat(takeEvents(watcher, key), hasItem("ENTRY_CREATE polled.txt"));
+            assertThat(inotifyStarts.get(), equalTo(1));
+            assertThat(connects.get(), equalTo(3));
+        } finally {
+            watcher.close();
+            inotifyFileSystem.close();
+        }
+    }
+
+    @Test
+    public void shouldCancelKeyWhenInotifywaitReportsDirectoryDeleted() throws IOException, InterruptedException {
+        FileSystem inotifyFileSystem = newInotifyFileSystem("echo 'Watches established.' >&2; echo 'DELETE_SELF '; exec sleep 30", 60000);
+        WatchService watcher = inotifyFileSystem.newWatchService();
+        try {
+            WatchKey key = inotifyFileSystem.getPath(tempDir.getAbsolutePath()).register(watcher, ENTRY_CREATE);
+            assertThat(watcher.poll(5, TimeUnit.SECONDS), equalTo(key));
+            assertThat(key.isValid(), equalTo(false));
+        } finally {
+            watcher.close();
+            inotifyFileSystem.close();
+        }
+    }
+
+    private final AtomicInteger inotifyStarts = new AtomicInteger();
+
+    /**
+     * Creates a file system watching with {@code inotifywait}, which runs {@code script} instead because the host
+     * may not have it installed.
+     */
+    private FileSystem newInotifyFileSystem(final String script, int pollInterval) throws IOException {
+        inotifyStarts.set(0);
+        Map<String, Object> env = Maps.newHashMap();
+        env.put(OverthereWatchService.POLL_INTERVAL, pollInterval);
+        env.put(OverthereWatchService.WATCH_MODE, "inotify");
+        return new CountingLocalFileSystemProvider() {
+            @Override
+            protected OverthereConnection getConnection(ConnectionOptions options) {
+                return new CountingConnection(options) {
+                    @Override
+                    public OverthereProcess startProcess(CmdLine commandLine) {
+                        if (commandLine.toString().contains("inotifywait")) {
+                            inotifyStarts.incrementAndGet();
+                            return super.startProcess(CmdLine.build("sh", "-c", script));
+                        }
+                        return super.startProcess(commandLine);
+                    }
+                };
+            }
+        }.newFileSystem(URI.create("local:/"), env);
+    }
+
+    private static List<String> takeEvents(WatchService watcher, WatchKey expectedKey) throws InterruptedException {
+        WatchKey key = watcher.poll(5, TimeUnit.SECONDS);
+        assertThat(key, notNullValue());
+        assertThat(key, equalTo(expectedKey));
+        List<String> events = Lists.newArrayList();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            events.add(event.kind().name() + " " + event.context());
+        }
+        assertThat(key.reset(), equalTo(true));
+        return events;
+    }
+
+    private int countPollerThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("overthere-watch-poller-" + URI.create("local:/")) && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
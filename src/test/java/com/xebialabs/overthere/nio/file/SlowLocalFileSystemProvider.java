@@ -0,0 +1,17 @@
+package com.xebialabs.overthere.nio.file;
+
+/**
+ * The {@code slowlocal:} scheme, for offline performance tests against a host that is slow in a controlled way. The
+ * delays are set with the connection options of {@link CountingLocalFileSystemProvider}, in the environment or the
+ * query of the URI, e.g.
+ * {@code slowlocal:/?connectLatencyMillis=500&latencyMillis=20&jitterMillis=5&bytesPerSecond=1048576}.
+ */
+public class SlowLocalFileSystemProvider extends CountingLocalFileSystemProvider {
+
+    public static final String SLOW_LOCAL_PROTOCOL = "slowlocal";
+
+    @Override
+    public String getScheme() {
+        return SLOW_LOCAL_PROTOCOL;
+    }
+}
@@ -0,0 +1,93 @@
+package com.xebialabs.overthere.nio.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.google.common.io.Closeables;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SlowLocalFileSystemProviderTest {
+
+    private File tempDir;
+    private File file;
+    private FileSystem fileSystem;
+
+    @BeforeMethod
+    public void createFile() throws IOException {
+        tempDir = com.google.common.io.Files.createTempDir();
+        file = new File(tempDir, "data.bin");
+        com.google.common.io.Files.write(new byte[50000], file);
+    }
+
+    @AfterMethod
+    public void deleteFile() throws IOException {
+        Closeables.closeQuietly(fileSystem);
+        Files.walkFileTree(tempDir.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void shouldBeInstalledForSlowLocalScheme() throws IOException {
+        fileSystem = FileSystems.newFileSystem(URI.create("slowlocal:/"), Collections.<String, Object>emptyMap());
+        assertThat(fileSystem.provider(), instanceOf(SlowLocalFileSystemProvider.class));
+        assertThat(Files.exists(fileSystem.getPath(file.getAbsolutePath())), equalTo(true));
+    }
+
+    @Test
+    public void shouldDelayEveryRoundTrip() throws IOException {
+        fileSystem = FileSystems.newFileSystem(URI.create("slowlocal:/?latencyMillis=20&jitterMillis=10"), Collections.<String, Object>emptyMap());
+        SlowLocalFileSystemProvider provider = (SlowLocalFileSystemProvider) fileSystem.provider();
+        Path path = fileSystem.getPath(file.getAbsolutePath());
+        provider.resetCounts();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            fileSystem.provider().checkAccess(path);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertThat(provider.getRoundTrips() >= 5, equalTo(true));
+        assertThat(elapsedMillis >= 20L * provider.getRoundTrips(), equalTo(true));
+    }
+
+    @Test
+    public void shouldCountRoundTripsByOperation() throws IOException {
+        CountingLocalFileSystemProvider provider = new CountingLocalFileSystemProvider();
+        fileSystem = provider.newFileSystem(URI.create("local:/"), Collections.<String, Object>emptyMap());
+        Path dir = fileSystem.getPath(tempDir.getAbsolutePath());
+        provider.resetCounts();
+
+        Files.createDirectory(dir.resolve("sub"));
+        Files.newDirectoryStream(dir).close();
+
+        assertThat(provider.getCount(CountingLocalFileSystemProvider.Operation.MKDIR), equalTo(1));
+        assertThat(provider.getCount(CountingLocalFileSystemProvider.Operation.START_PROCESS) >= 1, equalTo(true));
+        assertThat(provider.getCount(CountingLocalFileSystemProvider.Operation.DELETE), equalTo(0));
+    }
+
+    @Test
+    public void shouldCapBandwidth() throws IOException {
+        fileSystem = FileSystems.newFileSystem(URI.create("slowlocal:/?bytesPerSecond=100000"), Collections.<String, Object>emptyMap());
+        SlowLocalFileSystemProvider provider = (SlowLocalFileSystemProvider) fileSystem.provider();
+        provider.resetCounts();
+
+        long start = System.nanoTime();
+        byte[] bytes = Files.readAllBytes(fileSystem.getPath(file.getAbsolutePath()));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertThat(bytes.length, equalTo(50000));
+        assertThat(provider.getBytesTransferred() >= 50000, equalTo(true));
+        assertThat(elapsedMillis >= 450, equalTo(true));
+    }
+}